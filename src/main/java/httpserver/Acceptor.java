@@ -1,37 +1,114 @@
 package httpserver;
 
 import java.io.*;
+import java.net.StandardSocketOptions;
 import java.nio.channels.*;
 import javax.net.ssl.*;
 
 /**
- * A Runnable class which sits in a loop accepting SocketChannels,
- * then registers the Channels with the read/write Selector.
+ * A Handler for a listening ServerSocketChannel.  When the Selector
+ * reports OP_ACCEPT it takes up to a batch of pending connections and
+ * registers them with the same Dispatcher.
  *
  */
-class Acceptor implements Runnable {
+class Acceptor implements Handler {
 
     private ServerSocketChannel ssc;
     private Dispatcher d;
-    private FileContentManager frm;
+    private VirtualHosts hosts;
+    private SSLContext sslc;
+    private Admission admission;
+    private AccessLog accessLog;
+    private RateLimiter limiter;
+    private int batch;
+    private int writeQuantum;
+    private int sendBuffer;
 
-    Acceptor(ServerSocketChannel ssc, Dispatcher d, FileContentManager frm) {
+    // How long to stop accepting after accept() itself failed
+    private static long BACKOFF_MILLIS = 100;
+
+    Acceptor(ServerSocketChannel ssc, Dispatcher d, VirtualHosts hosts,
+             SSLContext sslc, Admission admission, AccessLog accessLog,
+             RateLimiter limiter, int batch, int writeQuantum,
+             int sendBuffer) {
         this.ssc = ssc;
         this.d = d;
-        this.frm = frm;
+        this.hosts = hosts;
+        this.sslc = sslc;
+        this.admission = admission;
+        this.accessLog = accessLog;
+        this.limiter = limiter;
+        this.batch = batch;
+        this.writeQuantum = writeQuantum;
+        this.sendBuffer = sendBuffer;
     }
 
-    public void run() {
-        for (;;) {
+    public void handle(SelectionKey sk) throws IOException {
+        for (int i = 0; i < batch; i++) {
+            if (!admission.tryAcquire()) {
+                admission.pause(sk);
+                return;
+            }
+
+            SocketChannel sc;
+            try {
+                sc = ssc.accept();
+            } catch (IOException x) {
+                // Typically EMFILE/ENFILE: retry later instead of spinning
+                admission.release();
+                System.err.println("Acceptor: " + x.toString());
+                admission.backOff(sk, BACKOFF_MILLIS);
+                return;
+            }
+
+            if (sc == null) {
+                // Another listener got it, or the backlog is drained
+                admission.release();
+                return;
+            }
+
+            // Over its connection rate: drop it before any handshake
+            RateLimiter.Client client =
+                limiter.client(ChannelIO.peerAddress(sc));
+            if (!client.tryConnect()) {
+                admission.release();
+                sc.close();
+                continue;
+            }
+
+            ChannelIO cio = null;
             try {
-                SocketChannel sc = ssc.accept();
-                ChannelIO cio = ChannelIO.getInstance(sc, false /* non-blocking */);
-                RequestHandler rh = new RequestHandler(cio, frm);
+                if (sendBuffer > 0) {
+                    // Caps what a connection can queue in the kernel
+                    sc.setOption(StandardSocketOptions.SO_SNDBUF, sendBuffer);
+                }
+                cio = (sslc != null ?
+                    ChannelIOSecure.getInstance(
+                        sc, false /* non-blocking */, sslc) :
+                    ChannelIO.getInstance(
+                        sc, false /* non-blocking */));
+                cio.admitted(admission);
+                RequestHandler rh = new RequestHandler(cio, hosts, accessLog,
+                        client, writeQuantum, d.shedder());
                 d.register(cio.getSocketChannel(), SelectionKey.OP_READ, rh);
 
+                Events.ConnectionAccepted accepted =
+                    new Events.ConnectionAccepted();
+                if (accepted.shouldCommit()) {
+                    accepted.remoteAddress =
+                        ChannelIO.peerAddress(sc).getHostAddress();
+                    accepted.secure = (sslc != null);
+                    accepted.commit();
+                }
+
             } catch (IOException x) {
                 x.printStackTrace();
-                break;
+                if (cio != null) {
+                    cio.close();        // gives the permit back
+                } else {
+                    admission.release();
+                    sc.close();
+                }
             }
         }
     }
@@ -0,0 +1,312 @@
+package httpserver;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The access log.
+ * <P>
+ * The selector threads never touch the file: log() copies the fields of
+ * a finished request into a slot of a preallocated ring and returns.  A
+ * background thread drains the ring, formats the lines into one large
+ * buffer and writes it out with a FileChannel.  The file is rotated
+ * (file, file.1, ... file.N) when it grows past maxBytes.
+ * <P>
+ * Lines are in the common log format followed by the time taken in
+ * microseconds and H/M for a file served from the cache or not:
+ *
+ *     127.0.0.1 - - [19/Oct/2026:08:11:11 +0000] "GET /1.html HTTP/1.1" 200 247 93 H
+ * <P>
+ * When the ring is full the record is dropped rather than making the
+ * selector wait; the number of dropped records is written to the log.
+ *
+ */
+class AccessLog {
+
+    static final byte NO_CACHE = 0;
+    static final byte CACHE_HIT = 1;
+    static final byte CACHE_MISS = 2;
+
+    // A ring slot; written by one producer, then read by the writer
+    private static class Record {
+        long time;
+        InetAddress client;
+        String method;
+        String path;
+        String version;
+        int status;
+        long bytes;
+        long nanos;
+        byte cache;
+    }
+
+    private static AccessLog DISABLED = new AccessLog();
+
+    private final Record[] ring;
+    private final int mask;
+
+    /*
+     * Bounded multi-producer ring (Vyukov): slot i is free for the
+     * producer at position p when sequence[i] == p, and holds a record
+     * for the writer when sequence[i] == p + 1.
+     */
+    private final AtomicLongArray sequence;
+    private final AtomicLong tail = new AtomicLong();
+    private long head = 0;                  // writer thread only
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final Path file;
+    private final long maxBytes;
+    private final int maxFiles;
+
+    private FileChannel fc;
+    private long written;
+    private ByteBuffer out = ByteBuffer.allocateDirect(256 * 1024);
+
+    private static DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern(
+            "dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneOffset.UTC);
+    private long dateSecond = -1;
+    private String date;
+
+    private AccessLog() {
+        ring = null;
+        mask = 0;
+        sequence = null;
+        file = null;
+        maxBytes = 0;
+        maxFiles = 0;
+    }
+
+    private AccessLog(Path file, int ringSize, long maxBytes, int maxFiles)
+            throws IOException {
+        int size = Integer.highestOneBit(Math.max(ringSize - 1, 1)) << 1;
+        ring = new Record[size];
+        sequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            ring[i] = new Record();
+            sequence.set(i, i);
+        }
+        mask = size - 1;
+
+        this.file = file;
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+        open();
+
+        Thread t = new Thread(this::drain, "access-log");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /*
+     * A log writing to file, or one which discards everything when file
+     * is null or empty.
+     */
+    static AccessLog create(String file, int ringSize,
+                            long maxBytes, int maxFiles) throws IOException {
+        if (file == null || file.isEmpty()) {
+            return DISABLED;
+        }
+        return new AccessLog(Paths.get(file), ringSize, maxBytes, maxFiles);
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    /*
+     * Called from the selector threads once a reply has been sent (or
+     * abandoned).  Never blocks.
+     */
+    void log(InetAddress client, Request request, Reply reply, long startNanos) {
+        if (ring == null) {
+            return;
+        }
+        if (request != null) {
+            log(client, request.action().toString(), request.uri().getRawPath(),
+                request.version(), reply, startNanos);
+        } else {
+            log(client, "-", "-", "-", reply, startNanos);
+        }
+    }
+
+    void log(InetAddress client, String method, String path, String version,
+             Reply reply, long startNanos) {
+        if (ring == null) {
+            return;
+        }
+
+        long pos = tail.get();
+        int i;
+        for (;;) {
+            i = (int) pos & mask;
+            long d = sequence.get(i) - pos;
+            if (d == 0) {
+                if (tail.compareAndSet(pos, pos + 1))
+                    break;
+                pos = tail.get();
+            } else if (d < 0) {
+                dropped.increment();            // full
+                return;
+            } else {
+                pos = tail.get();               // lost a race
+            }
+        }
+
+        Record r = ring[i];
+        r.time = System.currentTimeMillis();
+        r.nanos = System.nanoTime() - startNanos;
+        r.client = client;
+        r.method = method;
+        r.path = path;
+        r.version = version;
+        r.status = (reply != null) ? reply.code().number() : 0;
+        r.bytes = (reply != null) ? reply.bodyLength() : 0;
+        r.cache = (reply != null) ? reply.cacheStatus() : NO_CACHE;
+        sequence.lazySet(i, pos + 1);
+    }
+
+    // ------------------------------------------------------------------
+    // Writer thread
+    // ------------------------------------------------------------------
+
+    private void drain() {
+        long reported = 0;
+        for (;;) {
+            try {
+                int n = 0;
+                Record r;
+                while ((r = poll()) != null) {
+                    format(r);
+                    release();
+                    n++;
+                }
+
+                long d = dropped.sum();
+                if (d != reported) {
+                    line("dropped " + (d - reported) + " records\n");
+                    reported = d;
+                }
+
+                flush();
+                if (n == 0) {
+                    LockSupport.parkNanos(10_000_000L);
+                }
+            } catch (IOException x) {
+                System.err.println("AccessLog: " + x.toString());
+                out.clear();
+                LockSupport.parkNanos(1_000_000_000L);
+            }
+        }
+    }
+
+    private Record poll() {
+        int i = (int) head & mask;
+        return (sequence.get(i) == head + 1) ? ring[i] : null;
+    }
+
+    private void release() {
+        int i = (int) head & mask;
+        ring[i].client = null;
+        sequence.lazySet(i, head + mask + 1);
+        head++;
+    }
+
+    private static char[] CACHE = { '-', 'H', 'M' };
+
+    /*
+     * The client's own fields are cut to this many characters and
+     * marked with CUT, so that a line always fits in the buffer.
+     */
+    static private int MAX_FIELD = 8192;
+    static final String CUT = "...";
+
+    private static String cut(String s) {
+        return (s.length() > MAX_FIELD) ? s.substring(0, MAX_FIELD) + CUT : s;
+    }
+
+    private void format(Record r) throws IOException {
+        long second = r.time / 1000;
+        if (second != dateSecond) {
+            date = dateFormat.format(Instant.ofEpochSecond(second));
+            dateSecond = second;
+        }
+
+        StringBuilder sb = new StringBuilder(128);
+        sb.append(r.client != null ? r.client.getHostAddress() : "-")
+          .append(" - - [").append(date).append("] \"")
+          .append(cut(r.method)).append(' ').append(cut(r.path)).append(' ')
+          .append(r.version.equals("-") ? "-" : "HTTP/" + r.version)
+          .append("\" ")
+          .append(r.status).append(' ').append(r.bytes).append(' ')
+          .append(r.nanos / 1000).append(' ')
+          .append(CACHE[r.cache]).append('\n');
+        line(sb);
+    }
+
+    /*
+     * Paths are raw (percent-encoded), so everything here is ASCII.  s
+     * ends with a newline, which is written even if the rest can't be.
+     */
+    private void line(CharSequence s) throws IOException {
+        if (out.remaining() < s.length()) {
+            flush();
+        }
+        int n = Math.min(s.length(), out.remaining()) - 1;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            out.put((byte) (c < 0x80 ? c : '?'));
+        }
+        out.put((byte) '\n');
+    }
+
+    private void flush() throws IOException {
+        if (out.position() == 0) {
+            return;
+        }
+        out.flip();
+        while (out.hasRemaining()) {
+            written += fc.write(out);
+        }
+        out.clear();
+        if (written >= maxBytes) {
+            rotate();
+        }
+    }
+
+    private void open() throws IOException {
+        fc = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        written = fc.size();
+    }
+
+    private void rotate() throws IOException {
+        fc.close();
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path from = file.resolveSibling(file.getFileName() + "." + i);
+            if (Files.exists(from)) {
+                Files.move(from, file.resolveSibling(
+                        file.getFileName() + "." + (i + 1)),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 0) {
+            Files.move(file, file.resolveSibling(file.getFileName() + ".1"),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        open();
+    }
+}
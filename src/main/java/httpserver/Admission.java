@@ -0,0 +1,88 @@
+package httpserver;
+
+import java.nio.channels.*;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection admission control shared by all the listeners.
+ * <P>
+ * Every accepted connection takes a permit which is given back when
+ * its ChannelIO is closed.  When they run out, the listener asking
+ * for one stops selecting for OP_ACCEPT (new connections wait in the
+ * kernel backlog) until a connection closes.  A listener can also back
+ * off for a while, e.g. when accept() fails because we're out of file
+ * descriptors.
+ *
+ */
+class Admission {
+
+    private final int maxConnections;
+    private final AtomicInteger open = new AtomicInteger();
+
+    // Listener keys which stopped accepting for lack of permits
+    private final Queue<SelectionKey> paused = new ConcurrentLinkedQueue<>();
+
+    private static ScheduledExecutorService timer =
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "admission-timer");
+            t.setDaemon(true);
+            return t;
+        });
+
+    Admission(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    boolean tryAcquire() {
+        for (;;) {
+            int n = open.get();
+            if (n >= maxConnections) {
+                return false;
+            }
+            if (open.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        open.decrementAndGet();
+        SelectionKey sk = paused.poll();
+        if (sk != null) {
+            resume(sk);
+        }
+    }
+
+    int open() {
+        return open.get();
+    }
+
+    /*
+     * Stop accepting on sk until a permit is released.  A release may
+     * have happened between the failed tryAcquire() and here, so check
+     * again once the key is queued.
+     */
+    void pause(SelectionKey sk) {
+        sk.interestOps(0);
+        paused.add(sk);
+        if (open.get() < maxConnections && paused.remove(sk)) {
+            resume(sk);
+        }
+    }
+
+    void backOff(SelectionKey sk, long millis) {
+        sk.interestOps(0);
+        timer.schedule(() -> resume(sk), millis, TimeUnit.MILLISECONDS);
+    }
+
+    private static void resume(SelectionKey sk) {
+        try {
+            sk.interestOps(SelectionKey.OP_ACCEPT);
+            sk.selector().wakeup();
+        } catch (CancelledKeyException x) {
+            // listener closed
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package httpserver;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of equally sized ByteBuffers.
+ * <P>
+ * Buffers are handed out cleared.  Buffers of any other capacity
+ * (e.g. ones which were grown by their user) are not taken back.
+ *
+ */
+class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final boolean direct;
+
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    BufferPool(int bufferSize, int maxPooled, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.direct = direct;
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    ByteBuffer acquire() {
+        ByteBuffer bb = pool.poll();
+        if (bb == null) {
+            return direct ? ByteBuffer.allocateDirect(bufferSize)
+                          : ByteBuffer.allocate(bufferSize);
+        }
+        pooled.decrementAndGet();
+        bb.clear();
+        return bb;
+    }
+
+    void release(ByteBuffer bb) {
+        if (bb == null || bb.capacity() != bufferSize || bb.isDirect() != direct)
+            return;
+
+        if (pooled.incrementAndGet() > maxPooled) {
+            pooled.decrementAndGet();
+            return;
+        }
+        pool.offer(bb);
+    }
+}
@@ -0,0 +1,221 @@
+package httpserver;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single cached representation of a file: its bytes (either a
+ * mapped file region or a transcoded copy) and the validators
+ * that were computed for them when the entry was created.  For a file
+ * served uncached from the OpenFileCache, the open file instead of
+ * the bytes.
+ *
+ */
+class CacheEntry {
+
+    private final ByteBuffer bb;
+    private final OpenFileCache.OpenFile file;
+    private final String etag;
+    private final long lastModified;
+    private final String lastModifiedDate;
+
+    // For a variant: its charset; null for the file's own (UTF-8) bytes
+    private final Charset charset;
+
+    /*
+     * Encoded headers of the 304 reply for this entry.  They're built
+     * on first use and rebuilt when the second changes, since Expires
+     * moves along with the clock, or when the entry is reached through
+     * a path with another Freshness (a directory and its index.html).
+     */
+    private static class Encoded {
+        final long second;
+        final Freshness freshness;
+        final ByteBuffer bb;
+        Encoded(long second, Freshness freshness, ByteBuffer bb) {
+            this.second = second;
+            this.freshness = freshness;
+            this.bb = bb;
+        }
+    }
+    private volatile Encoded notModified = null;
+
+    // Set before the entry is published in one of the cache maps
+    private boolean cached = false;
+
+    /*
+     * Requests served from this entry, used to order the next cache
+     * load.  Updated without synchronization: a lost increment now and
+     * then doesn't matter for that.
+     */
+    private int hits = 0;
+
+    // Set while the entry's pages count against the prefault budget
+    private final AtomicBoolean prefaulted = new AtomicBoolean();
+
+    // Set by hit(), cleared as the SharedCache clock hand passes
+    private volatile boolean referenced = true;
+
+    // For objects pulled from an origin: its ETag, and until when the
+    // entry may be served without asking it again
+    private String originETag = null;
+    private volatile long freshUntil = Long.MAX_VALUE;
+
+    // Another entry for the same bytes, to be put in the cache
+    private CacheEntry(CacheEntry e) {
+        this.bb = e.bb;
+        this.file = e.file;
+        this.etag = e.etag;
+        this.lastModified = e.lastModified;
+        this.lastModifiedDate = e.lastModifiedDate;
+        this.charset = e.charset;
+        this.originETag = e.originETag;
+        this.freshUntil = e.freshUntil;
+        this.cached = true;
+    }
+
+    CacheEntry cachedCopy() {
+        return new CacheEntry(this);
+    }
+
+    /*
+     * The ETag comes from the size and modification time, not the
+     * bytes: hashing them would read (and page in) the whole file.
+     */
+    CacheEntry(ByteBuffer bb, long lastModified) {
+        this(bb, lastModified, etag(lastModified, bb.remaining()), null);
+    }
+
+    // For a variant in charset of another entry, with its validators
+    CacheEntry(ByteBuffer bb, long lastModified, String etag,
+               Charset charset) {
+        this.bb = bb;
+        this.file = null;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.lastModifiedDate = HttpDate.format(lastModified);
+        this.charset = charset;
+    }
+
+    // The validator nginx uses: mtime (in seconds) and size, in hex
+    static String etag(long lastModified, long size) {
+        return Long.toHexString(lastModified / 1000) + "-"
+                + Long.toHexString(size);
+    }
+
+    CacheEntry(OpenFileCache.OpenFile file) {
+        this.bb = null;
+        this.file = file;
+        this.etag = file.etag();
+        this.lastModified = file.lastModified;
+        this.lastModifiedDate = HttpDate.format(lastModified);
+        this.charset = null;
+    }
+
+    // Set if the bytes are to be sent from this file, not buffer()
+    OpenFileCache.OpenFile file() {
+        return file;
+    }
+
+    /*
+     * Every reply gets its own view of the shared bytes, so concurrent
+     * senders never disturb each other's position.
+     */
+    ByteBuffer buffer() {
+        return bb.duplicate();
+    }
+
+    String etag() {
+        return etag;
+    }
+
+    Charset charset() {
+        return charset;
+    }
+
+    boolean cached() {
+        return cached;
+    }
+
+    CacheEntry markCached() {
+        cached = true;
+        return this;
+    }
+
+    void hit() {
+        hits++;
+        if (!referenced) {
+            referenced = true;
+        }
+    }
+
+    // Returns whether the entry was referenced
+    boolean clearReferenced() {
+        boolean r = referenced;
+        referenced = false;
+        return r;
+    }
+
+    int hits() {
+        return hits;
+    }
+
+    /*
+     * Touch all the pages of a mapped file now.  The SharedCache counts
+     * them against its prefault budget until it lets go of the entry.
+     */
+    void prefault() {
+        prefaulted.set(true);
+        if (bb instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) bb).load();
+        }
+    }
+
+    // Returns true, once, if the entry was prefaulted
+    boolean releasePrefault() {
+        return prefaulted.getAndSet(false);
+    }
+
+    void fromOrigin(String etag, long freshUntil) {
+        this.originETag = etag;
+        this.freshUntil = freshUntil;
+    }
+
+    String originETag() {
+        return originETag;
+    }
+
+    boolean fresh(long now) {
+        return now < freshUntil;
+    }
+
+    // The origin said (304) the entry is still good
+    void revalidated(long freshUntil) {
+        this.freshUntil = freshUntil;
+    }
+
+    long length() {
+        return (file != null) ? file.size : bb.remaining();
+    }
+
+    long lastModified() {
+        return lastModified;
+    }
+
+    String lastModifiedDate() {
+        return lastModifiedDate;
+    }
+
+    // Returns null if there are none for this second and freshness yet
+    ByteBuffer notModifiedHeaders(long second, Freshness freshness) {
+        Encoded e = notModified;
+        return (e != null && e.second == second && e.freshness == freshness)
+                ? e.bb.duplicate() : null;
+    }
+
+    void notModifiedHeaders(long second, Freshness freshness, ByteBuffer bb) {
+        notModified = new Encoded(second, freshness, bb.asReadOnlyBuffer());
+    }
+}
@@ -0,0 +1,168 @@
+package httpserver;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+/**
+ * Fills the file cache.
+ * <P>
+ * The tree is listed in parallel (one fork-join task per directory),
+ * then the files are loaded by a pool of workers, hottest first: those
+ * named in the manifest in its order, then the rest by the number of
+ * hits they had since the previous load.  The loader prefaults
+ * (MappedByteBuffer.load()) the files it caches while the cache's
+ * prefault budget lasts, so that the first requests don't take page
+ * faults on a selector thread; the rest are only mapped.
+ *
+ */
+class CacheWarmer {
+
+    interface Loader {
+        void load(String relPath) throws IOException;
+    }
+
+    private static class Item {
+        final String relPath;
+        int rank;                   // in the manifest, or -1
+        int hits;
+        Item(String relPath) {
+            this.relPath = relPath;
+        }
+    }
+
+    // The manifest's files in its order, then the others by their hits
+    private static Comparator<Item> HOTTEST_FIRST = (a, b) -> {
+        if ((a.rank < 0) != (b.rank < 0))
+            return (a.rank < 0) ? 1 : -1;
+        if (a.rank >= 0)
+            return Integer.compare(a.rank, b.rank);
+        return Integer.compare(b.hits, a.hits);
+    };
+
+    private final ForkJoinPool pool;
+    private final long prefaultBytes;
+    private final Map<String, Integer> manifest = new HashMap<>();
+
+    /*
+     * manifest is a file of request paths (/folder/a.html), one per line,
+     * hottest first; it may be null.
+     */
+    CacheWarmer(int threads, long prefaultBytes, String manifest) {
+        this.pool = new ForkJoinPool(Math.max(threads, 1));
+        this.prefaultBytes = prefaultBytes;
+        if (manifest != null && !manifest.isEmpty()) {
+            try {
+                int rank = 0;
+                for (String line : Files.readAllLines(Paths.get(manifest))) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        this.manifest.putIfAbsent(
+                                line.replace('/', File.separatorChar), rank++);
+                    }
+                }
+            } catch (IOException x) {
+                System.err.println("CacheWarmer: can't read manifest: " + x);
+            }
+        }
+    }
+
+    // The prefault budget, for the cache
+    long prefaultBytes() {
+        return prefaultBytes;
+    }
+
+    /*
+     * Lists and loads everything under rootDir; returns the number of
+     * files loaded.  hits gives the recent hits of a path.
+     */
+    int warm(Path rootDir, ToIntFunction<String> hits, Loader loader) {
+        List<Item> items = pool.invoke(new ListTask(rootDir, rootDir));
+
+        for (Item item : items) {
+            item.rank = manifest.getOrDefault(item.relPath, -1);
+            item.hits = (item.rank < 0) ? hits.applyAsInt(item.relPath) : 0;
+        }
+        items.sort(HOTTEST_FIRST);
+
+        int total = items.size();
+        int step = Math.max(total / 10, 1);
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+
+        // Workers take the items in order, so the hottest go first
+        Runnable worker = () -> {
+            int i;
+            while ((i = next.getAndIncrement()) < total) {
+                Item item = items.get(i);
+                try {
+                    loader.load(item.relPath);
+                } catch (IOException x) {
+                    System.err.println("CacheWarmer: " + item.relPath + ": " + x);
+                }
+                int n = done.incrementAndGet();
+                if (total >= 100 && n % step == 0 && n < total) {
+                    System.out.println("Cache warm-up: " + n + "/" + total
+                            + " files");
+                }
+            }
+        };
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int t = 0; t < pool.getParallelism(); t++) {
+            tasks.add(pool.submit(worker));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+        return total;
+    }
+
+    /*
+     * Lists the regular files of one directory and forks a task for
+     * each subdirectory.
+     */
+    private static class ListTask extends RecursiveTask<List<Item>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path rootDir;
+        private final Path dir;
+
+        ListTask(Path rootDir, Path dir) {
+            this.rootDir = rootDir;
+            this.dir = dir;
+        }
+
+        protected List<Item> compute() {
+            List<Item> items = new ArrayList<>();
+            List<ListTask> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                for (Path path : ds) {
+                    BasicFileAttributes attrs = Files.readAttributes(
+                            path, BasicFileAttributes.class);
+                    if (attrs.isDirectory()) {
+                        ListTask task = new ListTask(rootDir, path);
+                        task.fork();
+                        subtasks.add(task);
+                    } else if (attrs.isRegularFile()) {
+                        // TODO: 01.03.2016  dirty hack with adding "/"
+                        String relPath = ("/" + rootDir.relativize(path))
+                                .replace('/', File.separatorChar);
+                        items.add(new Item(relPath));
+                    }
+                }
+            } catch (IOException x) {
+                System.err.println("CacheWarmer: " + dir + ": " + x);
+            }
+            for (ListTask task : subtasks) {
+                items.addAll(task.join());
+            }
+            return items;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package httpserver;
 
 import java.io.*;
+import java.net.*;
 import java.nio.*;
 import java.nio.channels.*;
 
@@ -21,6 +22,9 @@ class ChannelIO {
     protected ByteBuffer requestBB;
     static private int requestBBSize = 4096;
 
+    // Permit taken for this connection, given back on close()
+    private Admission admission = null;
+
     protected ChannelIO(SocketChannel sc, boolean blocking)
             throws IOException {
         this.sc = sc;
@@ -35,10 +39,33 @@ class ChannelIO {
         return cio;
     }
 
+    void admitted(Admission admission) {
+        this.admission = admission;
+    }
+
     SocketChannel getSocketChannel() {
         return sc;
     }
 
+    /*
+     * The address of sc's peer.  The peer of a Unix domain socket is on
+     * this host, so it's the loopback address, as if it came over TCP.
+     */
+    static InetAddress peerAddress(SocketChannel sc) {
+        try {
+            SocketAddress a = sc.getRemoteAddress();
+            if (a instanceof InetSocketAddress)
+                return ((InetSocketAddress) a).getAddress();
+        } catch (IOException x) {
+            // Closed already; whoever uses it next will find out
+        }
+        return InetAddress.getLoopbackAddress();
+    }
+
+    InetAddress remoteAddress() {
+        return peerAddress(sc);
+    }
+
     /*
      * Return a ByteBuffer with "remaining" space to work.  If you have to
      * reallocate the ByteBuffer, copy the existing info into the new buffer.
@@ -139,6 +166,10 @@ class ChannelIO {
      * Close the underlying connection.
      */
     void close() throws IOException {
+        if (admission != null) {
+            admission.release();
+            admission = null;
+        }
         sc.close();
     }
 
@@ -0,0 +1,559 @@
+package httpserver;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.net.ssl.*;
+import javax.net.ssl.SSLEngineResult.*;
+
+/**
+ * A helper class which performs I/O using the SSLEngine API.
+ * <P>
+ * Each connection has two network buffers (inNetBB/outNetBB) which
+ * hold TLS records, and the inherited requestBB which holds the
+ * decrypted request.  These are taken from shared pools and handed
+ * back on close().
+ * <P>
+ * Outbound application data is wrapped directly from the caller's
+ * buffer into outNetBB, so a MappedByteBuffer of a file is encrypted
+ * without first being copied onto the heap.
+ * <P>
+ * Handshake tasks (certificate and key exchange work) are run on a
+ * separate executor, so a slow handshake never stalls the selector
+ * thread.  While they run, the key has no interest ops.
+ *
+ */
+class ChannelIOSecure extends ChannelIO {
+
+    private SSLEngine sslEngine = null;
+
+    /*
+     * All I/O goes through these buffers.  They're pooled so we're
+     * not alloc/dealloc'ing ByteBuffer's for each new SSLEngine.
+     */
+    private static BufferPool netPool = null;
+    private static BufferPool appPool = null;
+    static private int maxPooled = 256;
+
+    private ByteBuffer inNetBB;
+    private ByteBuffer outNetBB;
+
+    /*
+     * An empty ByteBuffer for use when one isn't available, say
+     * as a source buffer during initial handshake wraps or close
+     * operations.
+     */
+    private static ByteBuffer hsBB = ByteBuffer.allocate(0);
+
+    /*
+     * Mapped window of the file being sent by transferTo().
+     */
+    private static long mapWindow = 1024 * 1024;
+    private FileChannel mappedFc = null;
+    private long mappedPos;
+    private MappedByteBuffer mappedBB = null;
+
+    private static ExecutorService taskExecutor =
+        Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "ssl-tasks");
+            t.setDaemon(true);
+            return t;
+        });
+
+    /*
+     * During our initial handshake, keep track of the next
+     * SSLEngine operation that needs to occur.
+     */
+    private volatile HandshakeStatus initialHSStatus;
+
+    /*
+     * Set while delegated tasks are running on taskExecutor.
+     */
+    private volatile boolean tasksPending = false;
+
+    /*
+     * Flag set when the initial handshake is complete.
+     */
+    private boolean initialHSComplete;
+
+    /*
+     * We have received the shutdown request by our caller, and have
+     * closed our outbound side.
+     */
+    private boolean shutdown = false;
+
+    private boolean closed = false;
+
+    /*
+     * Constructor for a secure ChannelIO variant.
+     */
+    protected ChannelIOSecure(SocketChannel sc, boolean blocking,
+            SSLContext sslc) throws IOException {
+        super(sc, blocking);
+
+        /*
+         * We're a server, so no need to use host/port variant.
+         *
+         * The first call for a server is a NEED_UNWRAP.
+         */
+        sslEngine = sslc.createSSLEngine();
+        sslEngine.setUseClientMode(false);
+
+        /*
+         * Offer HTTP/2 through ALPN.  A client which picks it starts with
+         * the HTTP/2 connection preface, which RequestHandler recognizes.
+         */
+        sslEngine.setHandshakeApplicationProtocolSelector(
+            (engine, protocols) ->
+                protocols.contains("h2") ? "h2" :
+                protocols.contains("http/1.1") ? "http/1.1" : "");
+        sslEngine.beginHandshake();
+        initialHSStatus = HandshakeStatus.NEED_UNWRAP;
+        initialHSComplete = false;
+    }
+
+    /*
+     * Static factory method for creating a secure ChannelIO object.
+     * <P>
+     * We need to allocate different sized application data buffers
+     * based on whether we're secure or not.  We can't determine
+     * this until our sslEngine is created.
+     */
+    static ChannelIOSecure getInstance(SocketChannel sc, boolean blocking,
+            SSLContext sslc) throws IOException {
+
+        ChannelIOSecure cio = new ChannelIOSecure(sc, blocking, sslc);
+        SSLSession session = cio.sslEngine.getSession();
+
+        initPools(session);
+        cio.requestBB = appPool.acquire();
+        cio.inNetBB = netPool.acquire();
+        cio.outNetBB = netPool.acquire();
+        cio.outNetBB.position(0);
+        cio.outNetBB.limit(0);
+
+        return cio;
+    }
+
+    private static synchronized void initPools(SSLSession session) {
+        if (netPool == null) {
+            netPool = new BufferPool(session.getPacketBufferSize(),
+                                     maxPooled, true);
+            appPool = new BufferPool(session.getApplicationBufferSize(),
+                                     maxPooled, false);
+        }
+    }
+
+    /*
+     * Calls up to the superclass to adjust the buffer size
+     * by an appropriate increment.
+     */
+    protected void resizeRequestBB() {
+        resizeRequestBB(appPool.bufferSize());
+    }
+
+    /*
+     * Writes bb to the SocketChannel.
+     * <P>
+     * Returns true when the ByteBuffer has no remaining data.
+     */
+    private boolean tryFlush(ByteBuffer bb) throws IOException {
+        sc.write(bb);
+        return !bb.hasRemaining();
+    }
+
+    private static void interest(SelectionKey sk, int ops) {
+        if (sk != null)
+            sk.interestOps(ops);
+    }
+
+    /*
+     * Perform any handshaking processing.
+     * <P>
+     * This variant is for Servers without SelectionKeys (e.g.
+     * blocking).
+     */
+    boolean doHandshake() throws IOException {
+        return doHandshake(null);
+    }
+
+    /*
+     * Perform any handshaking processing.
+     * <P>
+     * If a SelectionKey is passed, register for selectable
+     * operations.
+     * <P>
+     * In the blocking case, our caller will keep calling us until
+     * we finish the handshake.  Our reads/writes will block as expected.
+     * <P>
+     * In the non-blocking case, we just received the selection notification
+     * that this channel is ready for whatever the operation is, so give
+     * it a try.
+     * <P>
+     * return:
+     *          true when handshake is done.
+     *          false while handshake is in progress
+     */
+    boolean doHandshake(SelectionKey sk) throws IOException {
+
+        if (initialHSComplete) {
+            return true;
+        }
+
+        if (tasksPending) {
+            return false;
+        }
+
+        for (;;) {
+            /*
+             * Flush out the outgoing buffer, if there's anything left in
+             * it.
+             */
+            if (outNetBB.hasRemaining() && !tryFlush(outNetBB)) {
+                interest(sk, SelectionKey.OP_WRITE);
+                return false;
+            }
+
+            switch (initialHSStatus) {
+
+            case FINISHED:
+            case NOT_HANDSHAKING:
+                initialHSComplete = true;
+                interest(sk, SelectionKey.OP_READ);
+                return true;
+
+            case NEED_TASK:
+                if (sk == null) {
+                    runTasks();
+                    initialHSStatus = sslEngine.getHandshakeStatus();
+                    continue;
+                }
+                delegateTasks(sk);
+                return false;
+
+            case NEED_UNWRAP:
+                if (!unwrapHandshake()) {
+                    interest(sk, SelectionKey.OP_READ);
+                    return false;
+                }
+                continue;
+
+            case NEED_WRAP:
+                /*
+                 * The flush above guarantees the out buffer to be empty
+                 */
+                outNetBB.clear();
+                SSLEngineResult result = sslEngine.wrap(hsBB, outNetBB);
+                outNetBB.flip();
+
+                if (result.getStatus() != Status.OK) {
+                    throw new IOException("Received " + result.getStatus() +
+                        " during initial handshaking");
+                }
+                initialHSStatus = result.getHandshakeStatus();
+                continue;
+
+            default:
+                throw new IOException("Invalid Handshaking State " +
+                    initialHSStatus);
+            }
+        }
+    }
+
+    /*
+     * Unwrap one handshake record, reading more from the network
+     * if a full record isn't buffered yet.
+     * <P>
+     * Returns false if we have to wait for more data.
+     */
+    private boolean unwrapHandshake() throws IOException {
+        for (;;) {
+            resizeRequestBB();
+            inNetBB.flip();
+            SSLEngineResult result = sslEngine.unwrap(inNetBB, requestBB);
+            inNetBB.compact();
+
+            switch (result.getStatus()) {
+
+            case OK:
+                initialHSStatus = result.getHandshakeStatus();
+                return true;
+
+            case BUFFER_UNDERFLOW:
+                int n = sc.read(inNetBB);
+                if (n < 0) {
+                    sslEngine.closeInbound();
+                    throw new EOFException("Connection closed during handshake");
+                }
+                if (n == 0) {
+                    return false;
+                }
+                continue;
+
+            default:
+                throw new IOException("Received " + result.getStatus() +
+                    " during initial handshaking");
+            }
+        }
+    }
+
+    /*
+     * Do all the outstanding handshake tasks in the current Thread.
+     */
+    private void runTasks() {
+        Runnable runnable;
+        while ((runnable = sslEngine.getDelegatedTask()) != null) {
+            runnable.run();
+        }
+    }
+
+    /*
+     * Hand the outstanding handshake tasks to taskExecutor.  When they're
+     * done, the key is registered for OP_WRITE: write readiness is
+     * immediate, so the handler gets called again even if the rest of
+     * the peer's flight is already sitting in inNetBB.
+     */
+    private void delegateTasks(SelectionKey sk) {
+        tasksPending = true;
+        sk.interestOps(0);
+        taskExecutor.execute(() -> {
+            runTasks();
+            initialHSStatus = sslEngine.getHandshakeStatus();
+            tasksPending = false;
+            try {
+                sk.interestOps(SelectionKey.OP_WRITE);
+                sk.selector().wakeup();
+            } catch (CancelledKeyException x) {
+                // connection was closed in the meantime
+            }
+        });
+    }
+
+    /*
+     * Read the channel for more information, then unwrap the
+     * (hopefully application) data we get.
+     * <P>
+     * If we run out of data, we'll return to our caller (possibly using
+     * a Selector) to get notification that more is available.
+     * <P>
+     * Each call to this method will perform at most one underlying read().
+     */
+    int read() throws IOException {
+        SSLEngineResult result;
+
+        if (!initialHSComplete) {
+            throw new IllegalStateException();
+        }
+
+        int pos = requestBB.position();
+        int n = sc.read(inNetBB);
+
+        do {
+            resizeRequestBB();    // guarantees enough room for unwrap
+            inNetBB.flip();
+            result = sslEngine.unwrap(inNetBB, requestBB);
+            inNetBB.compact();
+
+            /*
+             * Could check here for a renegotation, but we're only
+             * doing a simple read/write, and won't have enough state
+             * transitions to do a complete handshake, so ignore that
+             * possibility.
+             */
+            switch (result.getStatus()) {
+
+            case BUFFER_UNDERFLOW:
+            case OK:
+                if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                }
+                break;
+
+            case CLOSED:
+                return (requestBB.position() > pos)
+                        ? requestBB.position() - pos : -1;
+
+            default:
+                throw new IOException("sslEngine error during data read: " +
+                    result.getStatus());
+            }
+        } while ((inNetBB.position() != 0) &&
+            result.getStatus() != Status.BUFFER_UNDERFLOW);
+
+        if (n < 0 && requestBB.position() == pos) {
+            try {
+                sslEngine.closeInbound();
+            } catch (SSLException x) {
+                // peer didn't send close_notify; nothing more will arrive anyway
+            }
+            return -1;
+        }
+
+        return (requestBB.position() - pos);
+    }
+
+    /*
+     * Try to write out as much as possible from the src buffer.
+     */
+    int write(ByteBuffer src) throws IOException {
+
+        if (!initialHSComplete) {
+            throw new IllegalStateException();
+        }
+
+        return doWrite(src);
+    }
+
+    /*
+     * Try to flush out any existing outbound data, then try to wrap
+     * anything new contained in the src buffer.  Keeps wrapping records
+     * while the socket accepts them.
+     * <P>
+     * Return the number of bytes actually consumed from the buffer,
+     * but the data may actually be still sitting in the output buffer,
+     * waiting to be flushed.
+     */
+    private int doWrite(ByteBuffer src) throws IOException {
+        int consumed = 0;
+
+        for (;;) {
+            if (outNetBB.hasRemaining() && !tryFlush(outNetBB)) {
+                return consumed;
+            }
+
+            if (!src.hasRemaining()) {
+                return consumed;
+            }
+
+            /*
+             * The data buffer is empty, we can reuse the entire buffer.
+             */
+            outNetBB.clear();
+            SSLEngineResult result = sslEngine.wrap(src, outNetBB);
+            outNetBB.flip();
+
+            if (result.getStatus() == Status.CLOSED) {
+                /*
+                 * The peer sent its close_notify and nobody will read the
+                 * rest, so discard it and let shutdown() finish up.
+                 */
+                consumed += src.remaining();
+                src.position(src.limit());
+                return consumed;
+            }
+            if (result.getStatus() != Status.OK) {
+                throw new IOException("sslEngine error during data write: " +
+                    result.getStatus());
+            }
+            if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                runTasks();
+            }
+            consumed += result.bytesConsumed();
+        }
+    }
+
+    /*
+     * Perform a FileChannel.TransferTo on the socket channel.
+     * <P>
+     * The data has to be encrypted, so there's no real sendfile; instead
+     * the file is mapped a window at a time and wrapped straight from
+     * the mapping.
+     */
+    long transferTo(FileChannel fc, long pos, long len) throws IOException {
+
+        if (!initialHSComplete) {
+            throw new IllegalStateException();
+        }
+
+        if (outNetBB.hasRemaining() && !tryFlush(outNetBB)) {
+            return 0;
+        }
+
+        if (mappedFc != fc || pos < mappedPos
+                || pos >= mappedPos + mappedBB.capacity()) {
+            mappedFc = fc;
+            mappedPos = pos;
+            mappedBB = fc.map(FileChannel.MapMode.READ_ONLY, pos,
+                              Math.min(mapWindow, fc.size() - pos));
+        }
+
+        ByteBuffer slice = mappedBB.duplicate();
+        slice.position((int)(pos - mappedPos));
+        slice.limit((int)Math.min(slice.capacity(),
+                                  slice.position() + len));
+        return doWrite(slice);
+    }
+
+    /*
+     * Flush any remaining data.
+     * <P>
+     * Return true when outNetBB is empty.
+     */
+    boolean dataFlush() throws IOException {
+        return tryFlush(outNetBB);
+    }
+
+    /*
+     * Begin the shutdown process.
+     * <P>
+     * Close out the SSLEngine if not already done so, then
+     * wrap our outgoing close_notify message and try to send it on.
+     * <P>
+     * Return true when we're done passing the shutdown messsages.
+     */
+    boolean shutdown() throws IOException {
+
+        if (closed) {
+            return true;
+        }
+
+        if (!shutdown) {
+            sslEngine.closeOutbound();
+            shutdown = true;
+        }
+
+        if (outNetBB.hasRemaining() && !tryFlush(outNetBB)) {
+            return false;
+        }
+
+        /*
+         * By RFC 2616, we can "fire and forget" our close_notify
+         * message, so that's what we'll do here.
+         */
+        outNetBB.clear();
+        SSLEngineResult result = sslEngine.wrap(hsBB, outNetBB);
+        if (result.getStatus() != Status.CLOSED) {
+            throw new SSLException("Improper close state");
+        }
+        outNetBB.flip();
+
+        /*
+         * We won't wait for a select here, but if this doesn't work,
+         * we'll cycle back through on the next select.
+         */
+        if (outNetBB.hasRemaining()) {
+            tryFlush(outNetBB);
+        }
+
+        return (!outNetBB.hasRemaining() &&
+                (result.getHandshakeStatus() != HandshakeStatus.NEED_WRAP));
+    }
+
+    /*
+     * close() the underlying channel and give the buffers back to
+     * their pools.
+     */
+    void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            netPool.release(inNetBB);
+            netPool.release(outNetBB);
+            appPool.release(requestBB);
+            mappedBB = null;
+            mappedFc = null;
+        }
+        super.close();
+    }
+}
@@ -0,0 +1,94 @@
+package httpserver;
+
+import java.nio.*;
+import java.nio.charset.*;
+
+/**
+ * Re-encodes text file bytes from one charset to another.
+ * <P>
+ * The source is decoded and encoded in small chunks, so that
+ * large files never need a full CharBuffer copy in memory.
+ * Characters which can't be represented in the target charset
+ * are replaced with the encoder's replacement ('?' for US-ASCII).
+ *
+ */
+class CharsetTranscoder {
+
+    static private int chunkSize = 8192;
+
+    private CharsetTranscoder() { }
+
+    static ByteBuffer transcode(ByteBuffer src, Charset from, Charset to)
+            throws CharacterCodingException {
+
+        CharsetDecoder decoder = from.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharsetEncoder encoder = to.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        ByteBuffer in = src.duplicate();
+        CharBuffer cb = CharBuffer.allocate(chunkSize);
+        ByteBuffer out = ByteBuffer.allocate(
+                (int)(in.remaining() * encoder.averageBytesPerChar()) + 16);
+
+        // The whole source is at hand, so the decoder always sees endOfInput
+        for (;;) {
+            CoderResult cr = decoder.decode(in, cb, true);
+            if (cr.isError())
+                cr.throwException();
+            out = drain(encoder, cb, out);
+            if (cr.isUnderflow())
+                break;
+        }
+        for (;;) {
+            CoderResult cr = decoder.flush(cb);
+            out = drain(encoder, cb, out);
+            if (cr.isUnderflow())
+                break;
+        }
+
+        cb.flip();
+        out = encode(encoder, cb, out, true);
+        while (encoder.flush(out).isOverflow()) {
+            out = grow(out);
+        }
+
+        out.flip();
+        return out.asReadOnlyBuffer();
+    }
+
+    /*
+     * Encode whatever has been decoded so far.  A dangling high
+     * surrogate is kept in cb for the next round.
+     */
+    private static ByteBuffer drain(CharsetEncoder encoder, CharBuffer cb,
+                                    ByteBuffer out)
+            throws CharacterCodingException {
+        cb.flip();
+        out = encode(encoder, cb, out, false);
+        cb.compact();
+        return out;
+    }
+
+    private static ByteBuffer encode(CharsetEncoder encoder, CharBuffer cb,
+                                     ByteBuffer out, boolean endOfInput)
+            throws CharacterCodingException {
+        for (;;) {
+            CoderResult cr = encoder.encode(cb, out, endOfInput);
+            if (cr.isError())
+                cr.throwException();
+            if (cr.isUnderflow())
+                return out;
+            out = grow(out);
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer out) {
+        ByteBuffer bb = ByteBuffer.allocate(out.capacity() * 2 + 16);
+        out.flip();
+        bb.put(out);
+        return bb;
+    }
+}
@@ -0,0 +1,278 @@
+package httpserver;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The nodes of a cluster sharing one cache between them.
+ * <P>
+ * Every object has an owner, chosen by consistent hashing of its site
+ * and path over the nodes (each node is VNODES points on the ring, so
+ * adding or removing one only moves the objects next to its points).
+ * Only the owner caches the object; the other nodes get it from the
+ * owner over their persistent peer connections instead of mapping it
+ * from the shared storage, and don't keep it.  Concurrent requests for
+ * the same object are collapsed into one fetch, as for an origin.
+ * <P>
+ * Objects above maxBytes, and anything the owner can't deliver, are
+ * served from the shared storage after all; an owner which can't be
+ * reached is left alone for a while.
+ *
+ */
+class Cluster {
+
+    // Marks the requests of one node to another: they are never passed on.
+    // Only believed when they come from the address of a peer.
+    static final String PEER_HEADER = "x-cluster-peer";
+
+    private static int VNODES = 160;
+    private static long DOWN_MILLIS = 1000;
+
+    private final String self;
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final Map<String, InetSocketAddress> addresses = new HashMap<>();
+    private final Set<InetAddress> peerHosts = new HashSet<>();
+    private final long timeout;
+    private final long maxBytes;
+
+    // Until when a peer that failed is not asked, by name
+    private final Map<String, Long> downUntil = new ConcurrentHashMap<>();
+
+    // Each event loop's connections, by peer name; used only by that loop
+    private final Map<Selector, Map<String, PeerConnection>> connections =
+        new ConcurrentHashMap<>();
+
+    // Waiters of the fetches in progress, by key
+    private final Map<String, List<Origin.Waiter>> inFlight = new HashMap<>();
+
+    private static ScheduledThreadPoolExecutor timer =
+        new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "cluster-timer");
+            t.setDaemon(true);
+            return t;
+        });
+    static {
+        // A finished fetch leaves the queue with its cancelled timeout
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /*
+     * peers are "host:port" names of all the nodes, self included, the
+     * same on every node; self is this node's name among them.
+     */
+    Cluster(List<String> peers, String self, long timeout, long maxBytes) {
+        if (!peers.contains(self)) {
+            throw new IllegalArgumentException(
+                    "clusterSelf " + self + " is not in clusterPeers");
+        }
+        this.self = self;
+        this.timeout = timeout;
+        this.maxBytes = maxBytes;
+        for (String peer : peers) {
+            int colon = peer.lastIndexOf(':');
+            InetSocketAddress address = new InetSocketAddress(
+                    peer.substring(0, colon),
+                    Integer.parseInt(peer.substring(colon + 1)));
+            addresses.put(peer, address);
+            if (!peer.equals(self) && address.getAddress() != null) {
+                peerHosts.add(address.getAddress());
+            }
+            for (int i = 0; i < VNODES; i++) {
+                ring.put(hash(peer + "#" + i), peer);
+            }
+        }
+    }
+
+    // 64 bit FNV-1a, then the MurmurHash3 finalizer to spread it
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb93fe1a85ec1L;
+        h ^= (h >>> 33);
+        return h;
+    }
+
+    // Whether a request from client may be a peer's
+    boolean isPeer(InetAddress client) {
+        return peerHosts.contains(client);
+    }
+
+    String owner(String key) {
+        Map.Entry<Long, String> e = ring.ceilingEntry(hash(key));
+        return (e != null ? e : ring.firstEntry()).getValue();
+    }
+
+    boolean owns(String key) {
+        return owner(key).equals(self);
+    }
+
+    /*
+     * The peer to ask for key, or null if it's ours (or its owner is
+     * down) and we serve it ourselves.
+     */
+    String peerFor(String key) {
+        String owner = owner(key);
+        if (owner.equals(self)) {
+            return null;
+        }
+        Long until = downUntil.get(owner);
+        if (until != null) {
+            if (System.currentTimeMillis() < until)
+                return null;
+            downUntil.remove(owner, until);
+        }
+        return owner;
+    }
+
+    /*
+     * GETs path (with authority) from peer and tells waiter.  Runs on
+     * the thread of sel; waiters which join a running fetch are told on
+     * the thread of whoever started it.
+     */
+    void fetch(String key, String peer, String authority, String path,
+               Selector sel, Origin.Waiter waiter) {
+        synchronized (inFlight) {
+            List<Origin.Waiter> waiters = inFlight.get(key);
+            if (waiters != null) {
+                waiters.add(waiter);
+                return;
+            }
+            waiters = new ArrayList<>();
+            waiters.add(waiter);
+            inFlight.put(key, waiters);
+        }
+
+        PeerConnection connection;
+        try {
+            connection = connection(sel, peer);
+        } catch (IOException x) {
+            down(peer);
+            done(key, null, x);
+            return;
+        }
+
+        OneShot listener = new OneShot(key, peer, path, connection);
+        listener.timeout(timer.schedule(() -> {
+            if (listener.fail(new IOException("Peer timed out: " + peer))) {
+                // Whatever held it up may hold up the others too
+                connection.abandon();
+                down(peer);
+            }
+        }, timeout, TimeUnit.MILLISECONDS));
+        connection.fetch(authority, path, listener);
+    }
+
+    private PeerConnection connection(Selector sel, String peer)
+            throws IOException {
+        Map<String, PeerConnection> mine =
+            connections.computeIfAbsent(sel, s -> new HashMap<>());
+        PeerConnection c = mine.get(peer);
+        if (c == null || !c.usable()) {
+            PeerConnection fresh = new PeerConnection(addresses.get(peer),
+                    maxBytes, closed -> mine.remove(peer, closed));
+            fresh.start(sel);
+            mine.put(peer, fresh);
+            c = fresh;
+        }
+        return c;
+    }
+
+    private void down(String peer) {
+        downUntil.put(peer, System.currentTimeMillis() + DOWN_MILLIS);
+    }
+
+    private void done(String key, CacheEntry entry, IOException failure) {
+        List<Origin.Waiter> waiters;
+        synchronized (inFlight) {
+            waiters = inFlight.remove(key);
+        }
+        for (Origin.Waiter w : waiters) {
+            w.ready(entry, failure);
+        }
+    }
+
+    /*
+     * The listener of one fetch: the first of the answer and the timeout
+     * wins.
+     */
+    private class OneShot implements OriginFetch.Listener {
+
+        private final String key, peer, path;
+        private final PeerConnection connection;
+        private boolean done = false;
+        private Future<?> timeout = null;
+
+        OneShot(String key, String peer, String path,
+                PeerConnection connection) {
+            this.key = key;
+            this.peer = peer;
+            this.path = path;
+            this.connection = connection;
+        }
+
+        private synchronized boolean once() {
+            if (done)
+                return false;
+            done = true;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            return true;
+        }
+
+        synchronized void timeout(Future<?> timeout) {
+            if (done) {
+                timeout.cancel(false);
+            } else {
+                this.timeout = timeout;
+            }
+        }
+
+        public void fetched(int status, Map<String, String> headers,
+                            ByteBuffer body) {
+            if (!once())
+                return;
+            if (status == 404 || status == 410) {
+                done(key, null, new FileNotFoundException(
+                        path + " (peer " + peer + ": " + status + ")"));
+                return;
+            }
+            if (status != 200) {
+                done(key, null, new IOException(
+                        path + " (peer " + peer + ": " + status + ")"));
+                return;
+            }
+            long lastModified = HttpDate.parse(
+                    headers.getOrDefault("last-modified", ""));
+            done(key, new CacheEntry(body, (lastModified >= 0)
+                    ? lastModified : System.currentTimeMillis()), null);
+        }
+
+        // Returns true if this was the outcome
+        boolean fail(IOException x) {
+            if (!once())
+                return false;
+            if (!connection.usable()) {
+                down(peer);
+            }
+            done(key, null, x);
+            return true;
+        }
+
+        public void failed(IOException x) {
+            fail(x);
+        }
+    }
+}
@@ -11,7 +11,11 @@ interface Content extends Sendable {
     String type();
     String etag();
 
-    // Returns -1 until prepare() invoked
+    // HTTP-date, empty if unknown
+    String lastModified();
+
+    // Returns -1 until prepare() invoked, or while it isn't known
+    // (content rendered as it's sent)
     long length();
 
 }
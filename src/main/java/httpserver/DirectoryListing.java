@@ -0,0 +1,233 @@
+package httpserver;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * A Content listing a directory, autoindex style, rendered as it's
+ * sent: a few KB of the page at a time, straight from the directory
+ * stream, so a huge directory is never held in memory (nor sorted; the
+ * entries come in directory order).  Its length isn't known until the
+ * end, which the end of the connection (or stream) tells the client.
+ * <P>
+ * While the page is small enough the bytes are kept as they go out,
+ * and handed to whoever wants to cache it once it is complete.
+ *
+ */
+class DirectoryListing implements Content {
+
+    /**
+     * Gets the complete page (UTF-8), if it was no bigger than the
+     * limit, and the directory's modification time.
+     */
+    interface Rendered {
+        void rendered(ByteBuffer page, long lastModified);
+    }
+
+    private static int CHUNK = 4096;
+    private static DateTimeFormatter DATE =
+        DateTimeFormatter.ofPattern("dd-MMM-yyyy HH:mm", Locale.ROOT)
+                         .withZone(ZoneOffset.UTC);
+
+    private final Path dir;
+    private final String uriPath;
+    private final Charset charset;
+    private final int keepBytes;
+    private final Rendered rendered;
+
+    private DirectoryStream<Path> stream = null;
+    private Iterator<Path> entries;
+    private long lastModified;
+    private boolean footer = false;
+    private ByteBuffer chunk = null;
+    private ByteBuffer kept = null;
+    private long length = 0;
+    private boolean done = false;
+
+    /*
+     * uriPath is the (decoded) path of the request, for the title.
+     * rendered, if not null, gets pages of up to keepBytes.
+     */
+    DirectoryListing(Path dir, String uriPath, Charset charset,
+                     int keepBytes, Rendered rendered) {
+        this.dir = dir;
+        this.uriPath = uriPath;
+        this.charset = charset;
+        this.keepBytes = keepBytes;
+        this.rendered = (charset.equals(StandardCharsets.UTF_8))
+                ? rendered : null;
+    }
+
+    public String type() {
+        return "text/html; charset=" + charset.name();
+    }
+
+    @Override
+    public String etag() {
+        return "";
+    }
+
+    @Override
+    public String lastModified() {
+        return "";
+    }
+
+    public long length() {
+        return done ? length : -1;
+    }
+
+    public void prepare() throws IOException {
+        lastModified = Files.getLastModifiedTime(dir).toMillis();
+        stream = Files.newDirectoryStream(dir);
+        entries = stream.iterator();
+        if (rendered != null) {
+            kept = ByteBuffer.allocate(Math.min(keepBytes, 64 * 1024));
+        }
+
+        String title = escape(uriPath);
+        chunk = encode(new StringBuilder()
+                .append("<html>\n<head><title>Index of ").append(title)
+                .append("</title></head>\n<body>\n<h1>Index of ").append(title)
+                .append("</h1><hr><pre><a href=\"../\">../</a>\n"));
+    }
+
+    public boolean send(ChannelIO cio) throws IOException {
+        if (chunk == null)
+            throw new IllegalStateException();
+        for (;;) {
+            if (chunk.hasRemaining()) {
+                cio.write(chunk);
+                if (chunk.hasRemaining())
+                    return true;
+            }
+            if (footer) {
+                finish();
+                return false;
+            }
+            chunk = next();
+        }
+    }
+
+    // The next few KB of the page
+    private ByteBuffer next() throws IOException {
+        StringBuilder sb = new StringBuilder(CHUNK + 512);
+        try {
+            while (sb.length() < CHUNK && entries.hasNext()) {
+                line(sb, entries.next());
+            }
+        } catch (DirectoryIteratorException x) {
+            throw x.getCause();
+        }
+        if (!entries.hasNext()) {
+            sb.append("</pre><hr></body>\n</html>\n");
+            footer = true;
+        }
+        return encode(sb);
+    }
+
+    private void line(StringBuilder sb, Path path) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException x) {
+            return;                 // gone meanwhile
+        }
+        String name = path.getFileName().toString();
+        String slash = attrs.isDirectory() ? "/" : "";
+
+        sb.append("<a href=\"").append(encodeName(name)).append(slash)
+          .append("\">").append(escape(name + slash)).append("</a>");
+        for (int i = name.length() + slash.length(); i < 51; i++) {
+            sb.append(' ');
+        }
+        sb.append(DATE.format(Instant.ofEpochMilli(
+                attrs.lastModifiedTime().toMillis())));
+        String size = attrs.isDirectory() ? "-" : Long.toString(attrs.size());
+        for (int i = size.length(); i < 20; i++) {
+            sb.append(' ');
+        }
+        sb.append(size).append('\n');
+    }
+
+    private ByteBuffer encode(StringBuilder sb) {
+        ByteBuffer bb = charset.encode(CharBuffer.wrap(sb));
+        length += bb.remaining();
+        if (kept != null) {
+            if (kept.position() + bb.remaining() > keepBytes) {
+                kept = null;        // too big to keep
+            } else {
+                if (kept.remaining() < bb.remaining()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(Math.min(
+                            keepBytes, 2 * (kept.position() + bb.remaining())));
+                    kept.flip();
+                    bigger.put(kept);
+                    kept = bigger;
+                }
+                kept.put(bb.duplicate());
+            }
+        }
+        return bb;
+    }
+
+    private void finish() throws IOException {
+        done = true;
+        if (kept != null) {
+            kept.flip();
+            rendered.rendered(kept, lastModified);
+            kept = null;
+        }
+        release();
+    }
+
+    public void release() throws IOException {
+        if (stream != null) {
+            DirectoryStream<Path> s = stream;
+            stream = null;
+            s.close();
+        }
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '&': sb.append("&amp;"); break;
+                case '<': sb.append("&lt;"); break;
+                case '>': sb.append("&gt;"); break;
+                case '"': sb.append("&quot;"); break;
+                default: sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    // Percent-encoded UTF-8, all but the unreserved characters
+    private static String encodeName(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            int c = b & 0xff;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9')
+                    || c == '-' || c == '.' || c == '_' || c == '~') {
+                sb.append((char) c);
+            } else {
+                sb.append('%').append(Character.toUpperCase(
+                        Character.forDigit(c >> 4, 16)))
+                  .append(Character.toUpperCase(
+                        Character.forDigit(c & 0xf, 16)));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -2,28 +2,93 @@ package httpserver;
 
 import java.io.*;
 import java.nio.channels.*;
-import java.util.Iterator;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import jdk.jfr.FlightRecorder;
 
 /**
  * A Multi-threaded dispatcher.
  * <P>
  * Servers use these to obtain ready status, and then to dispatch jobs.
- * One thread does accepts, and the second does read/writes.
+ * Each Dispatcher is one event loop: it accepts on its listener(s)
+ * and does the read/writes of the connections accepted there.
+ * <P>
+ * Every handle() does a bounded amount of writing (the handlers' write
+ * quantum), and each round starts one key further along than the one
+ * before, so the ready connections take turns instead of the same ones
+ * always going first.
+ * <P>
+ * There are two ways to run the loop (the transport).  "nio" goes over
+ * the Selector's selected-key set as above.  "direct" has select()
+ * hand each ready key straight to its handler (Selector.select(Consumer),
+ * JDK 11 and later), so no selected-key set is filled and cleared and
+ * no Iterator is made per round; on Linux the keys then come in epoll's
+ * ready-list order, which already rotates.  "auto" is direct.
+ * <P>
+ * Either way the loop waits for ready keys as its WaitStrategy says:
+ * blocking, or busy-polling for lower latency.
  *
  */
 
 class Dispatcher {
 
     private Selector sel;
+    private boolean direct;
+    private WaitStrategy wait;
+    private String name = "-";
+    private volatile Thread thread = null;
+
+    // Told when each round starts and ends, to know the loop's lag
+    private LoadShedder shedder;
+    private boolean roundStarted = false;
+
+    private static List<Dispatcher> all = new CopyOnWriteArrayList<>();
+
+    static {
+        FlightRecorder.addPeriodicEvent(Events.EventLoopLoad.class, () -> {
+            for (Dispatcher d : all) {
+                d.report();
+            }
+        });
+    }
 
-    Dispatcher() throws IOException {
+    Dispatcher(boolean direct, WaitStrategy wait, LoadShedder shedder)
+            throws IOException {
         sel = Selector.open();
+        this.direct = direct;
+        this.wait = wait;
+        this.shedder = shedder;
+        all.add(this);
+    }
+
+    LoadShedder shedder() {
+        return shedder;
+    }
+
+    /*
+     * Resolves the transport named in the config to "direct" or "nio".
+     */
+    static String transport(String name) {
+        if (name.equals("nio")) {
+            return "nio";
+        }
+        if (!name.equals("direct") && !name.equals("auto")) {
+            throw new IllegalArgumentException("Unknown transport: " + name);
+        }
+        return "direct";
     }
 
     public void run() {
+        thread = Thread.currentThread();
+        name = thread.getName();
+        wait.start();
         for (;;) {
             try {
-                dispatch();
+                if (direct) {
+                    dispatchDirect();
+                } else {
+                    dispatch();
+                }
             } catch (IOException x) {
                 x.printStackTrace();
             }
@@ -32,23 +97,93 @@ class Dispatcher {
 
     private Object gate = new Object();
 
+    private List<SelectionKey> ready = new ArrayList<>();
+    private int turn = 0;
+
     private void dispatch() throws IOException {
-        sel.select();
-        for (Iterator i = sel.selectedKeys().iterator(); i.hasNext(); ) {
-            SelectionKey sk = (SelectionKey)i.next();
-            i.remove();
-            Handler h = (Handler)sk.attachment();
-            h.handle(sk);
+        wait.poll(sel, null);
+        Set<SelectionKey> selected = sel.selectedKeys();
+        if (selected.isEmpty()) {
+            // Woken up, or a busy poll which found nothing
+            synchronized (gate) { }
+            return;
+        }
+        ready.addAll(selected);
+        selected.clear();
+        shedder.roundStarted();
+
+        try {
+            int n = ready.size();
+            int first = (n > 0) ? (turn++ & Integer.MAX_VALUE) % n : 0;
+            for (int i = 0; i < n; i++) {
+                SelectionKey sk = ready.get((first + i) % n);
+                // An earlier handler of this round may have closed it
+                if (!sk.isValid())
+                    continue;
+                Handler h = (Handler)sk.attachment();
+                h.handle(sk);
+            }
+        } finally {
+            ready.clear();
+            shedder.roundEnded();
+        }
+        synchronized (gate) { }
+    }
+
+    private void dispatchDirect() throws IOException {
+        try {
+            wait.poll(sel, this::handle);
+        } catch (UncheckedIOException x) {
+            throw x.getCause();
+        } finally {
+            if (roundStarted) {
+                roundStarted = false;
+                shedder.roundEnded();
+            }
         }
         synchronized (gate) { }
     }
 
+    private void handle(SelectionKey sk) {
+        if (!roundStarted) {
+            roundStarted = true;
+            shedder.roundStarted();
+        }
+        // An earlier handler of this round may have closed it
+        if (!sk.isValid())
+            return;
+        try {
+            ((Handler)sk.attachment()).handle(sk);
+        } catch (IOException x) {
+            throw new UncheckedIOException(x);
+        }
+    }
+
+    /*
+     * From another thread, the loop is woken up and held at the gate
+     * until the channel is in.  The loop's own handlers (an Acceptor)
+     * register straight away: it isn't in select(), and a wakeup would
+     * only make its next one return empty.
+     */
     public void register(SelectableChannel ch, int ops, Handler h)
             throws IOException {
+        if (Thread.currentThread() == thread) {
+            ch.register(sel, ops, h);
+            return;
+        }
         synchronized (gate) {
-            sel.wakeup();
+            wait.wakeup(sel);
             ch.register(sel, ops, h);
+            wait.unpark();
         }
     }
 
+    private void report() {
+        Events.EventLoopLoad e = new Events.EventLoopLoad();
+        e.loop = name;
+        shedder.report(e);
+        wait.report(e);
+        e.commit();
+    }
+
 }
\ No newline at end of file
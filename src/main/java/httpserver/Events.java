@@ -0,0 +1,224 @@
+package httpserver;
+
+import jdk.jfr.*;
+
+/**
+ * The server's own Flight Recorder events, for lining requests up with
+ * GC pauses, safepoints and page faults in a recording.
+ * <P>
+ * Events are built the usual JFR way: created, begun and committed in
+ * place (or only kept in a field after isEnabled() said yes), so with
+ * no recording running they cost nothing.  The duration events have a
+ * threshold below which they're dropped; httpserver.jfc (in the
+ * resources) records them all.
+ *
+ */
+class Events {
+
+    private static final String CATEGORY = "HTTP Server";
+
+    @Name("httpserver.ConnectionAccepted")
+    @Label("Connection Accepted")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class ConnectionAccepted extends Event {
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("TLS")
+        boolean secure;
+    }
+
+    @Name("httpserver.RequestParsed")
+    @Label("Request Parsed")
+    @Description("From the connection's accept (HTTP/1.x, so including "
+            + "the TLS handshake) or the stream's HEADERS (HTTP/2) until "
+            + "the request is parsed")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static class RequestParsed extends Event {
+        @Label("Method")
+        String method;
+
+        @Label("Path")
+        String path;
+
+        @Label("Host")
+        String host;
+
+        @Label("Protocol")
+        String protocol;
+    }
+
+    @Name("httpserver.ContentResolved")
+    @Label("Content Resolved")
+    @Description("Looking a file up in the cache, or mapping it")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static class ContentResolved extends Event {
+        @Label("Site")
+        String site;
+
+        @Label("Path")
+        String path;
+
+        @Label("Outcome")
+        @Description("hit, miss (mapped and cached), mapped (uncached) or "
+                + "open (uncached, from the open file cache)")
+        String outcome;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("httpserver.FirstByteWritten")
+    @Label("First Byte Written")
+    @Description("From the reply being built until its headers are "
+            + "written (HTTP/1.x) or framed (HTTP/2)")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static class FirstByteWritten extends Event {
+        @Label("Status")
+        int status;
+    }
+
+    @Name("httpserver.ReplyCompleted")
+    @Label("Reply Completed")
+    @Description("From the request being parsed until the reply is "
+            + "completely sent, or the connection fails")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static class ReplyCompleted extends Event {
+        @Label("Method")
+        String method;
+
+        @Label("Path")
+        String path;
+
+        @Label("Protocol")
+        String protocol;
+
+        @Label("Status")
+        int status;
+
+        @Label("Body Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Cache")
+        @Description("H (hit), M (miss) or - (not a file)")
+        char cache;
+    }
+
+    @Name("httpserver.CacheReload")
+    @Label("Cache Reload")
+    @Description("Loading a site's files into the cache")
+    @Category(CATEGORY)
+    @Threshold("0 ms")
+    static class CacheReload extends Event {
+        @Label("Site")
+        String site;
+
+        @Label("Files")
+        int files;
+
+        @Label("Cached")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("httpserver.EventLoopLoad")
+    @Label("Event Loop Load")
+    @Description("Queueing delay, lag, load shedding and polling of one "
+            + "event loop")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    @Period("1 s")
+    static class EventLoopLoad extends Event {
+        @Label("Event Loop")
+        String loop;
+
+        @Label("Queue Delay")
+        @Description("The smallest queueing delay of the last interval")
+        @Timespan(Timespan.NANOSECONDS)
+        long queueDelay;
+
+        @Label("Loop Lag")
+        @Description("The longest round of the loop since the last event")
+        @Timespan(Timespan.NANOSECONDS)
+        long loopLag;
+
+        @Label("Overloaded")
+        boolean overloaded;
+
+        @Label("Requests Shed")
+        @Description("Since the start")
+        long shed;
+
+        @Label("Requests Served")
+        @Description("Since the start, while shedding is on")
+        long served;
+
+        @Label("Iterations")
+        @Description("Waits for ready keys since the start")
+        long iterations;
+
+        @Label("Empty Polls")
+        @Description("Waits which found nothing ready")
+        long emptyPolls;
+
+        @Label("Parks")
+        @Description("Pauses of a spinpark loop")
+        long parks;
+
+        @Label("Blocking Selects")
+        @Description("Waits of a spinning loop over its CPU budget")
+        long blocks;
+    }
+
+    /*
+     * e begun, if a recording wants it; null otherwise.  For events kept
+     * in a field until they're committed.
+     */
+    static <E extends Event> E begin(E e) {
+        if (!e.isEnabled())
+            return null;
+        e.begin();
+        return e;
+    }
+
+    static void requestParsed(RequestParsed e, Request request,
+                              String protocol) {
+        if (e == null || !e.shouldCommit())
+            return;
+        e.method = request.action().toString();
+        e.path = request.uri().getRawPath();
+        e.host = request.uri().getHost();
+        e.protocol = protocol;
+        e.commit();
+    }
+
+    static void replyCompleted(ReplyCompleted e, String method, String path,
+                               String protocol, Reply reply) {
+        if (e == null || !e.shouldCommit())
+            return;
+        e.method = method;
+        e.path = path;
+        e.protocol = protocol;
+        if (reply != null) {
+            e.status = reply.code().number();
+            e.bytes = reply.bodyLength();
+            byte cache = reply.cacheStatus();
+            e.cache = (cache == AccessLog.CACHE_HIT) ? 'H'
+                    : (cache == AccessLog.CACHE_MISS) ? 'M' : '-';
+        } else {
+            e.cache = '-';
+        }
+        e.commit();
+    }
+}
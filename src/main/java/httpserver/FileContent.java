@@ -1,28 +1,52 @@
 package httpserver;
 
 import java.io.*;
-import java.nio.MappedByteBuffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
- * A Content type that provides for transferring files.
+ * A Content type that provides for transferring files: from the
+ * entry's bytes, or with transferTo() from its open file.
  *
  */
 class FileContent implements Content {
 
-    private MappedByteBuffer mbb = null;
+    private CacheEntry entry;
+    private ByteBuffer bb = null;
+    private FileChannel fc = null;
+    private long position = 0;
     private String charset;
     private String extension;
     private String type = null;
 
-    FileContent(MappedByteBuffer mbb,
+    /*
+     * The entry must already hold the file in acceptCharset
+     * (see FileContentManager.getFileContent(String, Charset)).
+     */
+    FileContent(CacheEntry entry,
                 String extension, String acceptCharset) {
 
-        this.mbb = mbb;
+        this.entry = entry;
         this.extension = extension;
         this.charset = acceptCharset.equalsIgnoreCase("US-ASCII")
                 ? acceptCharset : "UTF-8";
     }
 
+    CacheEntry entry() {
+        return entry;
+    }
+
+    static boolean isText(String extension) {
+        switch (extension) {
+            case "txt":
+            case "html":
+            case "js":
+                return true;
+            default:
+                return false;
+        }
+    }
+
     public String type() {
         if (type != null)
             return type;
@@ -47,26 +71,51 @@ class FileContent implements Content {
 
     @Override
     public String etag() {
-        return String.valueOf(mbb.hashCode());
+        return entry.etag();
+    }
+
+    @Override
+    public String lastModified() {
+        return entry.lastModifiedDate();
     }
 
     public long length() {
-        return mbb.remaining();
+        return entry.length();
     }
 
     public void prepare() throws IOException {
-        if (mbb == null)
+        if (entry == null)
             throw new IOException();
-        mbb.rewind();
+        if (entry.file() != null) {
+            fc = entry.file().acquire();
+            position = 0;
+        } else {
+            bb = entry.buffer();
+        }
     }
 
     public boolean send(ChannelIO cio) throws IOException {
-        if (mbb == null)
+        if (fc != null) {
+            long size = entry.length();
+            long n = cio.transferTo(fc, position, size - position);
+            if (n == 0 && position >= fc.size()) {
+                // Truncated since it was opened
+                throw new IOException("File changed while being sent");
+            }
+            position += n;
+            return position < size;
+        }
+        if (bb == null)
             throw new IllegalStateException();
-        cio.write(mbb);
-        return mbb.hasRemaining();
+        cio.write(bb);
+        return bb.hasRemaining();
     }
 
     public void release() throws IOException {
+        if (fc != null) {
+            FileChannel channel = fc;
+            fc = null;
+            entry.file().release(channel);
+        }
     }
 }
@@ -1,111 +1,635 @@
 package httpserver;
 
+import org.apache.commons.io.FilenameUtils;
 import java.io.*;
+import java.net.InetAddress;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.Selector;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * The files of one site (document root), and its view of the shared
+ * file cache.
+ *
+ */
 public class FileContentManager {
 
     /**
-     * The file cache which contains buffers of files which have been requested.
+     * This site's part of the file cache.  Besides the files, it holds
+     * transcoded variants of text files, keyed by path and charset.
+     * Files on disk are UTF-8, so only other charsets get an entry.
+     */
+    private SharedCache.Site cache;
+
+    /**
+     * Charsets whose variants are built ahead of time, while (re)loading
+     * the cache.  Any other variant that's missing is built on the
+     * transcoder thread before the request goes on (see pull()), so
+     * that a selector thread doesn't transcode.  Without the cache,
+     * variants are kept with the open file.
+     */
+    private static Charset[] VARIANT_CHARSETS = { StandardCharsets.US_ASCII };
+
+    /*
+     * One thread: a variant asked for again while it's being built is
+     * found built when its turn comes, so it's only built once.
      */
-    private Map<String, MappedByteBuffer> fileCache = new ConcurrentHashMap<>();
+    private static ExecutorService transcoder =
+        Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "transcoder");
+            t.setDaemon(true);
+            return t;
+        });
     private boolean useCache;
     private Path rootDir;
+    private FreshnessPolicy freshnessPolicy;
+    private CacheWarmer warmer;
+
+    // Set when this site is an edge cache in front of an origin server
+    private Origin origin;
+
+    // Set in cluster mode: other nodes own (and cache) some of the files
+    private Cluster cluster;
 
+    // Without the cache: files are sent from here, if set
+    private OpenFileCache openFiles;
+
+    /*
+     * Directories without an index.html are listed if autoindex is set.
+     * Listings of up to listingBytes are cached (UTF-8, under the path
+     * with its trailing separator) until the watcher sees the directory
+     * change; listingEpoch moves on every such change, so a listing
+     * rendered meanwhile is not cached.
+     */
+    private boolean autoindex;
+    private int listingBytes;
+    private final AtomicLong listingEpoch = new AtomicLong();
 
-    public FileContentManager(Path _rootDir, boolean _useCache) {
+    // Set when caching: the watcher, and the listed directories it watches
+    private WatchService watcher;
+    private WatchKey rootKey;
+    private final Map<WatchKey, String> listedDirs = new ConcurrentHashMap<>();
+
+    public FileContentManager(Path _rootDir, boolean _useCache,
+                              FreshnessPolicy _freshnessPolicy,
+                              CacheWarmer _warmer, SharedCache _cache,
+                              Origin _origin, Cluster _cluster,
+                              OpenFileCache _openFiles,
+                              boolean _autoindex, int _listingBytes) {
         rootDir = _rootDir;
         useCache = _useCache;
+        freshnessPolicy = _freshnessPolicy;
+        warmer = _warmer;
+        cache = _cache.site(rootDir.toString());
+        origin = _origin;
+        cluster = _cluster;
+        openFiles = _useCache ? null : _openFiles;
+        autoindex = _autoindex;
+        listingBytes = _listingBytes;
 
-        if (useCache) {
+        // An edge cache fills up from the origin, as requests come
+        if (useCache && origin == null) {
             try {
-                reloadFileCache();
                 fileCacheWatchService();
             } catch (IOException e) {
                 System.err.println("Can't start caching!");
                 System.exit(-1);
             }
+
+            // Requests are served (uncached) while the cache fills up
+            Thread t = new Thread(() -> {
+                try {
+                    reloadFileCache();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, "cache-warm-up " + rootDir);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /*
+     * The path of a request (with File.separatorChar), normalized and
+     * relative to the root: "/a/./b", "/a//b" and "/c/../a/b" are all
+     * "/a/b", so that a file has a single key in the cache.  A trailing
+     * separator is kept.  Throws FileNotFoundException for a path that
+     * leads out of the root, into another site or anywhere else.
+     */
+    String normalize(String path) throws FileNotFoundException {
+        Path base = rootDir.toAbsolutePath().normalize();
+        Path p;
+        try {
+            p = base.resolve("." + File.separator + path).normalize();
+        } catch (InvalidPathException x) {
+            throw new FileNotFoundException(path + " (Bad path)");
+        }
+        if (!p.startsWith(base)) {
+            throw new FileNotFoundException(path + " (Outside of the site)");
+        }
+        String rel = File.separator + base.relativize(p);
+        if (path.endsWith(File.separator) && !rel.endsWith(File.separator)) {
+            rel += File.separator;
+        }
+        return rel;
+    }
+
+    // The file of a path normalize() gave; no other path has one
+    private File file(String path) throws FileNotFoundException {
+        if (!normalize(path).equals(path)) {
+            throw new FileNotFoundException(path + " (Not normalized)");
         }
+        return new File(rootDir.toFile(), path);
+    }
+
+    /*
+     * Cache-Control/Expires for the given request path, or null.
+     */
+    Freshness getFreshness(String uriPath) {
+        return freshnessPolicy.lookup(uriPath);
     }
 
-    public MappedByteBuffer getFileContent(String path) throws IOException
+    public CacheEntry getFileContent(String path) throws IOException
     {
+        Events.ContentResolved resolved = new Events.ContentResolved();
+        resolved.begin();
+
         // Caching
-        if (useCache && fileCache.containsKey(path)) {
-            return fileCache.get(path);
+        String outcome = "hit";
+        CacheEntry entry = useCache ? cache.get(path) : null;
+        if (entry == null && origin != null) {
+            // Evicted since pull() found it fresh; the local root is not
+            // a copy of the origin, so there's nothing to fall back on
+            throw new IOException(path + " (evicted before it was sent)");
+        }
+        if (entry == null) {
+            entry = loadFile(path);
+            if (useCache) {
+                // Evicted, or new since the last reload
+                cache.put(path, entry.cachedCopy(), true);
+                outcome = "miss";
+            } else {
+                outcome = "mapped";
+            }
         }
 
-        // No caching or cache does not contain resource for some reason
-        File file = new File(rootDir.getFileName().toFile(), path);
-        FileChannel fc = new RandomAccessFile(file, "r").getChannel();
-        MappedByteBuffer mbb = fc.map(FileChannel.MapMode.READ_ONLY, 0, file.length());
-        //System.out.println(file.getName() + " " + mbb.remaining() + " " + file.length());
-        return mbb;
+        if (resolved.shouldCommit()) {
+            resolved.site = rootDir.toString();
+            resolved.path = path;
+            resolved.outcome = outcome;
+            resolved.bytes = entry.length();
+            resolved.commit();
+        }
+        return entry;
     }
 
-    private void reloadFileCache() throws IOException {
+    /*
+     * Returns the representation of path in the given charset.  Binary
+     * files and UTF-8 requests get the file as is; text files in other
+     * charsets get a transcoded variant, which is cached alongside the file.
+     */
+    public CacheEntry getFileContent(String path, Charset charset)
+            throws IOException
+    {
+        CacheEntry entry = (openFiles != null)
+                ? openFile(path) : getFileContent(path);
+        return getFileContent(path, entry, charset);
+    }
+
+    private CacheEntry openFile(String path) throws IOException {
+        Events.ContentResolved resolved = new Events.ContentResolved();
+        resolved.begin();
+        OpenFileCache.OpenFile file = openFiles.get(rootDir + "\0" + path,
+                new File(rootDir.toFile(), path).toPath());
+        if (resolved.shouldCommit()) {
+            resolved.site = rootDir.toString();
+            resolved.path = path;
+            resolved.outcome = "open";
+            resolved.bytes = file.size;
+            resolved.commit();
+        }
+        return file.entry;
+    }
+
+    private static boolean needsVariant(String path, Charset charset) {
+        return !charset.equals(StandardCharsets.UTF_8)
+                && FileContent.isText(extension(path));
+    }
+
+    // The type of path; a directory (path ending with a separator) is listed
+    static String extension(String path) {
+        return path.endsWith(File.separator)
+                ? "html" : FilenameUtils.getExtension(path);
+    }
+
+    /*
+     * Whether this site is an edge cache, which serves whatever the
+     * origin has for a path, directories included.
+     */
+    boolean isEdge() {
+        return origin != null;
+    }
+
+    boolean isDirectory(String path) {
         try {
-            Files.walkFileTree(rootDir, new SimpleFileVisitor<Path>() {
-                @Override
-                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs)
-                        throws IOException  {
-
-                    // TODO: 01.03.2016  dirty hack with adding "/"
-                    String relPath = ("/" + rootDir.relativize(path)).replace('/', File.separatorChar);
-
-                    // Очистка, чтобы не забирать из того же кэша
-                    if (fileCache.containsKey(relPath)) {
-                        //fileCache.get(relPath).reset();
-                        fileCache.remove(relPath);
-                    }
+            return file(path).isDirectory();
+        } catch (FileNotFoundException x) {
+            return false;
+        }
+    }
 
-                    fileCache.put(relPath, getFileContent(relPath));
-                    return FileVisitResult.CONTINUE;
+    /*
+     * The index.html of the directory dirPath (ending with a separator),
+     * or null if it has none.  A cached listing says there's none,
+     * without asking the disk.
+     */
+    String index(String dirPath) {
+        try {
+            file(dirPath);
+        } catch (FileNotFoundException x) {
+            return null;
+        }
+        String index = dirPath + "index.html";
+        if (useCache) {
+            if (cache.current(index) != null)
+                return index;
+            if (cache.current(dirPath) != null)
+                return null;
+        }
+        return new File(rootDir.toFile(), index).isFile() ? index : null;
+    }
+
+    /*
+     * The cached listing of the directory dirPath in the given charset,
+     * or null if it isn't cached.
+     */
+    CacheEntry cachedListing(String dirPath, Charset charset)
+            throws IOException {
+        if (!useCache)
+            return null;
+        CacheEntry entry = cache.get(dirPath);
+        return (entry != null) ? getFileContent(dirPath, entry, charset) : null;
+    }
+
+    /*
+     * A listing of the directory dirPath, rendered as it is sent; cached
+     * once complete, if small enough.  uriPath is for its title.  Throws
+     * FileNotFoundException if there's no such directory, or if this
+     * site doesn't list directories.
+     */
+    Content listing(String dirPath, String uriPath, Charset charset)
+            throws IOException {
+        Path dir = file(dirPath).toPath();
+        if (!autoindex || !Files.isDirectory(dir)) {
+            throw new FileNotFoundException(dir + " (No index)");
+        }
+
+        Events.ContentResolved resolved = new Events.ContentResolved();
+        resolved.begin();
+        DirectoryListing.Rendered rendered = null;
+        if (useCache && watcher != null && listingBytes > 0) {
+            watch(dir, dirPath);
+            long epoch = listingEpoch.get();
+            rendered = (page, lastModified) -> {
+                if (listingEpoch.get() == epoch) {
+                    cache.put(dirPath,
+                            new CacheEntry(page, lastModified).markCached(),
+                            true);
+                }
+            };
+        }
+        if (resolved.shouldCommit()) {
+            resolved.site = rootDir.toString();
+            resolved.path = dirPath;
+            resolved.outcome = "listing";
+            resolved.bytes = -1;
+            resolved.commit();
+        }
+        return new DirectoryListing(dir, uriPath, charset,
+                listingBytes, rendered);
+    }
+
+    private void watch(Path dir, String dirPath) throws IOException {
+        WatchKey key = dir.register(watcher,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        listedDirs.put(key, dirPath);
+    }
+
+    /*
+     * The directory changed: its listing (and variants) are stale, and
+     * so may be its index.html, which decides whether it's listed.
+     */
+    private void forgetListing(String dirPath) {
+        listingEpoch.incrementAndGet();
+        for (String path : new String[] { dirPath, dirPath + "index.html" }) {
+            for (Charset charset : VARIANT_CHARSETS) {
+                cache.remove(variantKey(path, charset));
+            }
+            cache.remove(path);
+        }
+    }
+
+    /*
+     * Same, for an entry already at hand (e.g. just pulled from the
+     * origin, or a variant pull() had built).  A variant that went
+     * missing since pull() looked is built here after all.
+     */
+    public CacheEntry getFileContent(String path, CacheEntry entry,
+                                     Charset charset) throws IOException
+    {
+        if (!needsVariant(path, charset) || charset.equals(entry.charset())) {
+            return entry;
+        }
+
+        CacheEntry variant = storedVariant(path, entry, charset);
+        if (variant != null) {
+            return variant;
+        }
+
+        variant = transcode(entry, charset);
+        if (entry.file() != null) {
+            CacheEntry built = entry.file().variants.putIfAbsent(
+                    charset, variant);
+            return (built != null) ? built : variant;
+        }
+        if (useCache && cache.current(path) == entry) {
+            cache.put(variantKey(path, charset), variant.markCached(), true);
+        }
+        return variant;
+    }
+
+    // The variant kept for entry (the file at path), or null
+    private CacheEntry storedVariant(String path, CacheEntry entry,
+                                     Charset charset) {
+        if (entry.file() != null) {
+            return entry.file().variants.get(charset);
+        }
+        return useCache ? cache.peek(variantKey(path, charset)) : null;
+    }
+
+    /*
+     * Has the variant of path that the request wants built on the
+     * transcoder thread, unless there's none to build; the waiter then
+     * gets it (or nothing, if path is no file: build() finds out what
+     * it is).  Returns false if there's nothing to wait for.
+     */
+    private boolean buildVariant(String path, Charset charset,
+                                 Origin.Waiter waiter) {
+        if (!needsVariant(path, charset)) {
+            return false;
+        }
+        if (path.endsWith(File.separator)) {
+            // Its index.html, or its cached listing, if any; a listing
+            // that isn't cached is rendered in the charset as it goes
+            String index = index(path);
+            if (index != null) {
+                path = index;
+            } else if (!useCache || cache.current(path) == null) {
+                return false;
+            }
+        }
+        try {
+            CacheEntry entry = (openFiles != null) ? openFile(path)
+                    : useCache ? cache.current(path) : null;
+            if (entry != null && storedVariant(path, entry, charset) != null) {
+                return false;
+            }
+        } catch (IOException x) {
+            return false;           // build() answers it
+        }
+
+        String file = path;
+        transcoder.execute(() -> {
+            CacheEntry variant = null;
+            try {
+                variant = getFileContent(file, charset);
+            } catch (IOException x) {
+                // Not a file after all
+            }
+            waiter.ready(variant, null);
+        });
+        return true;
+    }
+
+    // Has waiter told the variant of what it gets, built on the transcoder
+    private Origin.Waiter variantFor(String path, Charset charset,
+                                     Origin.Waiter waiter) {
+        if (!needsVariant(path, charset)) {
+            return waiter;
+        }
+        return (entry, failure) -> {
+            if (entry == null) {
+                waiter.ready(null, failure);
+                return;
+            }
+            transcoder.execute(() -> {
+                try {
+                    waiter.ready(getFileContent(path, entry, charset), null);
+                } catch (IOException x) {
+                    waiter.ready(null, x);
                 }
             });
-            System.out.println("Cache is up-to-date. " +
-                    "Cached Files: " + fileCache.size());
-        } catch (IOException e) {
-            System.err.println("Cache updating error!");
+        };
+    }
+
+    /*
+     * In cluster mode, path is fetched from its owner if that's another
+     * node, unless a peer (at client) asks for it.  For an edge cache:
+     * unless path is in the cache and fresh, get it from the origin
+     * (revalidating what we have).  Either way this returns true, and
+     * the waiter is then told on the thread of sel, or on a thread of
+     * some other connection's Selector if a fetch for path was already
+     * running.  A request for a variant that isn't built yet also
+     * waits, for the transcoder thread.  Returns false if we can answer
+     * right away.
+     */
+    boolean pull(Request request, String requestPath, InetAddress client,
+                 Selector sel, Origin.Waiter waiter) {
+        String path;
+        try {
+            path = normalize(requestPath);
+        } catch (FileNotFoundException x) {
+            return false;           // build() answers it
+        }
+        String uriPath = request.uri().getRawPath();
+        Origin.Waiter variantWaiter = variantFor(path,
+                RequestHandler.charset(request), waiter);
+        boolean fromPeer = cluster != null && cluster.isPeer(client)
+                && request.header(Cluster.PEER_HEADER) != null;
+        if (cluster != null && !fromPeer) {
+            String key = clusterKey(path);
+            String peer = cluster.peerFor(key);
+            if (peer != null) {
+                String authority = request.uri().getRawAuthority();
+                cluster.fetch(key, peer,
+                        (authority != null) ? authority : "localhost",
+                        uriPath, sel, (entry, failure) -> {
+                    if (failure != null
+                            && !(failure instanceof FileNotFoundException)
+                            && origin == null) {
+                        // Too big for a peer fetch, or the owner failed:
+                        // it's on the shared storage all the same
+                        try {
+                            entry = loadFile(path);
+                            failure = null;
+                        } catch (IOException x) {
+                            failure = x;
+                        }
+                    }
+                    variantWaiter.ready(entry, failure);
+                });
+                return true;
+            }
         }
+
+        if (origin == null) {
+            return buildVariant(path, RequestHandler.charset(request), waiter);
+        }
+        CacheEntry stale = useCache ? cache.current(path) : null;
+        if (stale != null && stale.fresh(System.currentTimeMillis())) {
+            return buildVariant(path, RequestHandler.charset(request), waiter);
+        }
+        origin.fetch(rootDir + "\0" + path, uriPath, stale, sel,
+                result -> store(path, stale, result), variantWaiter);
+        return true;
+    }
+
+    private void store(String path, CacheEntry stale, Origin.Result result) {
+        if (!useCache || result.entry == stale) {
+            return;                 // revalidated in place
+        }
+        for (Charset charset : VARIANT_CHARSETS) {
+            cache.remove(variantKey(path, charset));
+        }
+        if (result.store) {
+            cache.put(path, result.entry.cachedCopy(), true);
+        } else {
+            cache.remove(path);
+        }
+    }
+
+    // The same on every node, for the same site and file
+    private String clusterKey(String path) {
+        return rootDir + ":" + path.replace(File.separatorChar, '/');
+    }
+
+    private static String variantKey(String path, Charset charset) {
+        return path + ";" + charset.name();
+    }
+
+    private static CacheEntry transcode(CacheEntry entry, Charset charset)
+            throws IOException
+    {
+        ByteBuffer bytes = (entry.file() != null)
+                ? entry.file().map() : entry.buffer();
+        return new CacheEntry(CharsetTranscoder.transcode(
+                bytes, StandardCharsets.UTF_8, charset),
+                entry.lastModified(),
+                entry.etag() + "-" + charset.name().toLowerCase(), charset);
+    }
+
+    private CacheEntry loadFile(String path) throws IOException
+    {
+        // No caching or cache does not contain resource for some reason
+        File file = new File(rootDir.toFile(), path);
+        // The mapping stays valid after the channel is closed
+        try (FileChannel fc = new RandomAccessFile(file, "r").getChannel()) {
+            MappedByteBuffer mbb = fc.map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            //System.out.println(file.getName() + " " + mbb.remaining() + " " + file.length());
+            return new CacheEntry(mbb, file.lastModified());
+        }
+    }
+
+    private void reloadFileCache() throws IOException {
+        Events.CacheReload reload = new Events.CacheReload();
+        reload.begin();
+        int files = warmer.warm(rootDir, relPath -> {
+            CacheEntry old = cache.current(relPath);
+            return (old != null) ? old.hits() : 0;
+        }, this::cacheFile);
+        if (reload.shouldCommit()) {
+            reload.site = rootDir.toString();
+            reload.files = files;
+            reload.bytes = cache.bytes();
+            reload.commit();
+        }
+        System.out.println("Cache is up-to-date. " +
+                "Files: " + files + " (" + cache + ")");
+    }
+
+    private void cacheFile(String relPath) throws IOException {
+        // Other nodes cache theirs
+        if (cluster != null && !cluster.owns(clusterKey(relPath))) {
+            cache.remove(relPath);
+            return;
+        }
+        CacheEntry entry = loadFile(relPath);
+
+        // The hottest files are loaded first; the rest only fill what's left
+        CacheEntry old = cache.current(relPath);
+        boolean replace = (old != null);
+        if (!replace && !cache.fits(entry.length())) {
+            return;
+        }
+        cache.prefault(entry, old);
+
+        // Variants first, so a new file never meets a stale variant
+        for (Charset charset : VARIANT_CHARSETS) {
+            String key = variantKey(relPath, charset);
+            if (FileContent.isText(FilenameUtils.getExtension(relPath))) {
+                cache.put(key, transcode(entry, charset).markCached(), false);
+            } else {
+                cache.remove(key);
+            }
+        }
+        cache.put(relPath, entry.markCached(), replace);
     }
 
     private void fileCacheWatchService() throws IOException {
+        watcher = rootDir.getFileSystem().newWatchService();
+        rootKey = rootDir.register(watcher,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
         new Thread(() -> {
-            WatchService watcher = null;
-            try {
-                watcher = rootDir.getFileSystem().newWatchService();
-                rootDir.register(watcher,
-                        StandardWatchEventKinds.ENTRY_CREATE,
-                        StandardWatchEventKinds.ENTRY_DELETE,
-                        StandardWatchEventKinds.ENTRY_MODIFY);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
             while (true) {
                 WatchKey key = null;
                 try {
                     key = watcher.take();
                 } catch (InterruptedException e) {
                     e.printStackTrace();
+                    continue;
                 }
 
                 if (!key.pollEvents().isEmpty()) {
-                    try {
-                        // TODO: 29.02.2016
-                        reloadFileCache();
-                    } catch (IOException e) {
-                        e.printStackTrace();
+                    String dirPath = listedDirs.get(key);
+                    if (dirPath != null) {
+                        forgetListing(dirPath);
                     }
+                    if (key == rootKey) {
+                        try {
+                            // TODO: 29.02.2016
+                            reloadFileCache();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+                if (!key.reset()) {
+                    listedDirs.remove(key);
                 }
-                key.reset();
             }
         }).start();
     }
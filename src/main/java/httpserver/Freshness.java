@@ -0,0 +1,54 @@
+package httpserver;
+
+import java.util.regex.*;
+
+/**
+ * How long clients and caches may reuse a reply without revalidating
+ * it: a Cache-Control value, and the Expires date derived from its
+ * max-age for HTTP/1.0 caches.
+ *
+ */
+class Freshness {
+
+    private static Pattern maxAgePattern = Pattern.compile("max-age=(\\d+)");
+
+    private String cacheControl;
+    private long maxAge;            // seconds, -1 if not given
+
+    /*
+     * Expires only changes once a second, so the last one is kept.
+     */
+    private static class Expires {
+        final long second;
+        final String date;
+        Expires(long second, String date) {
+            this.second = second;
+            this.date = date;
+        }
+    }
+    private volatile Expires expires = new Expires(-1, null);
+
+    Freshness(String cacheControl) {
+        this.cacheControl = cacheControl.trim();
+        Matcher m = maxAgePattern.matcher(this.cacheControl);
+        this.maxAge = m.find() ? Long.parseLong(m.group(1)) : -1;
+    }
+
+    String cacheControl() {
+        return cacheControl;
+    }
+
+    // Returns null if there's no max-age to derive it from
+    String expires(long now) {
+        if (maxAge < 0)
+            return null;
+
+        long second = now / 1000;
+        Expires e = expires;
+        if (e.second != second) {
+            e = new Expires(second, HttpDate.format((second + maxAge) * 1000));
+            expires = e;
+        }
+        return e.date;
+    }
+}
@@ -0,0 +1,74 @@
+package httpserver;
+
+import org.apache.commons.io.FilenameUtils;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Maps request paths to their Freshness.
+ * <P>
+ * Rules come from the configuration, one per line:
+ *
+ *     cacheControl.jpg = public, max-age=86400
+ *     cacheControl./folder2/** = no-cache
+ *
+ * A rule is either a bare file extension or a glob over the request
+ * path (starting with "/", or containing glob characters).  Globs are
+ * tried first, longest pattern first, then extensions.  Paths which
+ * match no rule get no Cache-Control at all.
+ * <P>
+ * Nothing is remembered per path: request paths are up to the client,
+ * and a map of them would grow with every alias it cares to send.
+ * Only the (few) globs are matched against the path; extensions are a
+ * single lookup.
+ *
+ */
+class FreshnessPolicy {
+
+    private static String PREFIX = "cacheControl.";
+
+    private static class Rule {
+        final String pattern;
+        final PathMatcher matcher;
+        final Freshness freshness;
+        Rule(String pattern, PathMatcher matcher, Freshness freshness) {
+            this.pattern = pattern;
+            this.matcher = matcher;
+            this.freshness = freshness;
+        }
+    }
+
+    private List<Rule> globs = new ArrayList<>();
+    private Map<String, Freshness> extensions = new HashMap<>();
+
+    FreshnessPolicy(Properties properties) {
+        FileSystem fs = FileSystems.getDefault();
+
+        for (String key : properties.stringPropertyNames()) {
+            if (!key.startsWith(PREFIX))
+                continue;
+
+            String pattern = key.substring(PREFIX.length());
+            Freshness freshness = new Freshness(properties.getProperty(key));
+            if (pattern.startsWith("/") || pattern.matches(".*[*?\\[{].*")) {
+                globs.add(new Rule(pattern,
+                        fs.getPathMatcher("glob:" + pattern), freshness));
+            } else {
+                extensions.put(pattern.toLowerCase(), freshness);
+            }
+        }
+        globs.sort((a, b) -> b.pattern.length() - a.pattern.length());
+    }
+
+    // path is the request URI path; returns null if no rule matches
+    Freshness lookup(String path) {
+        if (!globs.isEmpty()) {
+            Path p = Paths.get(path);
+            for (Rule rule : globs) {
+                if (rule.matcher.matches(p))
+                    return rule.freshness;
+            }
+        }
+        return extensions.get(FilenameUtils.getExtension(path).toLowerCase());
+    }
+}
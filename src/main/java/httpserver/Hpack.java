@@ -0,0 +1,408 @@
+package httpserver;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541).
+ * <P>
+ * The Decoder keeps the peer's dynamic table and understands every
+ * representation, including Huffman coded strings.  Our own header
+ * blocks are small and mostly made of static table entries, so the
+ * Encoder never indexes: it emits indexed fields for exact static
+ * matches and plain literals without indexing for the rest.
+ *
+ */
+class Hpack {
+
+    private static Charset latin1 = StandardCharsets.ISO_8859_1;
+
+    /*
+     * The static table (RFC 7541, appendix A).  Index 0 is unused.
+     */
+    private static String[][] STATIC_TABLE = {
+        null,
+        { ":authority", "" },
+        { ":method", "GET" },
+        { ":method", "POST" },
+        { ":path", "/" },
+        { ":path", "/index.html" },
+        { ":scheme", "http" },
+        { ":scheme", "https" },
+        { ":status", "200" },
+        { ":status", "204" },
+        { ":status", "206" },
+        { ":status", "304" },
+        { ":status", "400" },
+        { ":status", "404" },
+        { ":status", "500" },
+        { "accept-charset", "" },
+        { "accept-encoding", "gzip, deflate" },
+        { "accept-language", "" },
+        { "accept-ranges", "" },
+        { "accept", "" },
+        { "access-control-allow-origin", "" },
+        { "age", "" },
+        { "allow", "" },
+        { "authorization", "" },
+        { "cache-control", "" },
+        { "content-disposition", "" },
+        { "content-encoding", "" },
+        { "content-language", "" },
+        { "content-length", "" },
+        { "content-location", "" },
+        { "content-range", "" },
+        { "content-type", "" },
+        { "cookie", "" },
+        { "date", "" },
+        { "etag", "" },
+        { "expect", "" },
+        { "expires", "" },
+        { "from", "" },
+        { "host", "" },
+        { "if-match", "" },
+        { "if-modified-since", "" },
+        { "if-none-match", "" },
+        { "if-range", "" },
+        { "if-unmodified-since", "" },
+        { "last-modified", "" },
+        { "link", "" },
+        { "location", "" },
+        { "max-forwards", "" },
+        { "proxy-authenticate", "" },
+        { "proxy-authorization", "" },
+        { "range", "" },
+        { "referer", "" },
+        { "refresh", "" },
+        { "retry-after", "" },
+        { "server", "" },
+        { "set-cookie", "" },
+        { "strict-transport-security", "" },
+        { "transfer-encoding", "" },
+        { "user-agent", "" },
+        { "vary", "" },
+        { "via", "" },
+        { "www-authenticate", "" },
+    };
+
+    private static Map<String, Integer> staticNames = new HashMap<>();
+    private static Map<String, Integer> staticFields = new HashMap<>();
+
+    /*
+     * Huffman code (right aligned) and its length in bits for every
+     * octet, plus EOS at 256 (RFC 7541, appendix B).
+     */
+    private static int[] HUFFMAN_CODES = {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5,
+        0xfffffe6, 0xfffffe7, 0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9,
+        0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec, 0xfffffed, 0xfffffee,
+        0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+        0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9,
+        0xffffffa, 0xffffffb, 0x14, 0x3f8, 0x3f9, 0xffa,
+        0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa, 0x3fb,
+        0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+        0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b,
+        0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb,
+        0x7ffc, 0x20, 0xffb, 0x3fc, 0x1ffa, 0x21,
+        0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+        0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+        0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e,
+        0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73,
+        0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+        0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5,
+        0x25, 0x26, 0x27, 0x6, 0x74, 0x75,
+        0x28, 0x29, 0x2a, 0x7, 0x2b, 0x76,
+        0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+        0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd,
+        0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8,
+        0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda,
+        0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+        0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1,
+        0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5,
+        0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd,
+        0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+        0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf,
+        0x7fffeb, 0x7fffec, 0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2,
+        0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2,
+        0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+        0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2,
+        0x3fffe8, 0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde,
+        0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3,
+        0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+        0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3,
+        0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed, 0x1fffe6,
+        0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb,
+        0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+        0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8,
+        0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed,
+        0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+        0x3fffffff
+    };
+
+    private static byte[] HUFFMAN_LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+        30
+    };
+
+    /*
+     * Huffman decoding tree: node n has children tree[2n] (bit 0) and
+     * tree[2n + 1] (bit 1).  A negative entry -(sym + 1) is a leaf.
+     */
+    private static int[] tree;
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i > 0; i--) {
+            staticNames.put(STATIC_TABLE[i][0], i);
+            staticFields.put(STATIC_TABLE[i][0] + "\0" + STATIC_TABLE[i][1], i);
+        }
+
+        tree = new int[2 * 2 * HUFFMAN_CODES.length];
+        int nodes = 1;
+        for (int sym = 0; sym < HUFFMAN_CODES.length; sym++) {
+            int node = 0;
+            for (int bit = HUFFMAN_LENGTHS[sym] - 1; bit >= 0; bit--) {
+                int slot = 2 * node + ((HUFFMAN_CODES[sym] >>> bit) & 1);
+                if (bit == 0) {
+                    tree[slot] = -(sym + 1);
+                } else {
+                    if (tree[slot] == 0) {
+                        tree[slot] = nodes++;
+                    }
+                    node = tree[slot];
+                }
+            }
+        }
+    }
+
+    private Hpack() { }
+
+    /**
+     * Decoding context for one connection.  Header blocks must be
+     * fed in the order they arrived, since they update the table.
+     */
+    static class Decoder {
+
+        // Newest entry first
+        private List<String[]> dynamicTable = new ArrayList<>();
+        private int tableSize = 0;
+        private int maxTableSize;
+        private int tableSizeLimit;   // our SETTINGS_HEADER_TABLE_SIZE
+
+        Decoder(int tableSizeLimit) {
+            this.tableSizeLimit = tableSizeLimit;
+            this.maxTableSize = tableSizeLimit;
+        }
+
+        /*
+         * Decodes a complete header block into (name, value) pairs.
+         */
+        List<String[]> decode(ByteBuffer bb) throws Http2Exception {
+            List<String[]> fields = new ArrayList<>();
+
+            while (bb.hasRemaining()) {
+                int b = bb.get(bb.position()) & 0xff;
+
+                if ((b & 0x80) != 0) {
+                    // Indexed header field
+                    fields.add(get(readInt(bb, 7)));
+
+                } else if ((b & 0x40) != 0) {
+                    // Literal with incremental indexing
+                    String[] field = readLiteral(bb, 6);
+                    add(field);
+                    fields.add(field);
+
+                } else if ((b & 0x20) != 0) {
+                    // Dynamic table size update
+                    int size = readInt(bb, 5);
+                    if (size > tableSizeLimit)
+                        throw error("Table size update above limit: " + size);
+                    maxTableSize = size;
+                    evict(0);
+
+                } else {
+                    // Literal without indexing / never indexed
+                    fields.add(readLiteral(bb, 4));
+                }
+            }
+            return fields;
+        }
+
+        private String[] readLiteral(ByteBuffer bb, int prefix)
+                throws Http2Exception {
+            int index = readInt(bb, prefix);
+            String name = (index == 0) ? readString(bb) : get(index)[0];
+            return new String[] { name, readString(bb) };
+        }
+
+        private String[] get(int index) throws Http2Exception {
+            if (index > 0 && index < STATIC_TABLE.length)
+                return STATIC_TABLE[index];
+            index -= STATIC_TABLE.length;
+            if (index < 0 || index >= dynamicTable.size())
+                throw error("Bad header index");
+            return dynamicTable.get(index);
+        }
+
+        private static int entrySize(String[] field) {
+            return field[0].length() + field[1].length() + 32;
+        }
+
+        private void add(String[] field) {
+            int size = entrySize(field);
+            evict(size);
+            if (size <= maxTableSize) {
+                dynamicTable.add(0, field);
+                tableSize += size;
+            }
+        }
+
+        private void evict(int room) {
+            while (!dynamicTable.isEmpty() && tableSize + room > maxTableSize) {
+                tableSize -= entrySize(
+                        dynamicTable.remove(dynamicTable.size() - 1));
+            }
+        }
+    }
+
+    private static Http2Exception error(String msg) {
+        return new Http2Exception(Http2Frame.COMPRESSION_ERROR, msg);
+    }
+
+    /*
+     * Integer representation with an N-bit prefix (RFC 7541, 5.1).
+     */
+    static int readInt(ByteBuffer bb, int prefix) throws Http2Exception {
+        try {
+            int mask = (1 << prefix) - 1;
+            int value = bb.get() & mask;
+            if (value < mask)
+                return value;
+
+            for (int shift = 0; ; shift += 7) {
+                int b = bb.get() & 0xff;
+                if (shift > 21)
+                    throw error("Integer overflow");
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+        } catch (BufferUnderflowException x) {
+            throw error("Truncated integer");
+        }
+    }
+
+    static void writeInt(ByteBuffer bb, int flags, int prefix, int value) {
+        int mask = (1 << prefix) - 1;
+        if (value < mask) {
+            bb.put((byte)(flags | value));
+            return;
+        }
+        bb.put((byte)(flags | mask));
+        value -= mask;
+        while (value >= 0x80) {
+            bb.put((byte)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        bb.put((byte)value);
+    }
+
+    /*
+     * String literal (RFC 7541, 5.2).
+     */
+    static String readString(ByteBuffer bb) throws Http2Exception {
+        if (!bb.hasRemaining())
+            throw error("Truncated string");
+        boolean huffman = (bb.get(bb.position()) & 0x80) != 0;
+        int length = readInt(bb, 7);
+        if (length > bb.remaining())
+            throw error("Truncated string");
+
+        ByteBuffer str = bb.slice();
+        str.limit(length);
+        bb.position(bb.position() + length);
+
+        return huffman ? huffmanDecode(str) : latin1.decode(str).toString();
+    }
+
+    static void writeString(ByteBuffer bb, String s) {
+        writeInt(bb, 0x00, 7, s.length());
+        bb.put(s.getBytes(latin1));
+    }
+
+    private static String huffmanDecode(ByteBuffer bb) throws Http2Exception {
+        StringBuilder sb = new StringBuilder(bb.remaining() * 8 / 5);
+        int node = 0;
+        int pending = 0;        // bits read since the last symbol
+        boolean allOnes = true; // ... and whether they were all 1s
+
+        while (bb.hasRemaining()) {
+            int b = bb.get() & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = (b >>> bit) & 1;
+                int next = tree[2 * node + one];
+                pending++;
+                allOnes &= (one == 1);
+                if (next < 0) {
+                    int sym = -next - 1;
+                    if (sym == 256)
+                        throw error("EOS in Huffman string");
+                    sb.append((char)sym);
+                    node = 0;
+                    pending = 0;
+                    allOnes = true;
+                } else if (next == 0) {
+                    throw error("Bad Huffman code");
+                } else {
+                    node = next;
+                }
+            }
+        }
+
+        // Padding is the most significant bits of EOS, shorter than a byte
+        if (pending > 7 || !allOnes)
+            throw error("Bad Huffman padding");
+        return sb.toString();
+    }
+
+    /*
+     * Appends one header field to a header block.
+     */
+    static void encode(ByteBuffer bb, String name, String value) {
+        Integer index = staticFields.get(name + "\0" + value);
+        if (index != null) {
+            writeInt(bb, 0x80, 7, index);
+            return;
+        }
+
+        index = staticNames.get(name);
+        if (index != null) {
+            writeInt(bb, 0x00, 4, index);
+        } else {
+            writeInt(bb, 0x00, 4, 0);
+            writeString(bb, name);
+        }
+        writeString(bb, value);
+    }
+}
@@ -0,0 +1,22 @@
+package httpserver;
+
+/**
+ * Exception class used when an HTTP/2 peer violates the protocol.
+ * Carries the error code to be sent in the GOAWAY frame.
+ *
+ */
+class Http2Exception extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private int errorCode;
+
+    Http2Exception(int errorCode, String msg) {
+        super(msg);
+        this.errorCode = errorCode;
+    }
+
+    int errorCode() {
+        return errorCode;
+    }
+}
@@ -0,0 +1,102 @@
+package httpserver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * HTTP/2 frame layout (RFC 7540, section 4): the constants used on
+ * the wire, plus helpers for reading and writing the 9 byte frame
+ * header.
+ *
+ */
+class Http2Frame {
+
+    static final int HEADER_SIZE = 9;
+    static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+    static final int DEFAULT_WINDOW_SIZE = 65535;
+    static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+    // Frame types
+    static final int DATA = 0x0;
+    static final int HEADERS = 0x1;
+    static final int PRIORITY = 0x2;
+    static final int RST_STREAM = 0x3;
+    static final int SETTINGS = 0x4;
+    static final int PUSH_PROMISE = 0x5;
+    static final int PING = 0x6;
+    static final int GOAWAY = 0x7;
+    static final int WINDOW_UPDATE = 0x8;
+    static final int CONTINUATION = 0x9;
+
+    // Flags
+    static final int END_STREAM = 0x1;
+    static final int ACK = 0x1;
+    static final int END_HEADERS = 0x4;
+    static final int PADDED = 0x8;
+    static final int PRIORITY_FLAG = 0x20;
+
+    // Settings identifiers
+    static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    static final int SETTINGS_ENABLE_PUSH = 0x2;
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    // Error codes
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+
+    private Http2Frame() { }
+
+    /*
+     * Accessors for a frame header starting at absolute position p.
+     */
+    static int length(ByteBuffer bb, int p) {
+        return ((bb.get(p) & 0xff) << 16)
+             | ((bb.get(p + 1) & 0xff) << 8)
+             | (bb.get(p + 2) & 0xff);
+    }
+
+    static int type(ByteBuffer bb, int p) {
+        return bb.get(p + 3) & 0xff;
+    }
+
+    static int flags(ByteBuffer bb, int p) {
+        return bb.get(p + 4) & 0xff;
+    }
+
+    static int streamId(ByteBuffer bb, int p) {
+        return bb.getInt(p + 5) & 0x7fffffff;
+    }
+
+    static void putHeader(ByteBuffer bb, int length, int type,
+                          int flags, int streamId) {
+        bb.put((byte)(length >>> 16));
+        bb.put((byte)(length >>> 8));
+        bb.put((byte)length);
+        bb.put((byte)type);
+        bb.put((byte)flags);
+        bb.putInt(streamId & 0x7fffffff);
+    }
+
+    /*
+     * Overwrites a header reserved earlier, once the payload length
+     * is known.
+     */
+    static void putHeader(ByteBuffer bb, int p, int length, int type,
+                          int flags, int streamId) {
+        bb.put(p, (byte)(length >>> 16));
+        bb.put(p + 1, (byte)(length >>> 8));
+        bb.put(p + 2, (byte)length);
+        bb.put(p + 3, (byte)type);
+        bb.put(p + 4, (byte)flags);
+        bb.putInt(p + 5, streamId & 0x7fffffff);
+    }
+}
@@ -0,0 +1,920 @@
+package httpserver;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Driver class for HTTP/2 connections (RFC 7540).
+ * <P>
+ * RequestHandler hands a connection over once it sees the client
+ * connection preface (prior knowledge, or h2 negotiated via ALPN)
+ * or an "Upgrade: h2c" request.  From then on every request of the
+ * connection is a stream of this handler.  Its Reply is built just
+ * like for HTTP/1.0, the reply fields go out in a HEADERS frame and
+ * the Content is cut into DATA frames.
+ * <P>
+ * DATA frames are scheduled deficit round robin over the streams
+ * with something to send, in proportion to their weight, and within
+ * the peer's stream and connection flow control windows.
+ *
+ */
+class Http2Handler implements Handler {
+
+    static byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private static byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols\r\n"
+            + "Connection: Upgrade\r\n"
+            + "Upgrade: h2c\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    static private int maxConcurrentStreams = 256;
+    static private int headerTableSize = 4096;
+    static private int maxHeaderBlockSize = 64 * 1024;
+    static private int outBBSize = 64 * 1024;
+    static private int maxOutBBSize = 1024 * 1024;
+
+    // Bytes a stream of weight 1 may send per scheduling round
+    static private int QUANTUM = 1024;
+
+    private ChannelIO cio;
+    private VirtualHosts hosts;
+    private AccessLog accessLog;
+    private RateLimiter.Client client;
+
+    // Bytes the client's bandwidth limit lets us send in this round
+    private long paceBudget = Long.MAX_VALUE;
+
+    /*
+     * DATA bytes the connection may send per handle() before it lets the
+     * other connections of the event loop have their turn.  It's also
+     * the high watermark of outBB: DATA frames are built only while
+     * less than writeQuantum bytes wait there, and once the socket
+     * stops taking them, only again after outBB has drained to a
+     * quarter of that, so new HEADERS don't queue up behind much DATA.
+     */
+    private int writeQuantum;
+    private int lowWatermark;
+
+    private LoadShedder shedder;
+
+    private SelectionKey sk;
+
+    // Streams whose pull from the origin is done, put here by whichever
+    // thread ran the fetch
+    private Queue<Http2Stream> pulled = new ConcurrentLinkedQueue<>();
+
+    /*
+     * Outgoing frames are assembled here (in write mode) and flushed
+     * to cio.  DATA frames are only built when there is room for them.
+     */
+    private ByteBuffer outBB = ByteBuffer.allocate(outBBSize);
+    private DataChannel dataChannel;
+
+    private boolean prefaceReceived = false;
+    private Hpack.Decoder decoder = new Hpack.Decoder(headerTableSize);
+
+    private Map<Integer, Http2Stream> streams = new HashMap<>();
+    private Deque<Http2Stream> active = new ArrayDeque<>();
+    private int lastStreamId = 0;
+
+    // Peer settings and the connection flow control window
+    private int initialWindowSize = Http2Frame.DEFAULT_WINDOW_SIZE;
+    private int maxFrameSize = Http2Frame.DEFAULT_MAX_FRAME_SIZE;
+    private int sendWindow = Http2Frame.DEFAULT_WINDOW_SIZE;
+
+    // Header block being collected from HEADERS + CONTINUATION frames
+    private int headersStreamId = 0;
+    private boolean headersEndStream;
+    private int headersWeight;
+    private ByteBuffer headerBlock = null;
+
+    private boolean goingAway = false;
+
+    /*
+     * upgrade is the "Upgrade: h2c" request which becomes stream 1,
+     * or null when the client started with the preface.
+     */
+    Http2Handler(ChannelIO cio, VirtualHosts hosts, AccessLog accessLog,
+                 RateLimiter.Client client, int writeQuantum,
+                 LoadShedder shedder, SelectionKey sk, Request upgrade)
+            throws IOException {
+        this.sk = sk;
+        this.cio = cio;
+        this.hosts = hosts;
+        this.accessLog = accessLog;
+        this.client = client;
+        this.writeQuantum = writeQuantum;
+        this.lowWatermark = writeQuantum / 4;
+        this.shedder = shedder;
+        this.dataChannel = new DataChannel(cio.getSocketChannel());
+
+        if (upgrade != null) {
+            outBB.put(SWITCHING_PROTOCOLS);
+        }
+        writeSettings();
+
+        if (upgrade != null) {
+            try {
+                applySettings(ByteBuffer.wrap(Base64.getUrlDecoder()
+                        .decode(upgrade.header("http2-settings"))));
+            } catch (IllegalArgumentException | BufferUnderflowException
+                    | Http2Exception x) {
+                // Unusable HTTP2-Settings; the defaults will do
+            }
+            lastStreamId = 1;
+            Http2Stream s = new Http2Stream(1, initialWindowSize);
+            s.method = upgrade.action().toString();
+            s.path = upgrade.uri().getRawPath();
+            s.request = upgrade;
+
+            // Registered once it has a reply (or awaits one), so that
+            // close() never meets it half made
+            if (pull(s)) {
+                streams.put(s.id, s);
+            } else {
+                Reply reply = RequestHandler.build(upgrade, hosts);
+                streams.put(s.id, s);
+                startReply(s, reply);
+            }
+        }
+    }
+
+    /*
+     * Checks the start of a request buffer (in write mode) against the
+     * connection preface.  Returns true if the bytes received so far
+     * match it, even if it isn't complete yet.
+     */
+    static boolean startsWithPreface(ByteBuffer bb) {
+        int n = Math.min(bb.position(), PREFACE.length);
+        if (n == 0)
+            return false;
+        for (int i = 0; i < n; i++) {
+            if (bb.get(i) != PREFACE[i])
+                return false;
+        }
+        return true;
+    }
+
+    static boolean hasPreface(ByteBuffer bb) {
+        return bb.position() >= PREFACE.length && startsWithPreface(bb);
+    }
+
+    public void handle(SelectionKey sk) throws IOException {
+        try {
+            if (cio.read() < 0) {
+                close();
+                return;
+            }
+            processFrames();
+            startPulled();
+
+            boolean flushed;
+            long quantum = writeQuantum;
+            for (;;) {
+                long available = client.bytesAvailable();
+                long allowed = paceBudget = Math.min(available, quantum);
+                writeData();
+                client.bytesSent(allowed - paceBudget);
+                quantum -= allowed - paceBudget;
+                flushed = flush();
+                if (!flushed || !canSend())
+                    break;
+            }
+
+            if (goingAway && streams.isEmpty() && flushed) {
+                close();
+                return;
+            }
+            if (flushed && quantum <= 0 && !active.isEmpty()) {
+                // Used up its turn: write again in the next round
+                sk.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            if (flushed && paceBudget <= 0 && !active.isEmpty()) {
+                // Out of bandwidth: keep reading, write again later
+                sk.interestOps(SelectionKey.OP_READ);
+                RateLimiter.resumeLater(sk,
+                        SelectionKey.OP_READ | SelectionKey.OP_WRITE,
+                        client.bytesDelayNanos());
+                return;
+            }
+            sk.interestOps(SelectionKey.OP_READ
+                    | (flushed ? 0 : SelectionKey.OP_WRITE));
+            if (!pulled.isEmpty()) {
+                // A pull finished after startPulled()
+                RequestHandler.wake(sk, SelectionKey.OP_WRITE);
+            }
+
+        } catch (Http2Exception x) {
+            System.err.println("Http2Handler: " + x.getMessage());
+            try {
+                writeGoAway(x.errorCode());
+                flush();
+            } catch (IOException e) {
+                // ignore
+            }
+            close();
+
+        } catch (IOException x) {
+            String m = String.valueOf(x.getMessage());
+            if (!m.equals("Broken pipe") &&
+                    !m.equals("Connection reset by peer")) {
+                System.err.println("Http2Handler: " + x.toString());
+            }
+            close();
+        }
+    }
+
+    private void close() throws IOException {
+        for (Http2Stream s : streams.values()) {
+            log(s);
+            if (s.reply != null)
+                s.reply.release();
+        }
+        streams.clear();
+        active.clear();
+
+        try {
+            cio.shutdown();
+        } catch (IOException e) {
+            // ignore
+        }
+        cio.close();
+    }
+
+    /*
+     * Returns true when everything built so far has left the process.
+     */
+    private boolean flush() throws IOException {
+        outBB.flip();
+        if (outBB.hasRemaining()) {
+            cio.write(outBB);
+        }
+        outBB.compact();
+        return (outBB.position() == 0) && cio.dataFlush();
+    }
+
+    private boolean canSend() {
+        if (!prefaceReceived || sendWindow <= 0 || paceBudget <= 0)
+            return false;
+        for (Http2Stream s : active) {
+            if (s.sendWindow > 0)
+                return true;
+        }
+        return false;
+    }
+
+    // ------------------------------------------------------------------
+    // Inbound frames
+    // ------------------------------------------------------------------
+
+    private void processFrames() throws IOException, Http2Exception {
+        ByteBuffer in = cio.getReadBuf();
+        in.flip();
+        try {
+            if (!prefaceReceived) {
+                if (in.remaining() < PREFACE.length)
+                    return;
+                for (int i = 0; i < PREFACE.length; i++) {
+                    if (in.get() != PREFACE[i])
+                        throw protocolError("Bad connection preface");
+                }
+                prefaceReceived = true;
+            }
+
+            while (in.remaining() >= Http2Frame.HEADER_SIZE) {
+                int p = in.position();
+                int length = Http2Frame.length(in, p);
+                if (length > Http2Frame.DEFAULT_MAX_FRAME_SIZE) {
+                    throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR,
+                            "Frame too large: " + length);
+                }
+                if (in.remaining() < Http2Frame.HEADER_SIZE + length)
+                    break;
+
+                in.position(p + Http2Frame.HEADER_SIZE);
+                ByteBuffer payload = in.slice();
+                payload.limit(length);
+                in.position(p + Http2Frame.HEADER_SIZE + length);
+
+                onFrame(Http2Frame.type(in, p), Http2Frame.flags(in, p),
+                        Http2Frame.streamId(in, p), payload);
+            }
+        } catch (BufferUnderflowException x) {
+            throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR,
+                    "Truncated frame payload");
+        } finally {
+            in.compact();
+        }
+    }
+
+    private void onFrame(int type, int flags, int streamId, ByteBuffer payload)
+            throws IOException, Http2Exception {
+
+        if (headersStreamId != 0 && type != Http2Frame.CONTINUATION)
+            throw protocolError("Expected CONTINUATION");
+
+        switch (type) {
+
+        case Http2Frame.DATA:
+            onData(flags, streamId, payload);
+            break;
+
+        case Http2Frame.HEADERS:
+            onHeaders(flags, streamId, payload);
+            break;
+
+        case Http2Frame.CONTINUATION:
+            onContinuation(flags, streamId, payload);
+            break;
+
+        case Http2Frame.PRIORITY:
+            checkLength(payload, 5);
+            Http2Stream ps = streams.get(streamId);
+            if (ps != null) {
+                payload.getInt();   // dependencies are not tracked
+                ps.weight = (payload.get() & 0xff) + 1;
+            }
+            break;
+
+        case Http2Frame.RST_STREAM:
+            checkLength(payload, 4);
+            Http2Stream rs = streams.get(streamId);
+            if (rs != null) {
+                active.remove(rs);
+                finishStream(rs);
+            }
+            break;
+
+        case Http2Frame.SETTINGS:
+            if (streamId != 0)
+                throw protocolError("SETTINGS on a stream");
+            if ((flags & Http2Frame.ACK) != 0) {
+                checkLength(payload, 0);
+                break;
+            }
+            applySettings(payload);
+            writeFrame(Http2Frame.SETTINGS, Http2Frame.ACK, 0, null);
+            break;
+
+        case Http2Frame.PING:
+            checkLength(payload, 8);
+            if ((flags & Http2Frame.ACK) == 0) {
+                writeFrame(Http2Frame.PING, Http2Frame.ACK, 0, payload);
+            }
+            break;
+
+        case Http2Frame.GOAWAY:
+            goingAway = true;
+            break;
+
+        case Http2Frame.WINDOW_UPDATE:
+            checkLength(payload, 4);
+            onWindowUpdate(streamId, payload.getInt() & 0x7fffffff);
+            break;
+
+        case Http2Frame.PUSH_PROMISE:
+            throw protocolError("PUSH_PROMISE from client");
+
+        default:
+            // Unknown frame types must be ignored
+        }
+    }
+
+    private void onData(int flags, int streamId, ByteBuffer payload)
+            throws Http2Exception {
+        if (streamId == 0)
+            throw protocolError("DATA on stream 0");
+
+        /*
+         * Request bodies are not used (only GET is served), but they
+         * count against our receive windows, so give the room back.
+         */
+        int length = payload.remaining();
+        if (length > 0) {
+            writeWindowUpdate(0, length);
+            if (streams.containsKey(streamId)
+                    && (flags & Http2Frame.END_STREAM) == 0) {
+                writeWindowUpdate(streamId, length);
+            }
+        }
+    }
+
+    private void onHeaders(int flags, int streamId, ByteBuffer payload)
+            throws IOException, Http2Exception {
+        if (streamId == 0 || (streamId & 1) == 0)
+            throw protocolError("Bad stream id for HEADERS: " + streamId);
+
+        int padding = 0;
+        if ((flags & Http2Frame.PADDED) != 0) {
+            padding = payload.get() & 0xff;
+        }
+        int weight = 16;
+        if ((flags & Http2Frame.PRIORITY_FLAG) != 0) {
+            payload.getInt();       // dependencies are not tracked
+            weight = (payload.get() & 0xff) + 1;
+        }
+        if (padding > payload.remaining())
+            throw protocolError("Bad padding");
+        payload.limit(payload.limit() - padding);
+
+        headersStreamId = streamId;
+        headersEndStream = (flags & Http2Frame.END_STREAM) != 0;
+        headersWeight = weight;
+        headerBlock = ByteBuffer.allocate(payload.remaining());
+        headerBlock.put(payload);
+
+        if ((flags & Http2Frame.END_HEADERS) != 0) {
+            endHeaders();
+        }
+    }
+
+    private void onContinuation(int flags, int streamId, ByteBuffer payload)
+            throws IOException, Http2Exception {
+        if (headersStreamId == 0 || streamId != headersStreamId)
+            throw protocolError("Unexpected CONTINUATION");
+
+        if (headerBlock.remaining() < payload.remaining()) {
+            int size = headerBlock.position() + payload.remaining();
+            if (size > maxHeaderBlockSize)
+                throw protocolError("Header block too large");
+            ByteBuffer bb = ByteBuffer.allocate(size);
+            headerBlock.flip();
+            bb.put(headerBlock);
+            headerBlock = bb;
+        }
+        headerBlock.put(payload);
+
+        if ((flags & Http2Frame.END_HEADERS) != 0) {
+            endHeaders();
+        }
+    }
+
+    /*
+     * A complete header block has arrived: it opens a new stream
+     * (request headers), or ends one (trailers, which are ignored).
+     */
+    private void endHeaders() throws IOException, Http2Exception {
+        Events.RequestParsed parsed = Events.begin(new Events.RequestParsed());
+        int streamId = headersStreamId;
+        headersStreamId = 0;
+        headerBlock.flip();
+
+        // Always decode, the dynamic table must stay in sync with the peer
+        List<String[]> fields = decoder.decode(headerBlock);
+        headerBlock = null;
+
+        if (streamId <= lastStreamId) {
+            return;
+        }
+        lastStreamId = streamId;
+
+        if (goingAway || streams.size() >= maxConcurrentStreams) {
+            writeRstStream(streamId, Http2Frame.REFUSED_STREAM);
+            return;
+        }
+
+        Http2Stream s = new Http2Stream(streamId, initialWindowSize);
+        s.weight = headersWeight;
+        streams.put(streamId, s);
+        Reply reply = buildReply(s, fields, parsed);
+        if (reply != null) {
+            startReply(s, reply);
+        }
+    }
+
+    private Reply buildReply(Http2Stream s, List<String[]> fields,
+                             Events.RequestParsed parsed) throws IOException {
+        String method = null;
+        String path = null;
+        String authority = null;
+        Map<String, String> headers = new HashMap<>();
+
+        try {
+            for (String[] field : fields) {
+                switch (field[0]) {
+                case ":method":
+                    method = s.method = field[1];
+                    break;
+                case ":path":
+                    path = s.path = field[1];
+                    break;
+                case ":authority":
+                    authority = field[1];
+                    break;
+                case ":scheme":
+                    break;
+                default:
+                    if (field[0].startsWith(":"))
+                        throw new MalformedRequestException(
+                                "Unknown pseudo-header " + field[0]);
+                    headers.merge(field[0], field[1], (a, b) -> a + ", " + b);
+                }
+            }
+            if (authority == null) {
+                authority = headers.get("host");
+            }
+            if (method == null || path == null || authority == null)
+                throw new MalformedRequestException("Missing pseudo-header");
+
+            if (shedder.shed()) {
+                return shedder.unavailable();
+            }
+            if (!client.tryRequest()) {
+                return new Reply(Reply.Code.TOO_MANY_REQUESTS,
+                                 new StringContent("Too many requests"));
+            }
+
+            Request request = Request.create(method, authority, path,
+                                             "2.0", headers);
+            s.request = request;
+            Events.requestParsed(parsed, request, "HTTP/2.0");
+            if (pull(s)) {
+                return null;        // startPulled() takes it from there
+            }
+            Reply reply = RequestHandler.build(request, hosts);
+            shedder.replyReady();
+            return reply;
+
+        } catch (MalformedRequestException x) {
+            return new Reply(Reply.Code.BAD_REQUEST, new StringContent(x));
+        }
+    }
+
+    /*
+     * Starts pulling the object of s from the origin if it has to be;
+     * the stream then waits, without a reply, until startPulled().
+     */
+    private boolean pull(Http2Stream s) {
+        Request.Action action = s.request.action();
+        if ((action != Request.Action.GET) && (action != Request.Action.HEAD)) {
+            return false;
+        }
+        String path = s.request.uri().getPath().replace('/', File.separatorChar);
+        return hosts.site(s.request).pull(s.request, path,
+                cio.remoteAddress(), sk.selector(), (entry, failure) -> {
+                    s.pulledEntry = entry;
+                    s.pullFailure = failure;
+                    pulled.add(s);
+                    RequestHandler.wake(sk, SelectionKey.OP_WRITE);
+                });
+    }
+
+    private void startPulled() throws IOException {
+        Http2Stream s;
+        while ((s = pulled.poll()) != null) {
+            if (streams.get(s.id) == s) {       // not reset meanwhile
+                startReply(s, RequestHandler.build(s.request, hosts,
+                        s.pulledEntry, s.pullFailure));
+            }
+        }
+    }
+
+    private void applySettings(ByteBuffer payload) throws Http2Exception {
+        if (payload.remaining() % 6 != 0) {
+            throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR,
+                    "Bad SETTINGS length");
+        }
+
+        while (payload.hasRemaining()) {
+            int id = payload.getShort() & 0xffff;
+            long value = payload.getInt() & 0xffffffffL;
+
+            switch (id) {
+
+            case Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE:
+                if (value > Http2Frame.MAX_WINDOW_SIZE) {
+                    throw new Http2Exception(Http2Frame.FLOW_CONTROL_ERROR,
+                            "Bad initial window size");
+                }
+                int delta = (int)value - initialWindowSize;
+                initialWindowSize = (int)value;
+                for (Http2Stream s : streams.values()) {
+                    s.sendWindow += delta;
+                }
+                break;
+
+            case Http2Frame.SETTINGS_MAX_FRAME_SIZE:
+                if (value < Http2Frame.DEFAULT_MAX_FRAME_SIZE || value > 0xffffff)
+                    throw protocolError("Bad max frame size");
+                maxFrameSize = (int)value;
+                break;
+
+            case Http2Frame.SETTINGS_ENABLE_PUSH:
+                if (value > 1)
+                    throw protocolError("Bad enable push");
+                break;
+
+            default:
+                // Our encoder doesn't index, so HEADER_TABLE_SIZE is moot
+            }
+        }
+    }
+
+    private void onWindowUpdate(int streamId, int increment)
+            throws Http2Exception {
+        if (increment == 0)
+            throw protocolError("Zero window increment");
+
+        if (streamId == 0) {
+            if ((long)sendWindow + increment > Http2Frame.MAX_WINDOW_SIZE) {
+                throw new Http2Exception(Http2Frame.FLOW_CONTROL_ERROR,
+                        "Connection window overflow");
+            }
+            sendWindow += increment;
+            return;
+        }
+
+        Http2Stream s = streams.get(streamId);
+        if (s != null) {
+            if ((long)s.sendWindow + increment > Http2Frame.MAX_WINDOW_SIZE) {
+                throw new Http2Exception(Http2Frame.FLOW_CONTROL_ERROR,
+                        "Stream window overflow");
+            }
+            s.sendWindow += increment;
+        }
+    }
+
+    private static void checkLength(ByteBuffer payload, int length)
+            throws Http2Exception {
+        if (payload.remaining() != length) {
+            throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR,
+                    "Bad frame length " + payload.remaining());
+        }
+    }
+
+    private static Http2Exception protocolError(String msg) {
+        return new Http2Exception(Http2Frame.PROTOCOL_ERROR, msg);
+    }
+
+    // ------------------------------------------------------------------
+    // Outbound frames
+    // ------------------------------------------------------------------
+
+    private void startReply(Http2Stream s, Reply reply) throws IOException {
+        try {
+            reply.prepare();
+        } catch (IOException x) {
+            reply.release();
+            reply = new Reply(Reply.Code.NOT_FOUND,
+                              new StringContent(x));
+            reply.prepare();
+        }
+        s.reply = reply;
+
+        boolean endStream = reply.headersOnly()
+                || reply.code() == Reply.Code.NOT_MODIFIED
+                || reply.content().length() == 0;
+        writeHeaders(s.id, reply, endStream);
+        reply.headersWritten();
+
+        if (endStream) {
+            finishStream(s);
+        } else {
+            active.addLast(s);
+        }
+    }
+
+    private void finishStream(Http2Stream s) throws IOException {
+        streams.remove(s.id);
+        log(s);
+        if (s.reply != null)
+            s.reply.release();
+    }
+
+    private void log(Http2Stream s) {
+        accessLog.log(cio.remoteAddress(),
+                s.method, s.path, "2.0", s.reply, s.startNanos);
+        Events.replyCompleted(s.completedEvent, s.method, s.path,
+                              "HTTP/2.0", s.reply);
+    }
+
+    /*
+     * Make sure outBB has room for a control frame.  It may grow past
+     * its initial size, but a peer which sends requests or PINGs without
+     * ever reading the answers gets disconnected.
+     */
+    private void ensureRoom(int n) throws IOException {
+        if (outBB.remaining() >= n)
+            return;
+        int size = Math.max(outBB.capacity() * 2, outBB.position() + n);
+        if (size > maxOutBBSize)
+            throw new IOException("HTTP/2 output buffer overflow");
+        ByteBuffer bb = ByteBuffer.allocate(size);
+        outBB.flip();
+        bb.put(outBB);
+        outBB = bb;
+    }
+
+    private void writeFrame(int type, int flags, int streamId,
+                            ByteBuffer payload) throws IOException {
+        int length = (payload == null) ? 0 : payload.remaining();
+        ensureRoom(Http2Frame.HEADER_SIZE + length);
+        Http2Frame.putHeader(outBB, length, type, flags, streamId);
+        if (payload != null) {
+            outBB.put(payload);
+        }
+    }
+
+    private void writeSettings() throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(6);
+        payload.putShort((short)Http2Frame.SETTINGS_MAX_CONCURRENT_STREAMS);
+        payload.putInt(maxConcurrentStreams);
+        payload.flip();
+        writeFrame(Http2Frame.SETTINGS, 0, 0, payload);
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) {
+        ByteBuffer payload = ByteBuffer.allocate(4);
+        payload.putInt(0, increment);
+        try {
+            writeFrame(Http2Frame.WINDOW_UPDATE, 0, streamId, payload);
+        } catch (IOException x) {
+            // the next control frame will fail the same way
+        }
+    }
+
+    private void writeRstStream(int streamId, int errorCode)
+            throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(4);
+        payload.putInt(0, errorCode);
+        writeFrame(Http2Frame.RST_STREAM, 0, streamId, payload);
+    }
+
+    private void writeGoAway(int errorCode) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(8);
+        payload.putInt(0, lastStreamId);
+        payload.putInt(4, errorCode);
+        writeFrame(Http2Frame.GOAWAY, 0, 0, payload);
+    }
+
+    /*
+     * HEADERS (and CONTINUATION if the block exceeds the peer's maximum
+     * frame size) carrying the reply fields.
+     */
+    private void writeHeaders(int streamId, Reply reply, boolean endStream)
+            throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(256);
+        for (;;) {
+            try {
+                Hpack.encode(block, ":status",
+                             Integer.toString(reply.code().number()));
+                for (Map.Entry<String, String> field : reply.fields().entrySet()) {
+                    Hpack.encode(block, field.getKey().toLowerCase(Locale.ROOT),
+                                 field.getValue());
+                }
+                break;
+            } catch (BufferOverflowException x) {
+                block = ByteBuffer.allocate(block.capacity() * 2);
+            }
+        }
+        block.flip();
+
+        int type = Http2Frame.HEADERS;
+        do {
+            int length = Math.min(block.remaining(), maxFrameSize);
+            int flags = (length == block.remaining() ? Http2Frame.END_HEADERS : 0)
+                    | (type == Http2Frame.HEADERS && endStream
+                            ? Http2Frame.END_STREAM : 0);
+            ByteBuffer fragment = block.slice();
+            fragment.limit(length);
+            block.position(block.position() + length);
+
+            writeFrame(type, flags, streamId, fragment);
+            type = Http2Frame.CONTINUATION;
+        } while (block.hasRemaining());
+    }
+
+    /*
+     * Fill outBB with DATA frames.  Each stream in turn may send up to
+     * its deficit (weight * QUANTUM per round); a stream which can't use
+     * its turn because outBB or the connection window is full keeps it
+     * and is first in line next time.
+     */
+    private void writeData() throws IOException {
+        int idle = 0;
+
+        /*
+         * After an h2c upgrade, wait for the client's preface: it may not
+         * be ready to take more than the 101 and our SETTINGS before that.
+         */
+        if (!prefaceReceived)
+            return;
+
+        // Still above the low watermark from the last round
+        if (outBB.position() > lowWatermark)
+            return;
+
+        while (!active.isEmpty() && idle < active.size()) {
+            if (sendWindow <= 0 || paceBudget <= 0
+                    || outBB.remaining() <= Http2Frame.HEADER_SIZE
+                    || outBB.position() >= writeQuantum)
+                return;
+
+            Http2Stream s = active.pollFirst();
+            if (s.deficit <= 0) {
+                s.deficit += s.weight * QUANTUM;
+            }
+
+            int sent = 0;
+            boolean stalled = false;
+            while (s.deficit > 0 && !s.done) {
+                int length = Math.min(Math.min(maxFrameSize, s.deficit),
+                                      Math.min(s.sendWindow, sendWindow));
+                length = (int) Math.min(Math.min(length, paceBudget),
+                                  outBB.remaining() - Http2Frame.HEADER_SIZE);
+                if (length <= 0)
+                    break;
+
+                int n = writeDataFrame(s, length);
+                if (n == 0 && !s.done) {
+                    stalled = true;
+                    break;
+                }
+                s.deficit -= n;
+                sent += n;
+                paceBudget -= n;
+            }
+
+            if (s.done) {
+                finishStream(s);
+                idle = 0;
+                continue;
+            }
+
+            if (s.sendWindow <= 0 || stalled) {
+                // Blocked on its own window; others go ahead
+                s.deficit = 0;
+                active.addLast(s);
+                idle++;
+                continue;
+            }
+
+            if (s.deficit > 0) {
+                active.addFirst(s);
+                return;
+            }
+
+            active.addLast(s);
+            idle = (sent == 0) ? idle + 1 : 0;
+        }
+    }
+
+    private int writeDataFrame(Http2Stream s, int length) throws IOException {
+        int start = outBB.position();
+        outBB.position(start + Http2Frame.HEADER_SIZE);
+
+        dataChannel.budget = length;
+        boolean more = s.reply.content().send(dataChannel);
+        int n = outBB.position() - start - Http2Frame.HEADER_SIZE;
+
+        if (n == 0 && more) {
+            outBB.position(start);
+            return 0;
+        }
+        s.done = !more;
+
+        Http2Frame.putHeader(outBB, start, n, Http2Frame.DATA,
+                more ? 0 : Http2Frame.END_STREAM, s.id);
+        s.sendWindow -= n;
+        sendWindow -= n;
+        return n;
+    }
+
+    /*
+     * Stands in for the socket while a Content is sent: whatever the
+     * content writes is appended to outBB as the payload of the DATA
+     * frame being built, up to budget bytes.
+     */
+    private class DataChannel extends ChannelIO {
+
+        int budget;
+
+        DataChannel(SocketChannel sc) throws IOException {
+            super(sc, false);
+        }
+
+        int write(ByteBuffer src) {
+            int n = Math.min(budget, src.remaining());
+            ByteBuffer chunk = src.duplicate();
+            chunk.limit(chunk.position() + n);
+            outBB.put(chunk);
+            src.position(src.position() + n);
+            budget -= n;
+            return n;
+        }
+
+        long transferTo(FileChannel fc, long pos, long len) throws IOException {
+            ByteBuffer dst = outBB.duplicate();
+            dst.limit(dst.position() + (int)Math.min(budget, len));
+            int n = Math.max(fc.read(dst, pos), 0);
+            outBB.position(outBB.position() + n);
+            budget -= n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package httpserver;
+
+import java.io.IOException;
+
+/**
+ * The state of one HTTP/2 stream while its reply is being sent.
+ *
+ */
+class Http2Stream {
+
+    final int id;
+
+    /*
+     * Weight from the PRIORITY information (1..256).  A stream gets
+     * weight * QUANTUM bytes per scheduling round.
+     */
+    int weight = 16;
+    int deficit = 0;
+
+    // Flow control window granted by the peer for this stream
+    int sendWindow;
+
+    Reply reply = null;
+    boolean done = false;
+
+    // For the access log
+    final long startNanos = System.nanoTime();
+    String method = "-";
+    String path = "-";
+    final Events.ReplyCompleted completedEvent =
+        Events.begin(new Events.ReplyCompleted());
+
+    // Set while the object is pulled from the origin (edge cache)
+    Request request = null;
+    CacheEntry pulledEntry;
+    IOException pullFailure;
+
+    Http2Stream(int id, int sendWindow) {
+        this.id = id;
+        this.sendWindow = sendWindow;
+    }
+}
@@ -0,0 +1,37 @@
+package httpserver;
+
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * Formatting and parsing of HTTP-dates (RFC 7231, 7.1.1.1), as used
+ * by Last-Modified, If-Modified-Since and Expires.
+ *
+ */
+class HttpDate {
+
+    // IMF-fixdate for output; RFC_1123_DATE_TIME would drop the leading zero of the day
+    private static DateTimeFormatter fixdate = DateTimeFormatter.ofPattern(
+            "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+
+    // Lenient enough for any RFC 1123 date a client sends back
+    private static DateTimeFormatter format = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+    private HttpDate() { }
+
+    static String format(long millis) {
+        return fixdate.format(
+                Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+    }
+
+    // Returns -1 if s isn't a valid date
+    static long parse(String s) {
+        try {
+            return ZonedDateTime.parse(s.trim(), format).toInstant().toEpochMilli();
+        } catch (DateTimeParseException x) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package httpserver;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Overload protection for one event loop, CoDel style.
+ * <P>
+ * The queueing delay of a request is the time since it could first
+ * have been seen: the start of the loop's current round, less the time
+ * the previous round took (the loop lag), since whatever became
+ * readable meanwhile waited for that.  It is measured when the request
+ * is parsed and when its reply is ready.
+ * <P>
+ * While the smallest delay seen in an interval stays under the target,
+ * the queue drains now and then and only requests that waited more
+ * than a whole interval are refused.  Once even the smallest one is
+ * above the target, there is a standing queue, and every request that
+ * waited more than the target gets the 503 (with Retry-After) at once,
+ * until an interval passes with the queue under the target again.
+ * Refused requests cost one pre-encoded reply and nothing else.
+ *
+ */
+class LoadShedder {
+
+    private final long target;
+    private final long interval;
+    private final int retryAfter;
+    private final ByteBuffer unavailable;
+    private String loop = "-";
+
+    // The round of the event loop in progress, and the one before
+    private long roundStart = System.nanoTime();
+    private long lastRound = 0;
+
+    private long intervalEnd = 0;
+    private long minDelay = Long.MAX_VALUE;
+    private volatile boolean overloaded = false;
+
+    // For the metrics, read by the recorder's thread
+    private volatile long lastMinDelay = 0;
+    private volatile long maxLag = 0;
+    private volatile long shed = 0;
+    private volatile long served = 0;
+
+    /*
+     * target and interval in milliseconds; a target of 0 turns shedding
+     * off.  retryAfter in seconds.
+     */
+    LoadShedder(long target, long interval, int retryAfter) {
+        this.target = target * 1_000_000L;
+        this.interval = interval * 1_000_000L;
+        this.retryAfter = retryAfter;
+        this.unavailable = Reply.serviceUnavailable(retryAfter, null).encode();
+    }
+
+    boolean enabled() {
+        return target != 0;
+    }
+
+    // Called by the event loop, on its thread
+    void roundStarted() {
+        roundStart = System.nanoTime();
+        if (loop.equals("-")) {
+            loop = Thread.currentThread().getName();
+        }
+    }
+
+    void roundEnded() {
+        lastRound = System.nanoTime() - roundStart;
+        if (lastRound > maxLag) {
+            maxLag = lastRound;
+        }
+    }
+
+    /*
+     * Whether to refuse a request just parsed.  Called on the loop's
+     * thread, like replyReady().
+     */
+    boolean shed() {
+        if (target == 0)
+            return false;
+        long now = System.nanoTime();
+        long delay = observe(now);
+        if (delay > (overloaded ? target : interval)) {
+            shed++;
+            return true;
+        }
+        return false;
+    }
+
+    // The reply of a request that wasn't refused is ready
+    void replyReady() {
+        if (target == 0)
+            return;
+        observe(System.nanoTime());
+        served++;
+    }
+
+    Reply unavailable() {
+        return Reply.serviceUnavailable(retryAfter, unavailable);
+    }
+
+    private long observe(long now) {
+        long delay = now - (roundStart - lastRound);
+
+        if (now - intervalEnd >= 0) {
+            // No requests for a whole interval means no queue either
+            boolean was = overloaded;
+            overloaded = (minDelay != Long.MAX_VALUE)
+                    && (now - intervalEnd < interval)
+                    && (minDelay > target);
+            if (overloaded != was) {
+                System.out.println(loop + (overloaded
+                        ? ": overloaded, shedding load (queue delay "
+                            + minDelay / 1_000_000 + " ms)"
+                        : ": load back under the target"));
+            }
+            lastMinDelay = (minDelay != Long.MAX_VALUE) ? minDelay : 0;
+            minDelay = Long.MAX_VALUE;
+            intervalEnd = now + interval;
+        }
+        if (delay < minDelay) {
+            minDelay = delay;
+        }
+        return delay;
+    }
+
+    void report(Events.EventLoopLoad e) {
+        e.queueDelay = lastMinDelay;
+        e.loopLag = maxLag;
+        e.overloaded = overloaded;
+        e.shed = shed;
+        e.served = served;
+        maxLag = 0;
+    }
+}
@@ -0,0 +1,183 @@
+package httpserver;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Open files of the sites served without the file cache, nginx's
+ * open_file_cache style: a bounded LRU of FileChannels with their size,
+ * modification time and ETag, so that a hot file is neither looked up
+ * nor opened again for every request, and goes out with transferTo()
+ * (sendfile) instead of being mapped.
+ * <P>
+ * An entry is trusted for validity milliseconds; after that the next
+ * request stats the file and, if it's not the same file any more (inode,
+ * size or mtime), opens it again.  A channel leaves with its entry, but
+ * is only closed once the replies sending from it are done.
+ * <P>
+ * Transcoded variants of a file stay with its entry, so they're built
+ * once for each (file, charset) even though nothing is cached.
+ *
+ */
+class OpenFileCache {
+
+    private static final int STRIPES = 16;
+
+    /**
+     * One open file, shared by all the replies sending it.
+     */
+    static class OpenFile {
+
+        private final Path path;
+        private final FileChannel fc;
+        private final Object fileKey;
+        final long size;
+        final long lastModified;
+        final CacheEntry entry;
+
+        // Variants of the file, by charset
+        final Map<Charset, CacheEntry> variants = new ConcurrentHashMap<>();
+
+        // When the file was last seen to be the same
+        private volatile long checkedAt;
+
+        private int users = 0;
+        private boolean evicted = false;
+
+        private OpenFile(Path path, FileChannel fc, BasicFileAttributes attrs,
+                         long now) {
+            this.path = path;
+            this.fc = fc;
+            this.fileKey = attrs.fileKey();
+            this.size = attrs.size();
+            this.lastModified = attrs.lastModifiedTime().toMillis();
+            this.checkedAt = now;
+            this.entry = new CacheEntry(this);
+        }
+
+        // The same as for the file in the file cache
+        String etag() {
+            return CacheEntry.etag(lastModified, size);
+        }
+
+        private boolean same(BasicFileAttributes attrs) {
+            return attrs.size() == size
+                && attrs.lastModifiedTime().toMillis() == lastModified
+                && (fileKey == null || fileKey.equals(attrs.fileKey()));
+        }
+
+        /*
+         * The channel, for one sender until it calls release().  If the
+         * entry was evicted and its channel closed meanwhile, the sender
+         * gets a channel of its own.
+         */
+        FileChannel acquire() throws IOException {
+            synchronized (this) {
+                if (!evicted || users > 0) {
+                    users++;
+                    return fc;
+                }
+            }
+            return FileChannel.open(path);
+        }
+
+        // The whole file, mapped (to be transcoded)
+        ByteBuffer map() throws IOException {
+            FileChannel channel = acquire();
+            try {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } finally {
+                release(channel);
+            }
+        }
+
+        void release(FileChannel channel) throws IOException {
+            if (channel != fc) {
+                channel.close();
+                return;
+            }
+            synchronized (this) {
+                if (--users > 0 || !evicted)
+                    return;
+            }
+            fc.close();
+        }
+
+        private void evict() throws IOException {
+            synchronized (this) {
+                evicted = true;
+                if (users > 0)
+                    return;
+            }
+            fc.close();
+        }
+    }
+
+    private final long validity;
+    private final StripedLru<String, OpenFile> files;
+
+    /*
+     * maxFiles open at most (roughly: the bound is per stripe); validity
+     * in milliseconds.
+     */
+    OpenFileCache(int maxFiles, long validity) {
+        this.validity = validity;
+        this.files = new StripedLru<>(STRIPES, maxFiles, OpenFileCache::close);
+    }
+
+    /*
+     * The open file for key (site and path), which is at file.  Throws
+     * FileNotFoundException if there's no such regular file.
+     */
+    OpenFile get(String key, Path file) throws IOException {
+        long now = System.currentTimeMillis();
+        OpenFile f = files.get(key);
+        if (f != null && now - f.checkedAt < validity) {
+            return f;
+        }
+
+        // Not there or due for a check: stat (and open) outside the lock
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException x) {
+            forget(key, f);
+            throw new FileNotFoundException(file + " (No such file)");
+        }
+        if (!attrs.isRegularFile()) {
+            forget(key, f);
+            throw new FileNotFoundException(file + " (Not a regular file)");
+        }
+        if (f != null && f.same(attrs)) {
+            f.checkedAt = now;
+            return f;
+        }
+
+        OpenFile fresh = new OpenFile(file, FileChannel.open(file), attrs, now);
+        OpenFile old = files.put(key, fresh);
+        if (old != null) {
+            close(old);
+        }
+        return fresh;
+    }
+
+    private void forget(String key, OpenFile f) {
+        if (f != null && files.remove(key, f)) {
+            close(f);
+        }
+    }
+
+    private static void close(OpenFile f) {
+        try {
+            f.evict();
+        } catch (IOException x) {
+            System.err.println("OpenFileCache: " + x.toString());
+        }
+    }
+}
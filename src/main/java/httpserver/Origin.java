@@ -0,0 +1,191 @@
+package httpserver;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+/**
+ * The upstream server of an edge cache.
+ * <P>
+ * Fetches are collapsed: while one is running for a path, further
+ * requests for it only wait for its result.  The result says what the
+ * origin allows us to do with the object: cache it and for how long
+ * (Cache-Control max-age/s-maxage, no-cache, no-store, private, or
+ * Expires; ttl when it says nothing), and how to revalidate it later
+ * (its ETag and Last-Modified).
+ *
+ */
+class Origin {
+
+    /**
+     * Told about the outcome of a fetch, on the thread which ran it.
+     */
+    interface Waiter {
+        // Exactly one of entry and failure is set
+        void ready(CacheEntry entry, IOException failure);
+    }
+
+    /*
+     * What a fetch turned into: the entry, and whether it may go into
+     * the cache.
+     */
+    static class Result {
+        final CacheEntry entry;
+        final boolean store;
+        Result(CacheEntry entry, boolean store) {
+            this.entry = entry;
+            this.store = store;
+        }
+    }
+
+    interface Completion {
+        // Runs before the waiters are told, e.g. to store the entry
+        void fetched(Result result);
+    }
+
+    private final InetSocketAddress address;
+    private final String host;
+    private final long ttl;
+    private final long timeout;
+    private final long maxBytes;
+
+    // Waiters of the fetches in progress, by cache key
+    private final Map<String, List<Waiter>> inFlight = new HashMap<>();
+
+    private static ScheduledThreadPoolExecutor timer =
+        new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "origin-timer");
+            t.setDaemon(true);
+            return t;
+        });
+    static {
+        // A finished fetch leaves the queue with its cancelled timeout
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /*
+     * origin is "http://host[:port]"; ttl and timeout in milliseconds.
+     */
+    Origin(String origin, long ttl, long timeout, long maxBytes) {
+        URI u = URI.create(origin);
+        int port = (u.getPort() > 0) ? u.getPort() : 80;
+        this.address = new InetSocketAddress(u.getHost(), port);
+        this.host = (port == 80) ? u.getHost() : u.getHost() + ":" + port;
+        this.ttl = ttl;
+        this.timeout = timeout;
+        this.maxBytes = maxBytes;
+    }
+
+    /*
+     * Gets path from the origin, revalidating stale (which may be null),
+     * and tells waiter when done.  If a fetch for key is already running
+     * the waiter just joins it.
+     */
+    void fetch(String key, String path, CacheEntry stale, Selector sel,
+               Completion completion, Waiter waiter) {
+        synchronized (inFlight) {
+            List<Waiter> waiters = inFlight.get(key);
+            if (waiters != null) {
+                waiters.add(waiter);
+                return;
+            }
+            waiters = new ArrayList<>();
+            waiters.add(waiter);
+            inFlight.put(key, waiters);
+        }
+
+        Map<String, String> validators = new LinkedHashMap<>();
+        if (stale != null) {
+            if (stale.originETag() != null)
+                validators.put("If-None-Match", stale.originETag());
+            validators.put("If-Modified-Since", stale.lastModifiedDate());
+        }
+
+        OriginFetch fetch = new OriginFetch(address, host, path, validators,
+                maxBytes, new OriginFetch.Listener() {
+            public void fetched(int status, Map<String, String> headers,
+                                ByteBuffer body) {
+                Result result;
+                try {
+                    result = result(path, stale, status, headers, body);
+                } catch (IOException x) {
+                    failed(x);
+                    return;
+                }
+                completion.fetched(result);
+                done(key, result.entry, null);
+            }
+            public void failed(IOException x) {
+                done(key, null, x);
+            }
+        });
+        fetch.timeout(timer.schedule(() -> fetch.fail(new IOException(
+                "Origin timed out: " + path)), timeout, TimeUnit.MILLISECONDS));
+        fetch.start(sel);
+    }
+
+    private void done(String key, CacheEntry entry, IOException failure) {
+        List<Waiter> waiters;
+        synchronized (inFlight) {
+            waiters = inFlight.remove(key);
+        }
+        for (Waiter w : waiters) {
+            w.ready(entry, failure);
+        }
+    }
+
+    private Result result(String path, CacheEntry stale, int status,
+                          Map<String, String> headers, ByteBuffer body)
+            throws IOException {
+        long now = System.currentTimeMillis();
+        String cc = headers.getOrDefault("cache-control", "").toLowerCase();
+        boolean store = !cc.contains("no-store") && !cc.contains("private");
+        long freshUntil = freshUntil(cc, headers.get("expires"), now);
+
+        if (status == 304 && stale != null) {
+            stale.revalidated(freshUntil);
+            return new Result(stale, false);
+        }
+        if (status == 404 || status == 410) {
+            throw new FileNotFoundException(path + " (origin: " + status + ")");
+        }
+        if (status != 200) {
+            throw new IOException(path + " (origin: " + status + ")");
+        }
+
+        long lastModified = HttpDate.parse(headers.getOrDefault("last-modified", ""));
+        CacheEntry entry = new CacheEntry(body, (lastModified >= 0) ? lastModified : now);
+        entry.fromOrigin(headers.get("etag"), freshUntil);
+        return new Result(entry, store);
+    }
+
+    private static Pattern MAX_AGE =
+        Pattern.compile("(?:^|[ ,])(s-maxage|max-age)=\"?(\\d+)");
+
+    private long freshUntil(String cc, String expires, long now) {
+        if (cc.contains("no-cache")) {
+            return now;                     // revalidate every time
+        }
+        long maxAge = -1;
+        Matcher m = MAX_AGE.matcher(cc);
+        while (m.find()) {
+            long age = Long.parseLong(m.group(2));
+            // s-maxage wins for a shared cache like us
+            if (m.group(1).equals("s-maxage") || maxAge < 0)
+                maxAge = age;
+        }
+        if (maxAge >= 0) {
+            return now + maxAge * 1000;
+        }
+        if (expires != null) {
+            long t = HttpDate.parse(expires);
+            return (t >= 0) ? t : now;      // invalid means already expired
+        }
+        return now + ttl;
+    }
+}
@@ -0,0 +1,242 @@
+package httpserver;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A non-blocking HTTP/1.0 GET to the origin server, run by the same
+ * Selector as the connection which asked for it.
+ * <P>
+ * The request is sent with "Connection: close", so the body ends with
+ * the connection if the origin gives no Content-Length.  When it's
+ * complete (or has failed, or timed out) the Listener is called once.
+ *
+ */
+class OriginFetch implements Handler {
+
+    interface Listener {
+        // headers have lowercase names; body is flipped
+        void fetched(int status, Map<String, String> headers, ByteBuffer body);
+        void failed(IOException x);
+    }
+
+    private InetSocketAddress origin;
+    private SocketChannel sc;
+    private Listener listener;
+    private long maxBytes;
+
+    private ByteBuffer request;
+    private ByteBuffer in = ByteBuffer.allocate(8192);
+
+    private int status = -1;
+    private Map<String, String> headers = null;
+    private int bodyStart;
+    private long contentLength = -1;
+
+    private AtomicBoolean done = new AtomicBoolean(false);
+
+    // The timeout, cancelled once done so it doesn't keep us (and the
+    // body) reachable from the timer's queue
+    private volatile Future<?> timeout = null;
+
+    /*
+     * validators are the If-None-Match/If-Modified-Since fields for a
+     * revalidation, or an empty map.
+     */
+    OriginFetch(InetSocketAddress origin, String host, String path,
+                Map<String, String> validators, long maxBytes,
+                Listener listener) {
+        this.listener = listener;
+        this.maxBytes = maxBytes;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("GET ").append(path).append(" HTTP/1.0\r\n")
+          .append("Host: ").append(host).append("\r\n")
+          .append("Connection: close\r\n");
+        for (Map.Entry<String, String> v : validators.entrySet()) {
+            sb.append(v.getKey()).append(": ").append(v.getValue()).append("\r\n");
+        }
+        sb.append("\r\n");
+        request = StandardCharsets.US_ASCII.encode(sb.toString());
+        this.origin = origin;
+    }
+
+    void start(Selector sel) {
+        try {
+            sc = SocketChannel.open();
+            sc.configureBlocking(false);
+            int ops = sc.connect(origin) ? SelectionKey.OP_WRITE
+                                         : SelectionKey.OP_CONNECT;
+            // Called on sel's own thread, so this doesn't block
+            sc.register(sel, ops, this);
+        } catch (IOException x) {
+            fail(x);
+        }
+    }
+
+    void timeout(Future<?> timeout) {
+        this.timeout = timeout;
+        if (done.get()) {
+            timeout.cancel(false);
+        }
+    }
+
+    private void cancelTimeout() {
+        Future<?> t = timeout;
+        if (t != null) {
+            t.cancel(false);
+        }
+    }
+
+    public void handle(SelectionKey sk) throws IOException {
+        try {
+            if (sk.isConnectable()) {
+                sc.finishConnect();
+                sk.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            if (request.hasRemaining()) {
+                sc.write(request);
+                if (!request.hasRemaining())
+                    sk.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            read();
+        } catch (IOException x) {
+            fail(x);
+        }
+    }
+
+    private void read() throws IOException {
+        for (;;) {
+            if (!in.hasRemaining()) {
+                grow(in.capacity() * 2);
+            }
+            int n = sc.read(in);
+            if (n == 0) {
+                return;
+            }
+            if (n < 0) {
+                if (headers == null
+                        || (contentLength >= 0
+                            && in.position() - bodyStart < contentLength)) {
+                    throw new EOFException("Origin closed the connection early");
+                }
+                complete();
+                return;
+            }
+            if (headers == null && !parseHeaders()) {
+                continue;
+            }
+            if (in.position() - bodyStart > maxBytes) {
+                throw new IOException("Origin object exceeds " + maxBytes + " bytes");
+            }
+            if (contentLength >= 0
+                    && in.position() - bodyStart >= contentLength) {
+                complete();
+                return;
+            }
+        }
+    }
+
+    private void grow(int size) {
+        ByteBuffer bb = ByteBuffer.allocate(size);
+        in.flip();
+        bb.put(in);
+        in = bb;
+    }
+
+    // Returns true once the status line and headers are all in
+    private boolean parseHeaders() throws IOException {
+        int end = -1;
+        for (int i = 3; i < in.position(); i++) {
+            if (in.get(i - 3) == '\r' && in.get(i - 2) == '\n'
+                    && in.get(i - 1) == '\r' && in.get(i) == '\n') {
+                end = i + 1;
+                break;
+            }
+        }
+        if (end < 0) {
+            return false;
+        }
+
+        String head = new String(in.array(), 0, end, StandardCharsets.ISO_8859_1);
+        String[] lines = head.split("\r\n");
+        String[] statusLine = lines[0].split(" ", 3);
+        try {
+            status = Integer.parseInt(statusLine[1]);
+        } catch (RuntimeException x) {
+            throw new IOException("Bad origin status line: " + lines[0]);
+        }
+
+        headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.merge(lines[i].substring(0, colon).trim().toLowerCase(),
+                              lines[i].substring(colon + 1).trim(),
+                              (a, b) -> a + ", " + b);
+            }
+        }
+        bodyStart = end;
+
+        if (status == 304 || status == 204) {
+            contentLength = 0;
+        } else if (headers.containsKey("content-length")) {
+            try {
+                contentLength = Long.parseLong(headers.get("content-length"));
+            } catch (NumberFormatException x) {
+                throw new IOException("Bad origin Content-Length");
+            }
+            if (contentLength > maxBytes) {
+                throw new IOException("Origin object exceeds " + maxBytes + " bytes");
+            }
+            if (in.capacity() < bodyStart + contentLength) {
+                grow((int) (bodyStart + contentLength));
+            }
+        }
+        return true;
+    }
+
+    private void complete() {
+        if (!done.compareAndSet(false, true))
+            return;
+        cancelTimeout();
+        close();
+        ByteBuffer body = in.duplicate();
+        body.flip();
+        body.position(bodyStart);
+        if (contentLength >= 0) {
+            body.limit(bodyStart + (int) contentLength);
+        }
+        listener.fetched(status, headers, body.slice());
+    }
+
+    /*
+     * May be called from another thread (timeouts); closing the channel
+     * cancels its key.
+     */
+    void fail(IOException x) {
+        if (!done.compareAndSet(false, true))
+            return;
+        cancelTimeout();
+        close();
+        listener.failed(x);
+    }
+
+    private void close() {
+        try {
+            if (sc != null)
+                sc.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
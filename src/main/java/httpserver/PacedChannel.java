@@ -0,0 +1,44 @@
+package httpserver;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Stands in for a connection's ChannelIO while a Reply is sent: writes
+ * go through to the real ChannelIO, but no more than budget bytes of
+ * them (the write quantum, or less under a bandwidth limit).
+ *
+ */
+class PacedChannel extends ChannelIO {
+
+    private ChannelIO cio;
+    long budget;
+
+    PacedChannel(ChannelIO cio) throws IOException {
+        super(cio.getSocketChannel(), false);
+        this.cio = cio;
+    }
+
+    int write(ByteBuffer src) throws IOException {
+        int n = (int) Math.min(budget, src.remaining());
+        if (n <= 0)
+            return 0;
+        ByteBuffer chunk = src.duplicate();
+        chunk.limit(chunk.position() + n);
+        n = cio.write(chunk);
+        src.position(src.position() + n);
+        budget -= n;
+        return n;
+    }
+
+    long transferTo(FileChannel fc, long pos, long len) throws IOException {
+        long n = cio.transferTo(fc, pos, Math.min(len, budget));
+        budget -= n;
+        return n;
+    }
+
+    boolean dataFlush() throws IOException {
+        return cio.dataFlush();
+    }
+}
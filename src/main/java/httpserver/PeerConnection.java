@@ -0,0 +1,452 @@
+package httpserver;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * A persistent HTTP/2 (h2c, prior knowledge) connection to another node
+ * of the cluster, used for GETs of the objects that node owns.
+ * <P>
+ * Each event loop keeps its own connection to each peer, so everything
+ * here runs on that loop's thread, except abandon().  Any number of
+ * fetches share the connection as streams.  We tell the peer we can
+ * take as much as it likes (the largest windows there are) and give
+ * the connection window back as DATA comes in, so there is no stream
+ * flow control to track.
+ *
+ */
+class PeerConnection implements Handler {
+
+    interface Closed {
+        void closed(PeerConnection connection);
+    }
+
+    private static class PeerStream {
+        final OriginFetch.Listener listener;
+        int status = -1;
+        Map<String, String> headers;
+        ByteBuffer body = null;
+        PeerStream(OriginFetch.Listener listener) {
+            this.listener = listener;
+        }
+    }
+
+    private static int BUFFER_SIZE = 64 * 1024;
+    private static int HEADER_TABLE_SIZE = 4096;
+
+    // Connection window given back once this much DATA has come in
+    private static int WINDOW_UPDATE_THRESHOLD = 16 * 1024 * 1024;
+
+    private final InetSocketAddress address;
+    private final long maxBytes;
+    private final Closed onClose;
+
+    private SocketChannel sc;
+    private SelectionKey sk;
+    private boolean connected = false;
+    private boolean closed = false;
+    private volatile boolean abandoned = false;
+
+    // Frames to send, in write mode; frames received, in write mode
+    private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private Hpack.Decoder decoder = new Hpack.Decoder(HEADER_TABLE_SIZE);
+    private Map<Integer, PeerStream> streams = new HashMap<>();
+    private int nextStreamId = 1;
+    private boolean goingAway = false;
+    private int received = 0;
+
+    // Header block being collected from HEADERS + CONTINUATION frames
+    private int headersStreamId = 0;
+    private boolean headersEndStream;
+    private ByteBuffer headerBlock = null;
+
+    /*
+     * Objects above maxBytes are refused (RST_STREAM), so that the
+     * fetch fails instead of holding a big body on the heap.
+     */
+    PeerConnection(InetSocketAddress address, long maxBytes, Closed onClose) {
+        this.address = address;
+        this.maxBytes = maxBytes;
+        this.onClose = onClose;
+    }
+
+    InetSocketAddress address() {
+        return address;
+    }
+
+    /*
+     * Starts connecting; fetches may be queued right away.
+     */
+    void start(Selector sel) throws IOException {
+        sc = SocketChannel.open();
+        sc.configureBlocking(false);
+        sc.socket().setTcpNoDelay(true);
+
+        out.put(Http2Handler.PREFACE);
+        ByteBuffer settings = ByteBuffer.allocate(12);
+        settings.putShort((short) Http2Frame.SETTINGS_ENABLE_PUSH).putInt(0);
+        settings.putShort((short) Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE)
+                .putInt(Http2Frame.MAX_WINDOW_SIZE);
+        settings.flip();
+        writeFrame(Http2Frame.SETTINGS, 0, 0, settings);
+        writeWindowUpdate(0, Http2Frame.MAX_WINDOW_SIZE
+                             - Http2Frame.DEFAULT_WINDOW_SIZE);
+
+        connected = sc.connect(address);
+        sk = sc.register(sel, connected ? SelectionKey.OP_WRITE
+                                        : SelectionKey.OP_CONNECT, this);
+    }
+
+    // Whether new fetches may still be started here
+    boolean usable() {
+        return !closed && !goingAway && !abandoned
+                && nextStreamId < Integer.MAX_VALUE / 2;
+    }
+
+    /*
+     * GETs path from the peer (on its site for authority); the listener
+     * is told once, on this connection's thread.
+     */
+    void fetch(String authority, String path, OriginFetch.Listener listener) {
+        if (!usable()) {
+            listener.failed(new IOException("Peer connection closed: " + address));
+            return;
+        }
+        int id = nextStreamId;
+        nextStreamId += 2;
+
+        ByteBuffer block = ByteBuffer.allocate(256 + 2 * (authority.length() + path.length()));
+        Hpack.encode(block, ":method", "GET");
+        Hpack.encode(block, ":scheme", "http");
+        Hpack.encode(block, ":authority", authority);
+        Hpack.encode(block, ":path", path);
+        Hpack.encode(block, Cluster.PEER_HEADER, "1");
+        block.flip();
+        writeFrame(Http2Frame.HEADERS,
+                   Http2Frame.END_HEADERS | Http2Frame.END_STREAM, id, block);
+        streams.put(id, new PeerStream(listener));
+
+        if (connected) {
+            try {
+                flush();
+            } catch (IOException x) {
+                fail(x);
+            }
+        }
+    }
+
+    /*
+     * Called from another thread (a timed out fetch): the connection is
+     * closed on its own thread, soon after.
+     */
+    void abandon() {
+        abandoned = true;
+        RequestHandler.wake(sk, SelectionKey.OP_WRITE);
+    }
+
+    public void handle(SelectionKey sk) throws IOException {
+        try {
+            if (abandoned) {
+                throw new IOException("Peer timed out: " + address);
+            }
+            if (!connected) {
+                if (!sc.finishConnect())
+                    return;
+                connected = true;
+            }
+            if (sc.read(in) < 0) {
+                throw new EOFException("Peer closed the connection: " + address);
+            }
+            processFrames();
+            flush();
+            if (goingAway && streams.isEmpty()) {
+                close();
+            }
+        } catch (IOException | Http2Exception x) {
+            fail(x instanceof IOException ? (IOException) x
+                                           : new IOException(x.getMessage()));
+        }
+    }
+
+    private void flush() throws IOException {
+        out.flip();
+        if (out.hasRemaining()) {
+            sc.write(out);
+        }
+        out.compact();
+        if (!closed) {
+            sk.interestOps(SelectionKey.OP_READ
+                    | (out.position() > 0 ? SelectionKey.OP_WRITE : 0));
+        }
+    }
+
+    private void processFrames() throws IOException, Http2Exception {
+        in.flip();
+        while (in.remaining() >= Http2Frame.HEADER_SIZE) {
+            int p = in.position();
+            int length = Http2Frame.length(in, p);
+            if (length > Http2Frame.DEFAULT_MAX_FRAME_SIZE) {
+                throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR,
+                        "Frame too large from peer: " + length);
+            }
+            if (in.remaining() < Http2Frame.HEADER_SIZE + length)
+                break;
+
+            int type = Http2Frame.type(in, p);
+            int flags = Http2Frame.flags(in, p);
+            int streamId = Http2Frame.streamId(in, p);
+            ByteBuffer payload = in.duplicate();
+            payload.position(p + Http2Frame.HEADER_SIZE);
+            payload.limit(p + Http2Frame.HEADER_SIZE + length);
+            in.position(p + Http2Frame.HEADER_SIZE + length);
+
+            frame(type, flags, streamId, payload.slice());
+        }
+        in.compact();
+    }
+
+    private void frame(int type, int flags, int streamId, ByteBuffer payload)
+            throws IOException, Http2Exception {
+        if (headersStreamId != 0 && type != Http2Frame.CONTINUATION) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR,
+                    "Expected CONTINUATION from peer");
+        }
+
+        switch (type) {
+        case Http2Frame.SETTINGS:
+            if ((flags & Http2Frame.ACK) == 0) {
+                writeFrame(Http2Frame.SETTINGS, Http2Frame.ACK, 0, null);
+            }
+            break;
+
+        case Http2Frame.PING:
+            if ((flags & Http2Frame.ACK) == 0) {
+                writeFrame(Http2Frame.PING, Http2Frame.ACK, 0, payload);
+            }
+            break;
+
+        case Http2Frame.HEADERS:
+            payload = unpad(flags, payload);
+            if ((flags & Http2Frame.PRIORITY_FLAG) != 0) {
+                payload.position(payload.position() + 5);
+            }
+            headersStreamId = streamId;
+            headersEndStream = (flags & Http2Frame.END_STREAM) != 0;
+            headerBlock = ByteBuffer.allocate(Math.max(payload.remaining(), 1024));
+            headerBlock.put(payload);
+            if ((flags & Http2Frame.END_HEADERS) != 0) {
+                endHeaders();
+            }
+            break;
+
+        case Http2Frame.CONTINUATION:
+            if (streamId != headersStreamId) {
+                throw new Http2Exception(Http2Frame.PROTOCOL_ERROR,
+                        "Unexpected CONTINUATION from peer");
+            }
+            if (headerBlock.remaining() < payload.remaining()) {
+                ByteBuffer bb = ByteBuffer.allocate(
+                        headerBlock.position() + payload.remaining());
+                headerBlock.flip();
+                bb.put(headerBlock);
+                headerBlock = bb;
+            }
+            headerBlock.put(payload);
+            if ((flags & Http2Frame.END_HEADERS) != 0) {
+                endHeaders();
+            }
+            break;
+
+        case Http2Frame.DATA:
+            received += payload.remaining();
+            if (received >= WINDOW_UPDATE_THRESHOLD) {
+                writeWindowUpdate(0, received);
+                received = 0;
+            }
+            data(streamId, unpad(flags, payload),
+                 (flags & Http2Frame.END_STREAM) != 0);
+            break;
+
+        case Http2Frame.RST_STREAM: {
+            PeerStream s = streams.remove(streamId);
+            if (s != null) {
+                s.listener.failed(new IOException(
+                        "Peer reset the stream: " + payload.getInt(0)));
+            }
+            break;
+        }
+
+        case Http2Frame.GOAWAY: {
+            goingAway = true;
+            int lastStreamId = payload.getInt(0) & 0x7fffffff;
+            Iterator<Map.Entry<Integer, PeerStream>> i =
+                streams.entrySet().iterator();
+            while (i.hasNext()) {
+                Map.Entry<Integer, PeerStream> e = i.next();
+                if (e.getKey() > lastStreamId) {
+                    i.remove();
+                    e.getValue().listener.failed(
+                            new IOException("Peer going away: " + address));
+                }
+            }
+            break;
+        }
+
+        default:
+            // WINDOW_UPDATE, PRIORITY: nothing to do for a client like us
+            break;
+        }
+    }
+
+    private static ByteBuffer unpad(int flags, ByteBuffer payload)
+            throws Http2Exception {
+        if ((flags & Http2Frame.PADDED) == 0)
+            return payload;
+        int pad = payload.get() & 0xff;
+        if (pad > payload.remaining()) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "Bad padding");
+        }
+        payload.limit(payload.limit() - pad);
+        return payload;
+    }
+
+    private void endHeaders() throws IOException, Http2Exception {
+        int streamId = headersStreamId;
+        headersStreamId = 0;
+        headerBlock.flip();
+
+        // Always decode, the dynamic table must stay in sync with the peer
+        List<String[]> fields = decoder.decode(headerBlock);
+        headerBlock = null;
+
+        PeerStream s = streams.get(streamId);
+        if (s == null) {
+            return;
+        }
+        if (s.headers != null) {
+            // Trailers
+            if (headersEndStream)
+                complete(streamId, s);
+            return;
+        }
+
+        s.headers = new HashMap<>();
+        for (String[] field : fields) {
+            if (field[0].equals(":status")) {
+                try {
+                    s.status = Integer.parseInt(field[1]);
+                } catch (NumberFormatException x) {
+                    throw new Http2Exception(Http2Frame.PROTOCOL_ERROR,
+                            "Bad :status from peer");
+                }
+            } else {
+                s.headers.put(field[0], field[1]);
+            }
+        }
+
+        long length = -1;
+        try {
+            length = Long.parseLong(s.headers.getOrDefault("content-length", "-1"));
+        } catch (NumberFormatException x) {
+            // sized as the DATA comes
+        }
+        if (length > maxBytes) {
+            refuse(streamId, s, length);
+            return;
+        }
+        s.body = ByteBuffer.allocate((int) Math.max(length, 0));
+
+        if (headersEndStream) {
+            complete(streamId, s);
+        }
+    }
+
+    private void data(int streamId, ByteBuffer payload, boolean endStream)
+            throws IOException {
+        PeerStream s = streams.get(streamId);
+        if (s == null || s.body == null) {
+            return;
+        }
+        if (s.body.remaining() < payload.remaining()) {
+            long size = (long) s.body.position() + payload.remaining();
+            if (size > maxBytes) {
+                refuse(streamId, s, size);
+                return;
+            }
+            ByteBuffer bb = ByteBuffer.allocate(
+                    (int) Math.min(Math.max(size, 2L * s.body.capacity()), maxBytes));
+            s.body.flip();
+            bb.put(s.body);
+            s.body = bb;
+        }
+        s.body.put(payload);
+        if (endStream) {
+            complete(streamId, s);
+        }
+    }
+
+    private void complete(int streamId, PeerStream s) {
+        streams.remove(streamId);
+        ByteBuffer body = (s.body != null) ? s.body : ByteBuffer.allocate(0);
+        body.flip();
+        s.listener.fetched(s.status, s.headers, body);
+    }
+
+    private void refuse(int streamId, PeerStream s, long size) {
+        streams.remove(streamId);
+        ByteBuffer code = ByteBuffer.allocate(4);
+        code.putInt(Http2Frame.CANCEL).flip();
+        writeFrame(Http2Frame.RST_STREAM, 0, streamId, code);
+        s.listener.failed(new IOException(
+                "Peer object exceeds " + maxBytes + " bytes: " + size));
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) {
+        ByteBuffer bb = ByteBuffer.allocate(4);
+        bb.putInt(increment).flip();
+        writeFrame(Http2Frame.WINDOW_UPDATE, 0, streamId, bb);
+    }
+
+    private void writeFrame(int type, int flags, int streamId,
+                            ByteBuffer payload) {
+        int length = (payload == null) ? 0 : payload.remaining();
+        if (out.remaining() < Http2Frame.HEADER_SIZE + length) {
+            ByteBuffer bb = ByteBuffer.allocate(Math.max(out.capacity() * 2,
+                    out.position() + Http2Frame.HEADER_SIZE + length));
+            out.flip();
+            bb.put(out);
+            out = bb;
+        }
+        Http2Frame.putHeader(out, length, type, flags, streamId);
+        if (payload != null) {
+            out.put(payload);
+        }
+    }
+
+    // Fails whatever is still open and closes the connection
+    private void fail(IOException x) {
+        close();
+        List<PeerStream> open = new ArrayList<>(streams.values());
+        streams.clear();
+        for (PeerStream s : open) {
+            s.listener.failed(x);
+        }
+    }
+
+    private void close() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            sc.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        onClose.closed(this);
+    }
+}
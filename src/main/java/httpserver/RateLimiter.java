@@ -0,0 +1,151 @@
+package httpserver;
+
+import java.net.InetAddress;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+/**
+ * Per-client (remote address) token buckets for new connections,
+ * requests and bytes sent.
+ * <P>
+ * The clients live in a StripedLru, so the selector threads rarely meet
+ * on the same lock and the table never grows past maxClients: the least
+ * recently seen clients are evicted first (and start over with full
+ * buckets if they come back).  A connection looks its Client up once, when it's
+ * accepted; after that each check only touches the Client itself.
+ *
+ */
+class RateLimiter {
+
+    private static int STRIPES = 64;
+
+    /*
+     * Rates per second and bucket sizes.  A rate of 0 turns that limit
+     * off.
+     */
+    private final double connectionRate, connectionBurst;
+    private final double requestRate, requestBurst;
+    private final double byteRate, byteBurst;
+
+    private final StripedLru<InetAddress, Client> clients;
+
+    private static ScheduledExecutorService timer =
+        Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "rate-limit-timer");
+            t.setDaemon(true);
+            return t;
+        });
+
+    /*
+     * The buckets of one client.  All three are refilled together,
+     * lazily, whenever one of them is checked.
+     */
+    class Client {
+
+        private double connections = connectionBurst;
+        private double requests = requestBurst;
+        private double bytes = byteBurst;
+        private long last = System.nanoTime();
+
+        private void refill() {
+            long now = System.nanoTime();
+            double seconds = (now - last) / 1e9;
+            last = now;
+            connections = Math.min(connectionBurst,
+                                   connections + seconds * connectionRate);
+            requests = Math.min(requestBurst,
+                                requests + seconds * requestRate);
+            bytes = Math.min(byteBurst, bytes + seconds * byteRate);
+        }
+
+        boolean tryConnect() {
+            if (connectionRate == 0)
+                return true;
+            synchronized (this) {
+                refill();
+                if (connections < 1)
+                    return false;
+                connections -= 1;
+                return true;
+            }
+        }
+
+        boolean tryRequest() {
+            if (requestRate == 0)
+                return true;
+            synchronized (this) {
+                refill();
+                if (requests < 1)
+                    return false;
+                requests -= 1;
+                return true;
+            }
+        }
+
+        // How many bytes may be sent right now (0 if none)
+        long bytesAvailable() {
+            if (byteRate == 0)
+                return Long.MAX_VALUE;
+            synchronized (this) {
+                refill();
+                return (bytes < 1) ? 0 : (long) bytes;
+            }
+        }
+
+        void bytesSent(long n) {
+            if (byteRate == 0)
+                return;
+            synchronized (this) {
+                bytes -= n;
+            }
+        }
+
+        // Time until some bytes may be sent again
+        synchronized long bytesDelayNanos() {
+            refill();
+            return (bytes >= 1) ? 0 : (long) ((1 - bytes) / byteRate * 1e9);
+        }
+    }
+
+    // Handed to every connection when no limit is set
+    private final Client unlimited;
+
+    RateLimiter(double connectionRate, double connectionBurst,
+                double requestRate, double requestBurst,
+                double byteRate, double byteBurst, int maxClients) {
+        this.connectionRate = connectionRate;
+        this.connectionBurst = Math.max(connectionBurst, 1);
+        this.requestRate = requestRate;
+        this.requestBurst = Math.max(requestBurst, 1);
+        this.byteRate = byteRate;
+        this.byteBurst = Math.max(byteBurst, 1);
+
+        unlimited = new Client();
+        clients = new StripedLru<>(STRIPES, maxClients, null);
+    }
+
+    boolean enabled() {
+        return connectionRate != 0 || requestRate != 0 || byteRate != 0;
+    }
+
+    Client client(InetAddress address) {
+        if (!enabled())
+            return unlimited;
+        return clients.computeIfAbsent(address, a -> new Client());
+    }
+
+    /*
+     * Turn the interest ops of a connection which is out of bytes back
+     * on once its bucket has refilled.
+     */
+    static void resumeLater(SelectionKey sk, int ops, long nanos) {
+        timer.schedule(() -> {
+            try {
+                sk.interestOps(ops);
+                sk.selector().wakeup();
+            } catch (CancelledKeyException x) {
+                // connection closed meanwhile
+            }
+        }, Math.max(nanos, 1_000_000L), TimeUnit.NANOSECONDS);
+    }
+}
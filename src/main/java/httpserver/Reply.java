@@ -3,6 +3,8 @@ package httpserver;
 import java.io.*;
 import java.nio.*;
 import java.nio.charset.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * An object used for sending Content to the requestor.
@@ -19,29 +21,92 @@ class Reply implements Sendable {
         private String reason;
         private Code(int i, String r) { number = i; reason = r; }
         public String toString() { return number + " " + reason; }
+        int number() { return number; }
 
         static Code OK = new Code(200, "OK");
+        static Code MOVED_PERMANENTLY = new Code(301, "Moved Permanently");
         static Code NOT_MODIFIED = new Code(304, "Not Modified");
         static Code BAD_REQUEST = new Code(400, "Bad Request");
         static Code NOT_FOUND = new Code(404, "Not Found");
         static Code METHOD_NOT_ALLOWED = new Code(405, "Method Not Allowed");
         static Code PRECONDITION_FAILED = new Code(412, "Precondition Failed");
+        static Code TOO_MANY_REQUESTS = new Code(429, "Too Many Requests");
+        static Code BAD_GATEWAY = new Code(502, "Bad Gateway");
+        static Code SERVICE_UNAVAILABLE = new Code(503, "Service Unavailable");
     }
 
     private Code code;
     private Content content;
     private boolean headersOnly;
     private Charset charset;
+    private Freshness freshness = null;
+
+    // Set (instead of content) for a 304 answered from the cache entry
+    private CacheEntry notModified = null;
+
+    // For a 503: seconds to Retry-After, and the headers if pre-encoded
+    private int retryAfter = -1;
+    private ByteBuffer encoded = null;
+
+    // For a redirect
+    private String location = null;
+
+    // Begun when a recording wants it, committed by headersWritten()
+    private Events.FirstByteWritten firstByteEvent;
 
     Reply(Code rc, Content c) {
         this(rc, c, Charset.forName("UTF-8"), null);
     }
 
     Reply(Code rc, Content c, Charset ch, Request.Action head) {
+        this(rc, c, ch, head, null);
+    }
+
+    Reply(Code rc, Content c, Charset ch, Request.Action head, Freshness f) {
         code = rc;
         content = c;
         charset = ch;
         headersOnly = (head == Request.Action.HEAD);
+        freshness = f;
+        firstByteEvent = Events.begin(new Events.FirstByteWritten());
+    }
+
+    /*
+     * A 304 for a cache entry.  No Content is created: the validators
+     * come from the entry, which also keeps the encoded headers for
+     * the following requests.
+     */
+    static Reply notModified(CacheEntry entry, Freshness f) {
+        Reply reply = new Reply(Code.NOT_MODIFIED, null,
+                Charset.forName("US-ASCII"), Request.Action.HEAD, f);
+        reply.notModified = entry;
+        return reply;
+    }
+
+    /*
+     * A 503 without content.  encoded is what encode() gave for an
+     * earlier one like it, or null.
+     */
+    static Reply serviceUnavailable(int retryAfter, ByteBuffer encoded) {
+        Reply reply = new Reply(Code.SERVICE_UNAVAILABLE, null,
+                Charset.forName("US-ASCII"), Request.Action.HEAD, null);
+        reply.retryAfter = retryAfter;
+        reply.encoded = encoded;
+        return reply;
+    }
+
+    // A 404 that says just that
+    static Reply notFound(Request.Action head) {
+        return new Reply(Code.NOT_FOUND, new StringContent("Not found"),
+                Charset.forName("UTF-8"), head);
+    }
+
+    // A redirect to location (absolute path, already encoded)
+    static Reply redirect(String location) {
+        Reply reply = new Reply(Code.MOVED_PERMANENTLY, null,
+                Charset.forName("US-ASCII"), Request.Action.HEAD, null);
+        reply.location = location;
+        return reply;
     }
 
     private static String CRLF = "\r\n";
@@ -49,18 +114,74 @@ class Reply implements Sendable {
 
     private ByteBuffer hbb = null;
 
+    Code code() { return code; }
+    Content content() { return content; }
+    boolean headersOnly() { return headersOnly; }
+
+    // Bytes of content sent (or to be sent) after the headers
+    long bodyLength() {
+        return (headersOnly || content == null)
+                ? 0 : Math.max(content.length(), 0);
+    }
+
+    // For the access log: whether the file came from the cache
+    byte cacheStatus() {
+        CacheEntry entry = (notModified != null) ? notModified
+                : (content instanceof FileContent)
+                    ? ((FileContent) content).entry() : null;
+        if (entry == null)
+            return AccessLog.NO_CACHE;
+        return entry.cached() ? AccessLog.CACHE_HIT : AccessLog.CACHE_MISS;
+    }
+
+    /*
+     * The header fields of this reply, in the order they are sent.
+     * The HTTP/2 handler sends the same fields in a HEADERS frame.
+     */
+    Map<String, String> fields() {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("Server", "IskServer");
+        if (content != null) {
+            fields.put("Content-type", content.type());
+            // Unknown for a streamed one: the end of the connection
+            // (or stream) tells
+            if (content.length() >= 0) {
+                fields.put("Content-length", Long.toString(content.length()));
+            }
+        } else if (notModified == null) {
+            fields.put("Content-length", "0");
+        }
+        if (location != null) {
+            fields.put("Location", location);
+        }
+        if (retryAfter >= 0) {
+            fields.put("Retry-After", Integer.toString(retryAfter));
+        }
+
+        if (!etag().isEmpty()) {
+            fields.put("ETag", "\"" + etag() + "\"");
+        }
+        if (!lastModified().isEmpty()) {
+            fields.put("Last-Modified", lastModified());
+        }
+        if (freshness != null) {
+            fields.put("Cache-Control", freshness.cacheControl());
+            String expires = freshness.expires(System.currentTimeMillis());
+            if (expires != null) {
+                fields.put("Expires", expires);
+            }
+        }
+        return fields;
+    }
+
     private ByteBuffer headers() {
         CharBuffer cb = CharBuffer.allocate(1024);
         for (;;) {
             try {
                 cb.put("HTTP/1.0 ").put(code.toString()).put(CRLF);
-                cb.put("Server: IskServer").put(CRLF);
-                cb.put("Content-type: ").put(content.type()).put(CRLF);
-                cb.put("Content-length: ")
-                    .put(Long.toString(content.length())).put(CRLF);
-
-                if (!content.etag().isEmpty()) {
-                    cb.put("ETag: ").put(content.etag()).put(CRLF);
+                for (Map.Entry<String, String> field : fields().entrySet()) {
+                    cb.put(field.getKey()).put(": ")
+                        .put(field.getValue()).put(CRLF);
                 }
 
                 cb.put(CRLF);
@@ -75,7 +196,30 @@ class Reply implements Sendable {
         return charset.encode(cb);
     }
 
+    // The encoded headers, to be reused by replies just like this one
+    ByteBuffer encode() {
+        return headers().asReadOnlyBuffer();
+    }
+
     public void prepare() throws IOException {
+        if (encoded != null) {
+            hbb = encoded.duplicate();
+            return;
+        }
+        if (content == null && notModified == null) {
+            hbb = headers();
+            return;
+        }
+        if (notModified != null) {
+            long second = System.currentTimeMillis() / 1000;
+            hbb = notModified.notModifiedHeaders(second, freshness);
+            if (hbb == null) {
+                hbb = headers();
+                notModified.notModifiedHeaders(second, freshness,
+                                                hbb.duplicate());
+            }
+            return;
+        }
         content.prepare();
         hbb = headers();
     }
@@ -88,6 +232,7 @@ class Reply implements Sendable {
         if (hbb.hasRemaining()) {
             if (cio.write(hbb) <= 0)
                 return true;
+            headersWritten();
         }
 
         if (!headersOnly) {
@@ -101,11 +246,31 @@ class Reply implements Sendable {
         return false;
     }
 
+    /*
+     * The first bytes of the reply are out (HTTP/1.x), or its HEADERS
+     * frame is built (HTTP/2).
+     */
+    void headersWritten() {
+        Events.FirstByteWritten e = firstByteEvent;
+        firstByteEvent = null;
+        if (e != null && e.shouldCommit()) {
+            e.status = code.number();
+            e.commit();
+        }
+    }
+
     public void release() throws IOException {
-        content.release();
+        if (content != null)
+            content.release();
     }
 
     public String etag()  {
-        return content.etag();
+        return (content != null) ? content.etag()
+                : (notModified != null) ? notModified.etag() : "";
+    }
+
+    String lastModified() {
+        return (content != null) ? content.lastModified()
+                : (notModified != null) ? notModified.lastModifiedDate() : "";
     }
 }
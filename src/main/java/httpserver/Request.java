@@ -6,6 +6,7 @@ import java.nio.*;
 import java.nio.charset.*;
 import java.util.Arrays;
 import java.util.Hashtable;
+import java.util.Map;
 import java.util.regex.*;
 
 /**
@@ -47,11 +48,12 @@ class Request {
     private Action action;
     private String version;
     private URI uri;
-    private Hashtable headers;
+    private Map<String, String> headers;
 
     private String acceptCharset;
     private boolean ifNoneMatch;
     private String eTag;
+    private long ifModifiedSince;
 
     Action action() { return action; }
     String version() { return version; }
@@ -59,14 +61,36 @@ class Request {
     String acceptCharset() { return acceptCharset; }
     boolean ifNoneMatch() { return ifNoneMatch; }
     String eTag() { return eTag; }
+    long ifModifiedSince() { return ifModifiedSince; }
 
-    private Request(Action a, String v, URI u, String ac, String et) {
+    // Header names are in lowercase
+    String header(String name) { return headers.get(name); }
+
+    private Request(Action a, String v, URI u, Map<String, String> h,
+                    String ac, String et, long ims) {
         action = a;
         version = v;
         uri = u;
+        headers = h;
         acceptCharset = ac;
         eTag = et;
         ifNoneMatch = (!eTag.isEmpty());
+        ifModifiedSince = ims;
+    }
+
+    /*
+     * If-None-Match may list several tags (with or without W/ prefix),
+     * or be "*".
+     */
+    boolean eTagMatches(String actualETag) {
+        for (String tag : eTag.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/"))
+                tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(actualETag))
+                return true;
+        }
+        return false;
     }
 
     public String toString() {
@@ -119,9 +143,34 @@ class Request {
         if (!m.matches())
             throw new MalformedRequestException();
 
+        // Parse headers
+        String headers = m.group(4);
+        String[] headersLines = headers.split(System.getProperty("line.separator"));
+        Hashtable<String, String> headerTable = new Hashtable();
+        for (String header: headersLines) {
+            int idx = header.indexOf(':');
+            if (idx > 0) {
+                headerTable.put(header.substring(0, idx).toLowerCase(),
+                        header.substring(idx + 1).trim());
+            }
+        }
+
+        return create(m.group(1), m.group(5), m.group(2), m.group(3),
+                      headerTable);
+    }
+
+    /*
+     * Builds a request from its already separated parts.  Used by
+     * parse() and by the HTTP/2 handler, which gets them from a
+     * decoded header block.  Header names must be in lowercase.
+     */
+    static Request create(String method, String host, String path,
+                          String version, Map<String, String> headerTable)
+            throws MalformedRequestException {
+
         Action a;
         try {
-            a = Action.parse(m.group(1));
+            a = Action.parse(method);
         } catch (IllegalArgumentException x) {
             throw new MalformedRequestException();
         }
@@ -129,24 +178,12 @@ class Request {
         URI u;
         try {
             u = new URI("http://"
-                        + m.group(5)
-                        + m.group(2));
+                        + host
+                        + path);
         } catch (URISyntaxException x) {
             throw new MalformedRequestException();
         }
 
-        // Parse headers
-        String headers = m.group(4);
-        String[] headersLines = headers.split(System.getProperty("line.separator"));
-        Hashtable<String, String> headerTable = new Hashtable();
-        for (String header: headersLines) {
-            int idx = header.indexOf(':');
-            if (idx > 0) {
-                headerTable.put(header.substring(0, idx).toLowerCase(),
-                        header.substring(idx + 1).trim());
-            }
-        }
-
         // headerTable keys are in lowercase
         String ac = headerTable.get("accept-charset");
         String et = "";
@@ -155,6 +192,10 @@ class Request {
             et = headerTable.get("if-none-match").replace("\"","");
         }
 
-        return new Request(a, m.group(3), u, ac, et);
+        // -1 when absent or not a valid HTTP-date
+        long ims = headerTable.containsKey("if-modified-since")
+                ? HttpDate.parse(headerTable.get("if-modified-since")) : -1;
+
+        return new Request(a, version, u, headerTable, ac, et, ims);
     }
 }
@@ -1,11 +1,11 @@
 package httpserver;
 
-import org.apache.commons.io.FilenameUtils;
 import java.io.*;
 import java.net.URI;
 import java.nio.*;
 import java.nio.channels.*;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Primary driver class used by non-blocking Servers to receive,
@@ -15,29 +15,56 @@ import java.nio.charset.Charset;
 class RequestHandler implements Handler {
 
     private ChannelIO cio;
-    FileContentManager frm;
+    VirtualHosts hosts;
     private ByteBuffer rbb = null;
 
     private boolean requestReceived = false;
     private Request request = null;
     private Reply reply = null;
 
-    private static int created = 0;
+    private AccessLog accessLog;
+    private long startNanos;
 
-    RequestHandler(ChannelIO cio, FileContentManager frm) {
+    // JFR events, while a recording wants them
+    private Events.RequestParsed parsedEvent;
+    private Events.ReplyCompleted completedEvent = null;
+
+    private RateLimiter.Client client;
+    private PacedChannel paced = null;
+
+    /*
+     * At most writeQuantum bytes are written per handle(), so that a big
+     * download can't hold up the other connections of the event loop.
+     * throttled says whether the last send() was cut shorter than that
+     * by the client's bandwidth limit.
+     */
+    private int writeQuantum;
+    private boolean throttled = false;
+
+    private LoadShedder shedder;
+
+    /*
+     * While the object is pulled from the origin (edge cache), the
+     * connection waits with no interest ops; the outcome is left here
+     * by whichever thread ran the fetch.
+     */
+    private boolean pulling = false;
+    private volatile boolean pulled = false;
+    private CacheEntry pulledEntry;
+    private IOException pullFailure;
+
+    private static Charset utf8 = Charset.forName("UTF-8");
+
+    RequestHandler(ChannelIO cio, VirtualHosts hosts, AccessLog accessLog,
+                   RateLimiter.Client client, int writeQuantum,
+                   LoadShedder shedder) {
         this.cio = cio;
-        this.frm = frm;
-
-        // Simple heartbeat to let user know we're alive.
-        synchronized (RequestHandler.class) {
-            created++;
-            if ((created % 50) == 0) {
-                System.out.println(".");
-                created = 0;
-            } else {
-                System.out.print(".");
-            }
-        }
+        this.hosts = hosts;
+        this.accessLog = accessLog;
+        this.client = client;
+        this.writeQuantum = writeQuantum;
+        this.shedder = shedder;
+        this.parsedEvent = Events.begin(new Events.RequestParsed());
     }
 
     // Returns true when request is complete
@@ -54,8 +81,16 @@ class RequestHandler implements Handler {
             return false;
         }
 
-        if ((cio.read() < 0) || Request.isComplete(cio.getReadBuf())) {
+        int n = cio.read();
+        if ((n >= 0) && Http2Handler.startsWithPreface(cio.getReadBuf())) {
+            // handle() switches protocols once the whole preface is in
+            return false;
+        }
+
+        if ((n < 0) || Request.isComplete(cio.getReadBuf())) {
             rbb = cio.getReadBuf();
+            startNanos = System.nanoTime();
+            completedEvent = Events.begin(new Events.ReplyCompleted());
             return (requestReceived = true);
         }
         return false;
@@ -66,6 +101,8 @@ class RequestHandler implements Handler {
     private boolean parse() throws IOException {
         try {
             request = Request.parse(rbb);
+            Events.requestParsed(parsedEvent, request,
+                                 "HTTP/" + request.version());
             return true;
         } catch (MalformedRequestException x) {
             reply = new Reply(Reply.Code.BAD_REQUEST,
@@ -74,87 +111,183 @@ class RequestHandler implements Handler {
         return false;
     }
 
-    // Ensures that reply field is non-null
+    // The charset of a reply: US-ASCII if the client asks for it, or UTF-8
     //
-    private void build() throws IOException {
+    static Charset charset(Request request) {
+        return "US-ASCII".equalsIgnoreCase(request.acceptCharset())
+                ? StandardCharsets.US_ASCII : StandardCharsets.UTF_8;
+    }
+
+    // Returns the reply for a parsed request; also used by Http2Handler
+    //
+    static Reply build(Request request, VirtualHosts hosts)
+            throws IOException {
+        return build(request, hosts, null, null);
+    }
+
+    /*
+     * For an object pulled from the origin, pulled is what it gave
+     * (or failure, why not).  It may also be a variant, already in the
+     * request's charset.
+     */
+    static Reply build(Request request, VirtualHosts hosts,
+                       CacheEntry pulled, IOException failure)
+            throws IOException {
 
         Request.Action action = request.action();
-        if ((action != Request.Action.GET)) {
-            reply = new Reply(Reply.Code.METHOD_NOT_ALLOWED,
-                              new StringContent(request.toString()));
-            return;
+        if ((action != Request.Action.GET) && (action != Request.Action.HEAD)) {
+            return new Reply(Reply.Code.METHOD_NOT_ALLOWED,
+                             new StringContent(request.toString()));
         }
 
+        FileContentManager frm = hosts.site(request);
         URI requestUri = request.uri();
-        String acceptCharsetName = request.acceptCharset() != null
-                ? request.acceptCharset() : "UTF-8";;
-        String charsetName = acceptCharsetName.equalsIgnoreCase("US-ASCII")
-                ? acceptCharsetName : "UTF-8";
-        Charset charset = Charset.forName(charsetName.toUpperCase());
-
-        String contentPath = requestUri.getPath().replace('/', File.separatorChar);
-        MappedByteBuffer mbb;
+        Charset charset = charset(request);
+        String charsetName = charset.name();
+
+        // Normalized, and never outside the site's root
+        String contentPath;
         try {
-            mbb = frm.getFileContent(contentPath);
+            contentPath = frm.normalize(
+                    requestUri.getPath().replace('/', File.separatorChar));
+        } catch (FileNotFoundException x) {
+            return Reply.notFound(action);
+        }
+        boolean local = (pulled == null && failure == null && !frm.isEdge());
+        Freshness freshness = frm.getFreshness(
+                contentPath.replace(File.separatorChar, '/'));
+        CacheEntry entry = null;
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            if (local && contentPath.endsWith(File.separator)) {
+                // A directory: its index.html, or else a listing
+                String index = frm.index(contentPath);
+                if (index != null) {
+                    contentPath = index;
+                } else {
+                    entry = frm.cachedListing(contentPath, charset);
+                    if (entry == null) {
+                        return new Reply(Reply.Code.OK,
+                                frm.listing(contentPath, contentPath.replace(
+                                        File.separatorChar, '/'), charset),
+                                charset, action, freshness);
+                    }
+                }
+            }
+            if (entry == null) {
+                entry = (pulled != null)
+                        ? frm.getFileContent(contentPath, pulled, charset)
+                        : frm.getFileContent(contentPath, charset);
+            }
+        } catch (FileNotFoundException x) {
+            if (local && frm.isDirectory(contentPath)
+                    && !contentPath.endsWith(File.separator)) {
+                String query = requestUri.getRawQuery();
+                return Reply.redirect(requestUri.getRawPath() + "/"
+                        + ((query != null) ? "?" + query : ""));
+            }
+            return Reply.notFound(action);
         } catch (IOException x) {
-            reply = new Reply(Reply.Code.NOT_FOUND,
-                    new StringContent(x));
-            return;
+            // From the local disk that's a missing file too; an edge
+            // site has nothing but the origin's
+            if (failure == null && !frm.isEdge()) {
+                return Reply.notFound(action);
+            }
+            return new Reply(Reply.Code.BAD_GATEWAY, new StringContent(x),
+                             utf8, action);
+        }
+
+        // Validators are checked before any Content is created
+        if (notModified(request, entry)) {
+            return Reply.notModified(entry, freshness);
         }
-        String extension = FilenameUtils.getExtension(contentPath);
-        reply = new Reply(Reply.Code.OK,
-                new FileContent(mbb, extension, charsetName),
-                charset, action);
 
-        // Etag handle
+        String extension = FileContentManager.extension(contentPath);
+        return new Reply(Reply.Code.OK,
+                new FileContent(entry, extension, charsetName),
+                charset, action, freshness);
+    }
+
+    // If-None-Match takes precedence over If-Modified-Since (RFC 7232, 6);
+    // HTTP-dates have whole seconds only
+    //
+    private static boolean notModified(Request request, CacheEntry entry) {
         if (request.ifNoneMatch()) {
-            String actualETag = reply.etag();
-            String requestETag = request.eTag();
-            if (actualETag.equals(requestETag)) {
-                reply = new Reply(Reply.Code.NOT_MODIFIED,
-                        new StringContent(request.toString()));
-            }
+            return request.eTagMatches(entry.etag());
         }
+        long since = request.ifModifiedSince();
+        return (since >= 0) && (entry.lastModified() / 1000 <= since / 1000);
+    }
+
+    // HTTP/1.1 "Upgrade: h2c" (RFC 7540, 3.2); over TLS h2 is chosen by ALPN
+    //
+    private boolean isH2cUpgrade(Request request) {
+        String upgrade = request.header("upgrade");
+        return !(cio instanceof ChannelIOSecure)
+                && "1.1".equals(request.version())
+                && upgrade != null
+                && upgrade.toLowerCase().matches("(.*[ ,])?h2c([ ,].*)?")
+                && request.header("http2-settings") != null;
+    }
+
+    // From now on the connection is served by an Http2Handler
+    //
+    private void switchToHttp2(SelectionKey sk, Request upgrade)
+            throws IOException {
+        Http2Handler h2 = new Http2Handler(cio, hosts, accessLog, client,
+                                           writeQuantum, shedder, sk, upgrade);
+        sk.attach(h2);
+        h2.handle(sk);
     }
 
     public void handle(SelectionKey sk) throws IOException {
         try {
 
-            if (request == null) {
-                if (!receive(sk))
+            if (pulling) {
+                if (!pulled) {
                     return;
-                rbb.flip();
-                if (parse()) {
-                    build();
                 }
-                try {
-                    reply.prepare();
-                } catch (IOException x) {
-                    reply.release();
-                    reply = new Reply(Reply.Code.NOT_FOUND,
-                                      new StringContent(x));
-                    reply.prepare();
+                pulling = false;
+                reply = build(request, hosts, pulledEntry, pullFailure);
+                respond(sk);
+
+            } else if (request == null) {
+                if (!receive(sk)) {
+                    if (Http2Handler.hasPreface(cio.getReadBuf()))
+                        switchToHttp2(sk, null);
+                    return;
                 }
-                if (send()) {
-                    // More bytes remain to be written
-                    sk.interestOps(SelectionKey.OP_WRITE);
-                } else {
-                    // Reply completely written; we're done
-                    if (cio.shutdown()) {
-                        cio.close();
-                        reply.release();
+                rbb.flip();
+                if (parse()) {
+                    if (shedder.shed()) {
+                        reply = shedder.unavailable();
+                    } else if (!client.tryRequest()) {
+                        reply = new Reply(Reply.Code.TOO_MANY_REQUESTS,
+                                new StringContent("Too many requests"),
+                                utf8, request.action());
+                    } else if (isH2cUpgrade(request)) {
+                        rbb.clear();
+                        switchToHttp2(sk, request);
+                        return;
+                    } else if (pull(sk)) {
+                        return;
+                    } else {
+                        reply = build(request, hosts);
+                        shedder.replyReady();
                     }
                 }
+                respond(sk);
             } else {
                 if (!send()) {  // Should be rp.send()
-                    if (cio.shutdown()) {
-                        cio.close();
-                        reply.release();
-                    }
+                    finish(sk);
+                } else {
+                    waitForWrite(sk);
                 }
             }
         } catch (IOException x) {
-            String m = x.getMessage();
+            String m = String.valueOf(x.getMessage());
             if (!m.equals("Broken pipe") &&
                     !m.equals("Connection reset by peer")) {
                 System.err.println("RequestHandler: " + x.toString());
@@ -174,15 +307,112 @@ class RequestHandler implements Handler {
 
             cio.close();
             if (reply !=  null) {
+                log();
                 reply.release();
             }
         }
 
     }
 
+    // Waits for the socket, or for the client's bandwidth limit if
+    // that is what stopped the last send().  A send() stopped by the
+    // write quantum just waits for its next turn.
+    //
+    private void waitForWrite(SelectionKey sk) {
+        if (throttled && paced.budget <= 0) {
+            sk.interestOps(0);
+            RateLimiter.resumeLater(sk, SelectionKey.OP_WRITE,
+                                    client.bytesDelayNanos());
+        } else {
+            sk.interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void log() {
+        accessLog.log(cio.remoteAddress(),
+                request, reply, startNanos);
+        if (request != null) {
+            Events.replyCompleted(completedEvent,
+                    request.action().toString(), request.uri().getRawPath(),
+                    "HTTP/" + request.version(), reply);
+        } else {
+            Events.replyCompleted(completedEvent, "-", "-", "-", reply);
+        }
+    }
+
+    private void respond(SelectionKey sk) throws IOException {
+        try {
+            reply.prepare();
+        } catch (IOException x) {
+            reply.release();
+            reply = new Reply(Reply.Code.NOT_FOUND,
+                              new StringContent(x));
+            reply.prepare();
+        }
+        if (send()) {
+            // More bytes remain to be written
+            waitForWrite(sk);
+        } else {
+            // Reply completely written; we're done
+            finish(sk);
+        }
+    }
+
+    // Starts pulling the object from the origin if it has to be;
+    // handle() carries on when it's there
+    //
+    private boolean pull(SelectionKey sk) {
+        Request.Action action = request.action();
+        if ((action != Request.Action.GET) && (action != Request.Action.HEAD)) {
+            return false;
+        }
+        String path = request.uri().getPath().replace('/', File.separatorChar);
+
+        // No interest until the fetch is done, so no wakeup gets lost
+        sk.interestOps(0);
+        pulling = hosts.site(request).pull(request, path, cio.remoteAddress(),
+                sk.selector(), (entry, failure) -> {
+                    pulledEntry = entry;
+                    pullFailure = failure;
+                    pulled = true;
+                    wake(sk, SelectionKey.OP_WRITE);
+                });
+        return pulling;
+    }
+
+    static void wake(SelectionKey sk, int ops) {
+        try {
+            sk.interestOps(sk.interestOps() | ops);
+            sk.selector().wakeup();
+        } catch (CancelledKeyException x) {
+            // closed meanwhile
+        }
+    }
+
+    // Closes the connection once the shutdown messages (if any) are out,
+    // otherwise waits for the socket to become writable again
+    //
+    private void finish(SelectionKey sk) throws IOException {
+        if (cio.shutdown()) {
+            cio.close();
+            log();
+            reply.release();
+        } else {
+            sk.interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+
     private boolean send() throws IOException {
         try {
-            return reply.send(cio);
+            if (paced == null) {
+                paced = new PacedChannel(cio);
+            }
+            long available = client.bytesAvailable();
+            throttled = available < writeQuantum;
+            long allowed = paced.budget = Math.min(available, writeQuantum);
+            boolean more = reply.send(paced);
+            client.bytesSent(allowed - paced.budget);
+            return more;
         } catch (IOException x) {
             if (x.getMessage().startsWith("Resource temporarily")) {
                 System.err.println("## RTA");
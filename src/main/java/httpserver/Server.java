@@ -3,9 +3,17 @@ package httpserver;
 import java.io.*;
 import java.net.*;
 import java.nio.channels.*;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import javax.net.ssl.*;
 
 /**
  * The main server class.
@@ -13,31 +21,223 @@ import java.util.Properties;
  */
 public class Server {
 
-    ServerSocketChannel ssc;
-    FileContentManager frm;
+    List<ServerSocketChannel> listeners = new ArrayList<>();
+    ServerSocketChannel unixListener = null;
+    VirtualHosts hosts;
+    Admission admission;
+    Config config;
 
     static private int PORT = 8000;
     static private int BACKLOG = 1024;
     static private boolean CACHING = true;
+    static private boolean SECURE = false;
+    static private boolean LISTEN_TCP = true;
+    static private int SESSION_CACHE_SIZE = 10000;
+    static private int SESSION_TIMEOUT = 86400;
+    static private int EVENT_LOOPS = 1;
+    static private String TRANSPORT = "auto";
+    static private String LOOP_WAIT = "select";
+    static private int SPIN_POLLS = 1000;
+    static private long PARK_MAX = 1000;
+    static private int SPIN_BUDGET = 50;
+    static private boolean REUSE_PORT = false;
+    static private int MAX_CONNECTIONS = 10000;
+    static private int ACCEPT_BATCH = 64;
+    static private int WRITE_QUANTUM = 64 * 1024;
+    static private int MIN_WRITE_QUANTUM = 4096;
+    static private int SEND_BUFFER = 0;
+    static private int ACCESS_LOG_RING_SIZE = 65536;
+    static private long ACCESS_LOG_MAX_BYTES = 64L << 20;
+    static private int ACCESS_LOG_FILES = 5;
+    static private int RATE_LIMIT_CLIENTS = 1 << 20;
+    static private int WARMUP_THREADS = Runtime.getRuntime().availableProcessors();
+    static private long WARMUP_BYTES = 256L << 20;
+    static private long CACHE_BYTES = 1L << 30;
+    static private long ORIGIN_TTL = 60000;
+    static private long ORIGIN_TIMEOUT = 10000;
+    static private long ORIGIN_MAX_BYTES = 64L << 20;
+    static private long SHED_TARGET = 0;
+    static private long SHED_INTERVAL = 100;
+    static private int RETRY_AFTER = 1;
+    static private long CLUSTER_TIMEOUT = 5000;
+    static private long CLUSTER_MAX_BYTES = 1L << 20;
+    static private int OPEN_FILES = 1000;
+    static private long OPEN_FILE_VALID = 60;
+    static private boolean AUTOINDEX = false;
+    static private int AUTOINDEX_CACHE_BYTES = 256 * 1024;
     static private String PROPERTIES_FILENAME = "src/main/resources/config.properties";
 
     // TODO: 28.02.2016: fix root dir
     private static String ROOT = "root";
 
-    Server(int port, int backlog, boolean caching) throws Exception {
+    /*
+     * The settings, read once from the properties file by createServer();
+     * each starts at its default.
+     */
+    static class Config {
+        int port = PORT;
+        boolean listenTcp = LISTEN_TCP;
+        String unixSocket = null;
+        int backlog = BACKLOG;
+        boolean caching = CACHING;
+        SSLContext sslc = null;
+        FreshnessPolicy freshnessPolicy = new FreshnessPolicy(new Properties());
+        int eventLoops = EVENT_LOOPS;
+        String transport = Dispatcher.transport(TRANSPORT);
+        WaitStrategy.Kind loopWait = WaitStrategy.kind(LOOP_WAIT);
+        int spinPolls = SPIN_POLLS;
+        long parkMax = PARK_MAX;
+        int spinBudget = SPIN_BUDGET;
+        boolean reusePort = REUSE_PORT;
+        int maxConnections = MAX_CONNECTIONS;
+        int acceptBatch = ACCEPT_BATCH;
+        int writeQuantum = WRITE_QUANTUM;
+        int sendBuffer = SEND_BUFFER;
+        long shedTarget = SHED_TARGET;
+        long shedInterval = SHED_INTERVAL;
+        int retryAfter = RETRY_AFTER;
+        AccessLog accessLog = AccessLog.create(null, 0, 0, 0);
+        RateLimiter limiter = new RateLimiter(0, 0, 0, 0, 0, 0, 0);
+        CacheWarmer warmer = new CacheWarmer(WARMUP_THREADS, WARMUP_BYTES, null);
+        long cacheBytes = CACHE_BYTES;
+        Map<String, String> hostRoots = new HashMap<>();
+        Origin origin = null;
+        Cluster cluster = null;
+        OpenFileCache openFiles = new OpenFileCache(OPEN_FILES,
+                OPEN_FILE_VALID * 1000);
+        boolean autoindex = AUTOINDEX;
+        int listingBytes = AUTOINDEX_CACHE_BYTES;
+
+        // The default access log (none) is still one to open
+        Config() throws IOException {
+        }
+    }
+
+    Server(Config config) throws Exception {
+
+        this.config = config;
+        this.admission = new Admission(config.maxConnections);
+
+        if (!config.listenTcp && config.unixSocket == null) {
+            throw new IllegalArgumentException(
+                    "listenTcp is false and there is no unixSocket");
+        }
+
+        /*
+         * With SO_REUSEPORT every event loop gets its own listening
+         * socket and the kernel spreads the connections among them.
+         * Otherwise the loops share a single one.
+         */
+        boolean listenTcp = config.listenTcp;
+        boolean reusePort = config.reusePort;
+        ServerSocketChannel ssc = listenTcp ? ServerSocketChannel.open() : null;
+        if (reusePort && listenTcp && !ssc.supportedOptions().contains(
+                StandardSocketOptions.SO_REUSEPORT)) {
+            System.err.println("Server: SO_REUSEPORT is not supported here");
+            reusePort = false;
+        }
+        int count = !listenTcp ? 0 : reusePort ? config.eventLoops : 1;
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                ssc = ServerSocketChannel.open();
+            }
+            ssc.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (reusePort) {
+                ssc.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            ssc.bind(new InetSocketAddress(config.port), config.backlog);
+            ssc.configureBlocking(false);
+            listeners.add(ssc);
+        }
+
+        // Shared by all the loops, like a TCP listener without SO_REUSEPORT
+        if (config.unixSocket != null) {
+            unixListener = bindUnix(config.unixSocket, config.backlog);
+        }
 
-        ssc = ServerSocketChannel.open();
-        ssc.socket().setReuseAddress(true);
-        ssc.socket().bind(new InetSocketAddress(port), backlog);
+        int cores = Runtime.getRuntime().availableProcessors();
+        if (config.loopWait != WaitStrategy.Kind.SELECT
+                && config.eventLoops >= cores) {
+            System.err.println("Server: " + config.eventLoops + " spinning "
+                    + "event loops on " + cores + " cores leave none for "
+                    + "the rest");
+        }
+
+        /*
+         * One FileContentManager per document root (hosts may share one),
+         * all of them in the same cache.
+         */
+        SharedCache cache = new SharedCache(config.cacheBytes,
+                                            config.warmer.prefaultBytes());
+        Map<String, FileContentManager> sites = new HashMap<>();
+        sites.put(ROOT, site(ROOT, cache));
+        hosts = new VirtualHosts(sites.get(ROOT));
+        for (Map.Entry<String, String> host : config.hostRoots.entrySet()) {
+            hosts.add(host.getKey(), sites.computeIfAbsent(host.getValue(),
+                    root -> site(root, cache)));
+        }
+    }
 
-        frm = new FileContentManager(Paths.get(ROOT), caching);
+    private FileContentManager site(String root, SharedCache cache) {
+        return new FileContentManager(Paths.get(root), config.caching,
+                config.freshnessPolicy, config.warmer, cache, config.origin,
+                config.cluster, config.openFiles, config.autoindex,
+                config.listingBytes);
     }
 
     void runServer() throws Exception {
-        Dispatcher d = new Dispatcher();
-        Acceptor a = new Acceptor(ssc, d, frm);
-        new Thread(a).start();
-        d.run();
+        Dispatcher[] loops = new Dispatcher[config.eventLoops];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new Dispatcher(config.transport.equals("direct"),
+                    new WaitStrategy(config.loopWait, config.spinPolls,
+                            config.parkMax, config.spinBudget),
+                    new LoadShedder(config.shedTarget, config.shedInterval,
+                            config.retryAfter));
+            if (!listeners.isEmpty()) {
+                listen(loops[i], listeners.get(i % listeners.size()),
+                       config.sslc);
+            }
+            if (unixListener != null) {
+                // Only local proxies connect here: no TLS
+                listen(loops[i], unixListener, null);
+            }
+        }
+        for (int i = 1; i < loops.length; i++) {
+            new Thread(loops[i]::run, "event-loop-" + i).start();
+        }
+        loops[0].run();
+    }
+
+    private void listen(Dispatcher d, ServerSocketChannel ssc,
+                        SSLContext sslc) throws IOException {
+        Acceptor a = new Acceptor(ssc, d, hosts, sslc,
+                admission, config.accessLog, config.limiter,
+                config.acceptBatch, config.writeQuantum, config.sendBuffer);
+        d.register(ssc, SelectionKey.OP_ACCEPT, a);
+    }
+
+    /*
+     * Listens on a Unix domain socket.  A socket file left behind by an
+     * earlier run is removed first, but not one that a live server still
+     * accepts on.
+     */
+    static private ServerSocketChannel bindUnix(String path, int backlog)
+            throws IOException {
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(path);
+        if (Files.exists(address.getPath())) {
+            try {
+                SocketChannel.open(address).close();
+                throw new BindException(path + " is in use");
+            } catch (ConnectException x) {
+                Files.delete(address.getPath());
+            }
+        }
+        ServerSocketChannel ssc =
+            ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        ssc.bind(address, backlog);
+        ssc.configureBlocking(false);
+        address.getPath().toFile().deleteOnExit();
+        return ssc;
     }
 
     static private void usage() {
@@ -45,14 +245,46 @@ public class Server {
         System.exit(1);
     }
 
+    /*
+     * Build the server-side SSLContext from a keystore holding the
+     * certificate and its private key.  A self-signed one will do:
+     *
+     *     keytool -genkeypair -alias httpserver -keyalg RSA \
+     *             -keystore keystore.p12 -storepass changeit \
+     *             -dname CN=localhost
+     *
+     * Sessions are kept in the server session cache so returning
+     * clients can resume with an abbreviated handshake.
+     */
+    static private SSLContext createSSLContext(String keystore,
+            char[] passphrase, int sessionCacheSize, int sessionTimeout)
+            throws Exception {
+
+        KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+        try (FileInputStream fis = new FileInputStream(keystore)) {
+            ks.load(fis, passphrase);
+        }
+
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(
+                KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, passphrase);
+
+        SSLContext sslCtx = SSLContext.getInstance("TLS");
+        sslCtx.init(kmf.getKeyManagers(), null, null);
+
+        SSLSessionContext sessions = sslCtx.getServerSessionContext();
+        sessions.setSessionCacheSize(sessionCacheSize);
+        sessions.setSessionTimeout(sessionTimeout);
+
+        return sslCtx;
+    }
+
     /*
      * Parse the arguments
      */
     static private Server createServer(String args[]) throws Exception {
 
-        int port = PORT;
-        int backlog = BACKLOG;
-        boolean caching = CACHING;
+        Config config = new Config();
 
         String fisName = (args.length > 0) ? args[0] : PROPERTIES_FILENAME;
         FileInputStream fis;
@@ -62,16 +294,152 @@ public class Server {
             fis = new FileInputStream(fisName);
             property.load(fis);
 
-            port = Integer.parseInt(property.getProperty("port"));
-            backlog = Integer.parseInt(property.getProperty("backlog"));
-            caching = Boolean.parseBoolean(property.getProperty("caching"));
+            config.port = Integer.parseInt(property.getProperty("port"));
+            config.listenTcp = Boolean.parseBoolean(property.getProperty(
+                    "listenTcp", String.valueOf(LISTEN_TCP)));
+            config.unixSocket = property.getProperty("unixSocket", "").trim();
+            if (config.unixSocket.isEmpty()) {
+                config.unixSocket = null;
+            }
+            config.backlog = Integer.parseInt(property.getProperty("backlog"));
+            config.caching = Boolean.parseBoolean(
+                    property.getProperty("caching"));
+
+            config.freshnessPolicy = new FreshnessPolicy(property);
+
+            config.eventLoops = Integer.parseInt(property.getProperty(
+                    "eventLoops", String.valueOf(EVENT_LOOPS)));
+            config.transport = Dispatcher.transport(property.getProperty(
+                    "transport", TRANSPORT).trim());
+            config.loopWait = WaitStrategy.kind(property.getProperty(
+                    "loopWait", LOOP_WAIT).trim());
+            config.spinPolls = Integer.parseInt(property.getProperty(
+                    "spinPolls", String.valueOf(SPIN_POLLS)));
+            config.parkMax = Long.parseLong(property.getProperty(
+                    "parkMaxMicros", String.valueOf(PARK_MAX)));
+            config.spinBudget = Integer.parseInt(property.getProperty(
+                    "spinBudget", String.valueOf(SPIN_BUDGET)));
+            config.reusePort = Boolean.parseBoolean(property.getProperty(
+                    "reusePort", String.valueOf(REUSE_PORT)));
+            config.maxConnections = Integer.parseInt(property.getProperty(
+                    "maxConnections", String.valueOf(MAX_CONNECTIONS)));
+            config.acceptBatch = Integer.parseInt(property.getProperty(
+                    "acceptBatch", String.valueOf(ACCEPT_BATCH)));
+            config.writeQuantum = Math.max(MIN_WRITE_QUANTUM,
+                    Integer.parseInt(property.getProperty("writeQuantum",
+                            String.valueOf(WRITE_QUANTUM))));
+            config.sendBuffer = Integer.parseInt(property.getProperty(
+                    "sendBuffer", String.valueOf(SEND_BUFFER)));
+            config.shedTarget = Long.parseLong(property.getProperty(
+                    "shedTarget", String.valueOf(SHED_TARGET)));
+            config.shedInterval = Long.parseLong(property.getProperty(
+                    "shedInterval", String.valueOf(SHED_INTERVAL)));
+            config.retryAfter = Integer.parseInt(property.getProperty(
+                    "retryAfter", String.valueOf(RETRY_AFTER)));
+
+            config.accessLog = AccessLog.create(
+                    property.getProperty("accessLog"),
+                    Integer.parseInt(property.getProperty("accessLogRingSize",
+                            String.valueOf(ACCESS_LOG_RING_SIZE))),
+                    Long.parseLong(property.getProperty("accessLogMaxBytes",
+                            String.valueOf(ACCESS_LOG_MAX_BYTES))),
+                    Integer.parseInt(property.getProperty("accessLogFiles",
+                            String.valueOf(ACCESS_LOG_FILES))));
+
+            // Per client address; 0 (the default) means no limit
+            config.limiter = new RateLimiter(
+                    Double.parseDouble(property.getProperty("connectionsPerSecond", "0")),
+                    Double.parseDouble(property.getProperty("connectionBurst", "0")),
+                    Double.parseDouble(property.getProperty("requestsPerSecond", "0")),
+                    Double.parseDouble(property.getProperty("requestBurst", "0")),
+                    Double.parseDouble(property.getProperty("bytesPerSecond", "0")),
+                    Double.parseDouble(property.getProperty("byteBurst", "0")),
+                    Integer.parseInt(property.getProperty("rateLimitClients",
+                            String.valueOf(RATE_LIMIT_CLIENTS))));
+
+            config.warmer = new CacheWarmer(
+                    Integer.parseInt(property.getProperty("warmupThreads",
+                            String.valueOf(WARMUP_THREADS))),
+                    Long.parseLong(property.getProperty("warmupBytes",
+                            String.valueOf(WARMUP_BYTES))),
+                    property.getProperty("warmupManifest"));
+
+            config.cacheBytes = Long.parseLong(property.getProperty(
+                    "cacheBytes", String.valueOf(CACHE_BYTES)));
+
+            // Without caching: how many files to keep open, and for how
+            // many seconds to trust them before looking at them again
+            int maxOpenFiles = Integer.parseInt(property.getProperty(
+                    "openFiles", String.valueOf(OPEN_FILES)));
+            config.openFiles = (maxOpenFiles > 0)
+                    ? new OpenFileCache(maxOpenFiles, 1000 * Long.parseLong(
+                            property.getProperty("openFileValid",
+                                    String.valueOf(OPEN_FILE_VALID))))
+                    : null;
+
+            // Directories without an index.html: listed or not, and how
+            // big a listing may be to be cached
+            config.autoindex = Boolean.parseBoolean(property.getProperty(
+                    "autoindex", String.valueOf(AUTOINDEX)));
+            config.listingBytes = Integer.parseInt(property.getProperty(
+                    "autoindexCacheBytes",
+                    String.valueOf(AUTOINDEX_CACHE_BYTES)));
+
+            // Edge cache mode: misses are pulled from this server
+            String originUrl = property.getProperty("origin", "").trim();
+            if (!originUrl.isEmpty()) {
+                config.origin = new Origin(originUrl,
+                        Long.parseLong(property.getProperty("originTtl",
+                                String.valueOf(ORIGIN_TTL))),
+                        Long.parseLong(property.getProperty("originTimeout",
+                                String.valueOf(ORIGIN_TIMEOUT))),
+                        Long.parseLong(property.getProperty("originMaxBytes",
+                                String.valueOf(ORIGIN_MAX_BYTES))));
+            }
+
+            // Cluster mode: clusterPeers lists all the nodes, as host:port
+            String peers = property.getProperty("clusterPeers", "").trim();
+            if (!peers.isEmpty()) {
+                List<String> peerList = new ArrayList<>();
+                for (String peer : peers.split("[,\\s]+")) {
+                    peerList.add(peer);
+                }
+                config.cluster = new Cluster(peerList,
+                        property.getProperty("clusterSelf", "").trim(),
+                        Long.parseLong(property.getProperty("clusterTimeout",
+                                String.valueOf(CLUSTER_TIMEOUT))),
+                        Long.parseLong(property.getProperty("clusterMaxBytes",
+                                String.valueOf(CLUSTER_MAX_BYTES))));
+            }
+
+            // host.<name> = <document root>; other hosts get ROOT
+            for (String key : property.stringPropertyNames()) {
+                if (key.startsWith("host.")) {
+                    config.hostRoots.put(key.substring("host.".length()),
+                            property.getProperty(key).trim());
+                }
+            }
+
+            boolean secure = Boolean.parseBoolean(property.getProperty(
+                    "secure", String.valueOf(SECURE)));
+            if (secure) {
+                // Stateless resumption (TLS 1.3 tickets); read by JSSE on first use
+                System.setProperty("jdk.tls.server.enableSessionTicketExtension",
+                        property.getProperty("sessionTickets", "true"));
+                config.sslc = createSSLContext(
+                        property.getProperty("keystore"),
+                        property.getProperty("keystorePassword").toCharArray(),
+                        Integer.parseInt(property.getProperty("sessionCacheSize",
+                                String.valueOf(SESSION_CACHE_SIZE))),
+                        Integer.parseInt(property.getProperty("sessionTimeout",
+                                String.valueOf(SESSION_TIMEOUT))));
+            }
 
         } catch (IOException e) {
             usage();
         }
 
-        Server server = new Server(port, backlog, caching);
-        return server;
+        return new Server(config);
     }
 
     static public void main(String args[]) throws Exception {
@@ -81,7 +449,13 @@ public class Server {
             usage();
         }
 
-        System.out.println("Server started.");
+        Config config = server.config;
+        System.out.println("Server started (" + config.transport
+                + " transport, " + config.loopWait.name().toLowerCase(Locale.ROOT)
+                + " wait).");
+        if (config.unixSocket != null) {
+            System.out.println("Listening on " + config.unixSocket);
+        }
         server.runServer();
     }
 }
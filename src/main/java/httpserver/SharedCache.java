@@ -0,0 +1,222 @@
+package httpserver;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The file cache shared by all the sites, bounded by the total number
+ * of bytes of its entries.
+ * <P>
+ * Each site works through its own Site view, which also keeps the
+ * bytes, hits and misses of that site.  When the cache is over budget,
+ * entries are evicted CLOCK-style: an entry hit since the hand last
+ * passed gets a second chance, the others go.
+ * <P>
+ * The cache also keeps the budget for prefaulted (loaded) mapped files:
+ * their bytes count from the prefault until the entry leaves the cache.
+ *
+ */
+class SharedCache {
+
+    /**
+     * One site's part of the cache.
+     */
+    class Site {
+
+        private final String name;
+        private final AtomicLong bytes = new AtomicLong();
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+
+        private Site(String name) {
+            this.name = name;
+        }
+
+        private String key(String path) {
+            return name + '\0' + path;
+        }
+
+        CacheEntry get(String path) {
+            CacheEntry entry = peek(path);
+            if (entry == null) {
+                misses.increment();
+            } else {
+                hits.increment();
+            }
+            return entry;
+        }
+
+        // Like get(), but not counted as a hit or miss of the site
+        CacheEntry peek(String path) {
+            CacheEntry entry = current(path);
+            if (entry != null) {
+                entry.hit();
+            }
+            return entry;
+        }
+
+        // The entry for path, if any, without counting it as used
+        CacheEntry current(String path) {
+            Slot slot = map.get(key(path));
+            return (slot != null) ? slot.entry : null;
+        }
+
+        /*
+         * Adds (or replaces) an entry.  With evict, older entries make
+         * room for it; without, it's only added if it fits as is.
+         * Returns false if it wasn't added.
+         */
+        boolean put(String path, CacheEntry entry, boolean evict) {
+            long length = entry.length();
+            if ((!evict && !fits(length)) || length > budget) {
+                released(entry);
+                return false;
+            }
+
+            Slot old = map.put(key(path), new Slot(this, entry));
+            long delta = length - (old != null ? old.entry.length() : 0);
+            used.addAndGet(delta);
+            bytes.addAndGet(delta);
+            if (old != null) {
+                released(old.entry);
+            }
+
+            if (used.get() > budget) {
+                evict();
+            }
+            return true;
+        }
+
+        /*
+         * Prefaults entry, about to be put in place of old (or null), if
+         * the prefault budget has room for it.  If old was prefaulted,
+         * entry takes over its share.  Returns whether it was prefaulted.
+         */
+        boolean prefault(CacheEntry entry, CacheEntry old) {
+            long share = (old != null && old.releasePrefault())
+                    ? old.length() : 0;
+            long more = entry.length() - share;
+            for (;;) {
+                long p = prefaulted.get();
+                if (more > 0 && p + more > prefaultBudget) {
+                    prefaulted.addAndGet(-share);
+                    return false;
+                }
+                if (prefaulted.compareAndSet(p, p + more))
+                    break;
+            }
+            entry.prefault();
+            return true;
+        }
+
+        // Whether length more bytes fit without evicting anything
+        boolean fits(long length) {
+            return used.get() + length <= budget;
+        }
+
+        void remove(String path) {
+            String key = key(path);
+            Slot slot = map.get(key);
+            if (slot != null) {
+                SharedCache.this.remove(key, slot);
+            }
+        }
+
+        long bytes() { return bytes.get(); }
+        long hits() { return hits.sum(); }
+        long misses() { return misses.sum(); }
+
+        public String toString() {
+            return name + ": " + (bytes() >> 20) + " MB cached, "
+                    + hits() + " hits, " + misses() + " misses";
+        }
+    }
+
+    private static class Slot {
+        final Site site;
+        final CacheEntry entry;
+        Slot(Site site, CacheEntry entry) {
+            this.site = site;
+            this.entry = entry;
+        }
+    }
+
+    private final long budget;
+    private final AtomicLong used = new AtomicLong();
+    private final long prefaultBudget;
+    private final AtomicLong prefaulted = new AtomicLong();
+    private final Map<String, Slot> map = new ConcurrentHashMap<>();
+    private final Map<String, Site> sites = new ConcurrentHashMap<>();
+
+    // The clock hand; only moved by the thread holding evictLock
+    private final ReentrantLock evictLock = new ReentrantLock();
+    private Iterator<Map.Entry<String, Slot>> hand = null;
+
+    SharedCache(long budget, long prefaultBudget) {
+        this.budget = budget;
+        this.prefaultBudget = prefaultBudget;
+    }
+
+    Site site(String name) {
+        return sites.computeIfAbsent(name, Site::new);
+    }
+
+    long used() {
+        return used.get();
+    }
+
+    long budget() {
+        return budget;
+    }
+
+    long prefaulted() {
+        return prefaulted.get();
+    }
+
+    // Gives back the prefault share of an entry the cache let go of
+    private void released(CacheEntry entry) {
+        if (entry.releasePrefault()) {
+            prefaulted.addAndGet(-entry.length());
+        }
+    }
+
+    private void remove(String key, Slot slot) {
+        if (map.remove(key, slot)) {
+            long length = slot.entry.length();
+            used.addAndGet(-length);
+            slot.site.bytes.addAndGet(-length);
+            released(slot.entry);
+        }
+    }
+
+    /*
+     * Runs the hand until the cache is within budget.  If another thread
+     * is already at it, leave it to that one.
+     */
+    private void evict() {
+        if (!evictLock.tryLock()) {
+            return;
+        }
+        try {
+            // Two rounds clear every second chance
+            int steps = 2 * map.size() + 1;
+            while (used.get() > budget && steps-- > 0) {
+                if (hand == null || !hand.hasNext()) {
+                    hand = map.entrySet().iterator();
+                    if (!hand.hasNext())
+                        break;
+                }
+                Map.Entry<String, Slot> e = hand.next();
+                if (!e.getValue().entry.clearReferenced()) {
+                    remove(e.getKey(), e.getValue());
+                }
+            }
+        } finally {
+            evictLock.unlock();
+        }
+    }
+}
@@ -42,6 +42,11 @@ class StringContent implements Content {
         return "";
     }
 
+    @Override
+    public String lastModified() {
+        return "";
+    }
+
     private ByteBuffer bb = null;
 
     private void encode() {
@@ -51,7 +56,7 @@ class StringContent implements Content {
 
     public long length() {
         encode();
-        return bb.remaining();
+        return bb.limit();      // still right once (partly) sent
     }
 
     public void prepare() {
@@ -0,0 +1,84 @@
+package httpserver;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A bounded map shared by the selector threads.
+ * <P>
+ * The keys are split over stripes, each a small LRU map (a LinkedHashMap
+ * in access order) under its own lock, so threads working on different
+ * keys rarely meet on the same lock.  The bound is kept per stripe, so
+ * the map as a whole keeps to it roughly: a full stripe drops its least
+ * recently used entry to make room for a new one, and hands it to the
+ * evicted callback (still under the stripe's lock).
+ *
+ */
+class StripedLru<K, V> {
+
+    private final List<Map<K, V>> stripes;
+    private final int mask;
+
+    /*
+     * stripes is a power of 2; maxEntries is split evenly over them, at
+     * least one each.  evicted may be null.
+     */
+    StripedLru(int stripes, int maxEntries, Consumer<V> evicted) {
+        int perStripe = Math.max(maxEntries / stripes, 1);
+        this.stripes = new ArrayList<>(stripes);
+        for (int i = 0; i < stripes; i++) {
+            this.stripes.add(new LinkedHashMap<K, V>(
+                    16, 0.75f, true /* access order */) {
+                protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                    if (size() <= perStripe)
+                        return false;
+                    if (evicted != null) {
+                        evicted.accept(eldest.getValue());
+                    }
+                    return true;
+                }
+            });
+        }
+        this.mask = stripes - 1;
+    }
+
+    private Map<K, V> stripe(K key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return stripes.get(h & mask);
+    }
+
+    V get(K key) {
+        Map<K, V> stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.get(key);
+        }
+    }
+
+    V computeIfAbsent(K key, Function<? super K, ? extends V> create) {
+        Map<K, V> stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.computeIfAbsent(key, create);
+        }
+    }
+
+    // Returns the value replaced, if any; it's not passed to evicted
+    V put(K key, V value) {
+        Map<K, V> stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.put(key, value);
+        }
+    }
+
+    // Removes key only while it still maps to value
+    boolean remove(K key, V value) {
+        Map<K, V> stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.remove(key, value);
+        }
+    }
+}
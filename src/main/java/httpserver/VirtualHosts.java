@@ -0,0 +1,34 @@
+package httpserver;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Name-based virtual hosts: maps the host of a request to the
+ * FileContentManager of its site.  Requests for unknown hosts (or
+ * without a usable one) go to the default site.
+ *
+ */
+class VirtualHosts {
+
+    private Map<String, FileContentManager> hosts = new HashMap<>();
+    private FileContentManager defaultSite;
+
+    VirtualHosts(FileContentManager defaultSite) {
+        this.defaultSite = defaultSite;
+    }
+
+    // Not thread-safe; all hosts are added before the server starts
+    void add(String host, FileContentManager site) {
+        hosts.put(host.toLowerCase(), site);
+    }
+
+    FileContentManager site(Request request) {
+        String host = request.uri().getHost();
+        if (host == null) {
+            return defaultSite;
+        }
+        FileContentManager site = hosts.get(host.toLowerCase());
+        return (site != null) ? site : defaultSite;
+    }
+}
@@ -0,0 +1,169 @@
+package httpserver;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * How an event loop waits for ready keys.
+ * <P>
+ * "select" blocks in select(), so every register() from another thread
+ * has to wake it up and every event pays for the thread's wakeup.
+ * "spin" polls with selectNow() without ever sleeping: an event is seen
+ * microseconds after it's there, at the price of a core per loop.
+ * "spinpark" polls spins times in a row, then parks between polls,
+ * doubling the pause up to parkMax; the first event brings it back to
+ * spinning.  A parked loop notices a change made with wakeup() by other
+ * threads (interest ops, timers) only at the end of its pause.
+ * <P>
+ * Spinning has a CPU budget, in percent of a core: once the empty polls
+ * of the current WINDOW have taken that much, the loop waits in a real
+ * select() for the rest of it (which still returns at the first event).
+ *
+ */
+class WaitStrategy {
+
+    private static final long WINDOW = 100_000_000L;      // 100 ms
+    private static final long MIN_PARK = 1000;            // 1 us
+
+    enum Kind { SELECT, SPIN, SPINPARK }
+
+    // What the loop is doing, for the threads which want to wake it up
+    private static final int POLLING = 0, PARKED = 1, BLOCKED = 2;
+
+    private final Kind kind;
+    private final int spins;
+    private final long parkMax;
+    private final long budget;
+
+    private volatile int state = POLLING;
+    private Thread thread;
+
+    private int emptyRun = 0;
+    private long park = 0;
+    private long windowStart = 0;
+    private long spent = 0;
+    private long lastEmpty = 0;       // when the last empty poll ended
+
+    // For the metrics, read by the recorder's thread
+    private volatile long iterations = 0;
+    private volatile long emptyPolls = 0;
+    private volatile long parks = 0;
+    private volatile long blocks = 0;
+
+    /*
+     * parkMax in microseconds, budget in percent of a core (100 or more
+     * for no limit).
+     */
+    WaitStrategy(Kind kind, int spins, long parkMax, int budget) {
+        this.kind = kind;
+        this.spins = spins;
+        this.parkMax = Math.max(MIN_PARK, parkMax * 1000);
+        this.budget = (budget >= 100) ? Long.MAX_VALUE : WINDOW * budget / 100;
+    }
+
+    static Kind kind(String name) {
+        try {
+            return Kind.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException x) {
+            throw new IllegalArgumentException("Unknown loopWait: " + name);
+        }
+    }
+
+    // Called by the event loop, on its thread, before the first poll
+    void start() {
+        thread = Thread.currentThread();
+    }
+
+    /*
+     * Waits for ready keys: into the selected-key set if action is null,
+     * to action otherwise.  Returns how many there were.
+     */
+    int poll(Selector sel, Consumer<SelectionKey> action) throws IOException {
+        iterations++;
+        if (kind == Kind.SELECT) {
+            return counted(select(sel, action, 0));
+        }
+
+        long start = System.nanoTime();
+        if (start - windowStart >= WINDOW) {
+            windowStart = start;
+            spent = 0;
+        }
+        if (spent >= budget) {
+            blocks++;
+            long timeout = (windowStart + WINDOW - start) / 1_000_000;
+            lastEmpty = 0;
+            return counted(select(sel, action, Math.max(1, timeout)));
+        }
+
+        int n = (action == null) ? sel.selectNow() : sel.selectNow(action);
+        if (counted(n) > 0) {
+            lastEmpty = 0;
+            return n;
+        }
+        // From the end of the previous empty poll, if that was the last
+        long end = System.nanoTime();
+        spent += end - ((lastEmpty != 0) ? lastEmpty : start);
+        lastEmpty = end;
+
+        if (kind == Kind.SPINPARK && ++emptyRun > spins) {
+            park = Math.min(Math.max(MIN_PARK, park * 2), parkMax);
+            parks++;
+            state = PARKED;
+            LockSupport.parkNanos(this, park);
+            state = POLLING;
+            lastEmpty = 0;
+        }
+        return 0;
+    }
+
+    private int counted(int n) {
+        if (n > 0) {
+            emptyRun = 0;
+            park = 0;
+        } else {
+            emptyPolls++;
+        }
+        return n;
+    }
+
+    private int select(Selector sel, Consumer<SelectionKey> action,
+                       long timeout) throws IOException {
+        state = BLOCKED;
+        try {
+            return (action == null) ? sel.select(timeout)
+                                    : sel.select(action, timeout);
+        } finally {
+            state = POLLING;
+        }
+    }
+
+    /*
+     * Before registering a channel from another thread: a loop blocked
+     * in select() has to come out of it (on older JDKs register() waits
+     * for a select in progress).  A polling loop doesn't.
+     */
+    void wakeup(Selector sel) {
+        if (kind == Kind.SELECT || state == BLOCKED) {
+            sel.wakeup();
+        }
+    }
+
+    // After registering: a parked loop should see the new channel now
+    void unpark() {
+        if (state == PARKED) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    void report(Events.EventLoopLoad e) {
+        e.iterations = iterations;
+        e.emptyPolls = emptyPolls;
+        e.parks = parks;
+        e.blocks = blocks;
+    }
+}
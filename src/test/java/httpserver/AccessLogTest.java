@@ -0,0 +1,132 @@
+package httpserver;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * The access log's ring, what it does when full, and the lines it
+ * writes.
+ *
+ */
+public class AccessLogTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static Pattern DROPPED = Pattern.compile("dropped (\\d+) records");
+
+    private static InetAddress CLIENT = InetAddress.getLoopbackAddress();
+
+    private Path file;
+
+    private AccessLog log(int ringSize) throws Exception {
+        file = tmp.getRoot().toPath().resolve("access.log");
+        return AccessLog.create(file.toString(), ringSize, 1L << 30, 1);
+    }
+
+    private List<String> lines() throws Exception {
+        return Files.exists(file)
+                ? Files.readAllLines(file, StandardCharsets.US_ASCII)
+                : Collections.emptyList();
+    }
+
+    /*
+     * The lines, once there are requests of them plus the records
+     * reported dropped.
+     */
+    private List<String> written(AccessLog log, int requests)
+            throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        for (;;) {
+            List<String> lines = lines();
+            int logged = 0;
+            long reported = 0;
+            for (String line : lines) {
+                Matcher m = DROPPED.matcher(line);
+                if (m.matches()) {
+                    reported += Long.parseLong(m.group(1));
+                } else {
+                    logged++;
+                }
+            }
+            if (logged + log.dropped() == requests
+                    && reported == log.dropped()) {
+                return lines;
+            }
+            assertTrue(logged + " logged, " + reported + " of "
+                       + log.dropped() + " dropped reported",
+                       System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void linesInOrder() throws Exception {
+        AccessLog log = log(64);
+        for (int i = 0; i < 10; i++) {
+            log.log(CLIENT, "GET", "/" + i, "1.1", null, System.nanoTime());
+        }
+        List<String> lines = written(log, 10);
+        assertEquals(0, log.dropped());
+        assertEquals(10, lines.size());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(lines.get(i), lines.get(i).matches(
+                    "127\\.0\\.0\\.1 - - \\[.*\\] \"GET /" + i
+                    + " HTTP/1\\.1\" 0 0 \\d+ -"));
+        }
+    }
+
+    @Test
+    public void fullRingDropsAndCounts() throws Exception {
+        // Two slots, filled much faster than a thread drains them
+        AccessLog log = log(2);
+        int requests = 20000;
+        for (int i = 0; i < requests; i++) {
+            log.log(CLIENT, "GET", "/" + i, "1.1", null, System.nanoTime());
+        }
+        List<String> lines = written(log, requests);
+        assertTrue(log.dropped() > 0);
+
+        // What got through is still in order
+        int last = -1;
+        for (String line : lines) {
+            Matcher m = Pattern.compile("\"GET /(\\d+) ").matcher(line);
+            if (m.find()) {
+                int i = Integer.parseInt(m.group(1));
+                assertTrue(i > last);
+                last = i;
+            }
+        }
+    }
+
+    @Test
+    public void longPathIsCut() throws Exception {
+        AccessLog log = log(64);
+        StringBuilder path = new StringBuilder("/");
+        for (int i = 0; i < 300 * 1024; i++) {
+            path.append('a');
+        }
+        log.log(CLIENT, "GET", path.toString(), "1.1", null, System.nanoTime());
+        log.log(CLIENT, "GET", "/next", "1.1", null, System.nanoTime());
+
+        List<String> lines = written(log, 2);
+        assertEquals(2, lines.size());
+        String cut = lines.get(0);
+        assertTrue(cut.length() < 10000);
+        assertTrue(cut, cut.contains("\"GET /aaa"));
+        assertTrue(cut, cut.contains("a" + AccessLog.CUT + " HTTP/1.1\" 0 0 "));
+        assertTrue(lines.get(1), lines.get(1).contains("\"GET /next HTTP/1.1\""));
+    }
+}
@@ -0,0 +1,86 @@
+package httpserver;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * The order of a cache warm-up.
+ *
+ */
+public class CacheWarmerTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path root;
+
+    private void file(String relPath) throws IOException {
+        Path p = root.resolve(relPath.substring(1));
+        Files.createDirectories(p.getParent());
+        Files.write(p, relPath.getBytes("UTF-8"));
+    }
+
+    private List<String> warm(String manifest, Map<String, Integer> hits)
+            throws IOException {
+        String manifestFile = null;
+        if (manifest != null) {
+            Path m = tmp.newFile("manifest").toPath();
+            Files.write(m, manifest.getBytes("UTF-8"));
+            manifestFile = m.toString();
+        }
+        // One thread: the files are loaded in the order they're taken
+        CacheWarmer warmer = new CacheWarmer(1, 0, manifestFile);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        int n = warmer.warm(root, p -> hits.getOrDefault(p, 0),
+                            relPath -> order.add(relPath));
+        assertEquals(n, order.size());
+        return order;
+    }
+
+    @Test
+    public void manifestFirstThenHits() throws Exception {
+        root = tmp.newFolder("root").toPath();
+        for (String f : new String[] { "/a", "/b", "/c", "/d", "/dir/e" }) {
+            file(f);
+        }
+        Map<String, Integer> hits = new HashMap<>();
+        // More hits than the manifest has lines: still after it
+        hits.put("/a", 1000);
+        hits.put("/b", 5);
+        hits.put("/d", 50);
+        hits.put("/dir/e", 7);
+
+        List<String> order = warm("/dir/e\n# comment\n/c\n", hits);
+        assertEquals(Arrays.asList("/dir/e", "/c", "/a", "/d", "/b"), order);
+    }
+
+    @Test
+    public void hitsWithoutManifest() throws Exception {
+        root = tmp.newFolder("root").toPath();
+        for (String f : new String[] { "/a", "/b", "/c" }) {
+            file(f);
+        }
+        Map<String, Integer> hits = new HashMap<>();
+        hits.put("/b", 3);
+        hits.put("/c", 2);
+
+        assertEquals(Arrays.asList("/b", "/c", "/a"), warm(null, hits));
+    }
+
+    @Test
+    public void manifestPathsNotInTreeAreSkipped() throws Exception {
+        root = tmp.newFolder("root").toPath();
+        file("/a");
+        file("/b");
+        assertEquals(Arrays.asList("/b", "/a"),
+                     warm("/gone\n/b\n", Collections.emptyMap()));
+    }
+}
@@ -0,0 +1,152 @@
+package httpserver;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * Three nodes of a cluster on loopback ports, sharing the root.  Which
+ * node served what is read from their access logs: the owner of a file
+ * logs the requests the other nodes pass on to it too.
+ *
+ */
+public class ClusterTest {
+
+    private static int NODES = 3;
+
+    @ClassRule
+    public static TemporaryFolder tmp = new TemporaryFolder();
+
+    private static int[] ports = new int[NODES];
+    private static Path[] logs = new Path[NODES];
+
+    @BeforeClass
+    public static void startCluster() throws Exception {
+        List<String> peers = new ArrayList<>();
+        for (int i = 0; i < NODES; i++) {
+            ports[i] = TestServers.freePort();
+            peers.add("127.0.0.1:" + ports[i]);
+        }
+        for (int i = 0; i < NODES; i++) {
+            logs[i] = tmp.getRoot().toPath().resolve("access" + i + ".log");
+            Properties config = TestServers.config(ports[i]);
+            config.setProperty("clusterPeers", String.join(", ", peers));
+            config.setProperty("clusterSelf", peers.get(i));
+            config.setProperty("accessLog", logs[i].toString());
+            TestServers.start(config, tmp.getRoot().toPath());
+        }
+    }
+
+    // GET over HTTP/1.0 from the local address from, the body
+    private static String get(int port, String path, InetAddress from,
+                              String headers) throws IOException {
+        try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port,
+                                   from, 0)) {
+            s.setSoTimeout(10000);
+            s.getOutputStream().write(("GET " + path + " HTTP/1.0\r\n"
+                    + "Host: localhost\r\n" + headers + "\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            InputStream in = s.getInputStream();
+            byte[] b = new byte[8192];
+            int n;
+            while ((n = in.read(b)) > 0) {
+                out.write(b, 0, n);
+            }
+            String reply = new String(out.toByteArray(),
+                                      StandardCharsets.UTF_8);
+            assertTrue(reply, reply.startsWith("HTTP/1.0 200 "));
+            return reply.substring(reply.indexOf("\r\n\r\n") + 4);
+        }
+    }
+
+    private static int logged(int node, String path) throws IOException {
+        if (!Files.exists(logs[node]))
+            return 0;
+        int n = 0;
+        for (String line : Files.readAllLines(logs[node])) {
+            if (line.contains("\"GET " + path + " "))
+                n++;
+        }
+        return n;
+    }
+
+    // How many times each node logged path, once all of total are in
+    private static int[] logged(String path, int total) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        int[] counts = new int[NODES];
+        for (;;) {
+            int sum = 0;
+            for (int i = 0; i < NODES; i++) {
+                counts[i] = logged(i, path);
+                sum += counts[i];
+            }
+            if (sum >= total || System.currentTimeMillis() > deadline)
+                break;
+            Thread.sleep(20);
+        }
+        Thread.sleep(200);          // anything more would show up now
+        for (int i = 0; i < NODES; i++) {
+            counts[i] = logged(i, path);
+        }
+        return counts;
+    }
+
+    // Asks every node for path, as a client at from
+    private static void getEverywhere(String path, InetAddress from,
+                                      String headers) throws Exception {
+        String expected = new String(Files.readAllBytes(
+                new File("root", path.substring(1)).toPath()),
+                StandardCharsets.UTF_8);
+        for (int i = 0; i < NODES; i++) {
+            assertEquals(expected, get(ports[i], path, from, headers));
+        }
+    }
+
+    private static void assertOwnerServedAll(int[] counts) {
+        int owners = 0;
+        for (int c : counts) {
+            if (c == NODES) {
+                owners++;
+            } else {
+                assertEquals(1, c);
+            }
+        }
+        assertEquals(1, owners);
+    }
+
+    @Test
+    public void routesToOwner() throws Exception {
+        getEverywhere("/1.html", InetAddress.getLoopbackAddress(), "");
+        assertOwnerServedAll(logged("/1.html", NODES + NODES - 1));
+    }
+
+    @Test
+    public void peerIsServedLocally() throws Exception {
+        // From the peers' address the header is believed
+        getEverywhere("/test.txt", InetAddress.getLoopbackAddress(),
+                      Cluster.PEER_HEADER + ": 1\r\n");
+        assertArrayEquals(new int[] { 1, 1, 1 }, logged("/test.txt", NODES));
+    }
+
+    @Test
+    public void clientCannotPoseAsPeer() throws Exception {
+        // 127.0.0.5 is on loopback too, but no peer is there
+        getEverywhere("/folder/2.html", InetAddress.getByName("127.0.0.5"),
+                      Cluster.PEER_HEADER + ": 1\r\n");
+        assertOwnerServedAll(logged("/folder/2.html", NODES + NODES - 1));
+    }
+}
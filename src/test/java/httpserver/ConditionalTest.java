@@ -0,0 +1,197 @@
+package httpserver;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * Conditional GET and HEAD: If-None-Match, If-Modified-Since, and the
+ * 304 replies built for them.
+ *
+ */
+public class ConditionalTest {
+
+    // With a part of a second, which HTTP-dates don't have
+    private static long MODIFIED = 1500000000123L;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FileContentManager site;
+    private VirtualHosts hosts;
+    private String etag;
+
+    @Before
+    public void setUp() throws Exception {
+        Path root = tmp.newFolder("root").toPath();
+        Path dir = Files.createDirectory(root.resolve("dir"));
+        Path index = dir.resolve("index.html");
+        Files.write(index, "<p>index</p>\n".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(index, FileTime.fromMillis(MODIFIED));
+
+        Properties rules = new Properties();
+        rules.setProperty("cacheControl.html", "no-cache");
+        site = new FileContentManager(root, false, new FreshnessPolicy(rules),
+                null, new SharedCache(1 << 20, 0), null, null,
+                new OpenFileCache(16, 0), false, 0);
+        hosts = new VirtualHosts(site);
+        etag = site.getFileContent("/dir/index.html",
+                                   StandardCharsets.UTF_8).etag();
+    }
+
+    private Reply get(String method, String path, String... headers)
+            throws Exception {
+        Map<String, String> table = new HashMap<>();
+        for (int i = 0; i < headers.length; i += 2) {
+            table.put(headers[i], headers[i + 1]);
+        }
+        return RequestHandler.build(
+                Request.create(method, "localhost", path, "1.1", table),
+                hosts);
+    }
+
+    private Reply.Code code(String... headers) throws Exception {
+        return get("GET", "/dir/index.html", headers).code();
+    }
+
+    @Test
+    public void ifNoneMatch() throws Exception {
+        String quoted = "\"" + etag + "\"";
+        assertEquals(Reply.Code.NOT_MODIFIED, code("if-none-match", quoted));
+        assertEquals(Reply.Code.OK, code("if-none-match", "\"other\""));
+
+        // One of a list, a weak tag, or any
+        assertEquals(Reply.Code.NOT_MODIFIED,
+                     code("if-none-match", "\"a\", " + quoted + ", \"b\""));
+        assertEquals(Reply.Code.OK,
+                     code("if-none-match", "\"a\", \"b\""));
+        assertEquals(Reply.Code.NOT_MODIFIED,
+                     code("if-none-match", "W/" + quoted));
+        assertEquals(Reply.Code.NOT_MODIFIED,
+                     code("if-none-match", "\"other\",W/" + quoted));
+        assertEquals(Reply.Code.NOT_MODIFIED, code("if-none-match", "*"));
+    }
+
+    @Test
+    public void ifNoneMatchTakesPrecedence() throws Exception {
+        String since = HttpDate.format(MODIFIED + 60000);
+        assertEquals(Reply.Code.NOT_MODIFIED, code("if-modified-since", since));
+        assertEquals(Reply.Code.OK, code("if-none-match", "\"other\"",
+                                         "if-modified-since", since));
+
+        String before = HttpDate.format(MODIFIED - 60000);
+        assertEquals(Reply.Code.NOT_MODIFIED,
+                     code("if-none-match", "\"" + etag + "\"",
+                          "if-modified-since", before));
+    }
+
+    @Test
+    public void ifModifiedSinceInWholeSeconds() throws Exception {
+        // The Last-Modified sent for the file, without its milliseconds
+        assertEquals(Reply.Code.NOT_MODIFIED,
+                     code("if-modified-since", HttpDate.format(MODIFIED)));
+        assertEquals(Reply.Code.OK,
+                     code("if-modified-since", HttpDate.format(MODIFIED - 1000)));
+        assertEquals(Reply.Code.NOT_MODIFIED,
+                     code("if-modified-since", HttpDate.format(MODIFIED + 1000)));
+
+        // Not a date: as if it weren't there
+        assertEquals(Reply.Code.OK, code("if-modified-since", "yesterday"));
+    }
+
+    @Test
+    public void notModifiedHead() throws Exception {
+        Reply reply = get("HEAD", "/dir/index.html",
+                          "if-none-match", "\"" + etag + "\"");
+        assertEquals(Reply.Code.NOT_MODIFIED, reply.code());
+        assertTrue(reply.headersOnly());
+        assertEquals(0, reply.bodyLength());
+        assertNull(reply.content());
+
+        reply = get("HEAD", "/dir/index.html", "if-none-match", "\"other\"");
+        assertEquals(Reply.Code.OK, reply.code());
+        assertEquals(0, reply.bodyLength());
+        reply.release();
+    }
+
+    @Test
+    public void notModifiedFields() throws Exception {
+        Reply reply = get("GET", "/dir/index.html",
+                          "if-none-match", "\"" + etag + "\"");
+        Map<String, String> fields = reply.fields();
+        assertEquals("\"" + etag + "\"", fields.get("ETag"));
+        assertEquals(HttpDate.format(MODIFIED), fields.get("Last-Modified"));
+        assertEquals("no-cache", fields.get("Cache-Control"));
+        assertNull(fields.get("Content-length"));
+    }
+
+    private static String text(ByteBuffer bb) {
+        return StandardCharsets.US_ASCII.decode(bb).toString();
+    }
+
+    /*
+     * The 304 headers kept on the entry, built by prepare() for the
+     * reply to path; retried if the second turns meanwhile.
+     */
+    private String preparedHeaders(String path) throws Exception {
+        CacheEntry entry = site.getFileContent("/dir/index.html",
+                                               StandardCharsets.UTF_8);
+        Freshness freshness = site.getFreshness(path);
+        for (;;) {
+            long second = System.currentTimeMillis() / 1000;
+            Reply reply = get("GET", path, "if-none-match", "\"" + etag + "\"");
+            assertEquals(Reply.Code.NOT_MODIFIED, reply.code());
+            reply.prepare();
+            ByteBuffer bb = entry.notModifiedHeaders(second, freshness);
+            if (System.currentTimeMillis() / 1000 == second) {
+                assertNotNull(bb);
+                return text(bb);
+            }
+        }
+    }
+
+    @Test
+    public void notModifiedHeadersPerFreshness() throws Exception {
+        // One entry, reached as the directory (no rule) and as the file
+        String file = preparedHeaders("/dir/index.html");
+        assertTrue(file, file.startsWith("HTTP/1.0 304 Not Modified\r\n"));
+        assertTrue(file, file.contains("\r\nCache-Control: no-cache\r\n"));
+
+        String dir = preparedHeaders("/dir/");
+        assertTrue(dir, dir.startsWith("HTTP/1.0 304 Not Modified\r\n"));
+        assertFalse(dir, dir.contains("Cache-Control"));
+
+        file = preparedHeaders("/dir/index.html");
+        assertTrue(file, file.contains("\r\nCache-Control: no-cache\r\n"));
+    }
+
+    @Test
+    public void headersKeptForTheSecondAndFreshness() {
+        CacheEntry entry = new CacheEntry(ByteBuffer.allocate(1), MODIFIED);
+        Freshness a = new Freshness("no-cache");
+        Freshness b = new Freshness("no-cache");
+        entry.notModifiedHeaders(100, a, ByteBuffer.wrap(new byte[] { 1 }));
+
+        assertNotNull(entry.notModifiedHeaders(100, a));
+        assertNull(entry.notModifiedHeaders(101, a));
+        assertNull(entry.notModifiedHeaders(100, b));
+        assertNull(entry.notModifiedHeaders(100, null));
+
+        // Each caller gets its own position
+        ByteBuffer bb = entry.notModifiedHeaders(100, a);
+        bb.get();
+        assertEquals(1, entry.notModifiedHeaders(100, a).remaining());
+    }
+}
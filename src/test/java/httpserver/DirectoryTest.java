@@ -0,0 +1,85 @@
+package httpserver;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * Directory listings, and paths that try to get out of the root.
+ *
+ */
+public class DirectoryTest {
+
+    @ClassRule
+    public static TemporaryFolder tmp = new TemporaryFolder();
+
+    private static int port;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        port = TestServers.freePort();
+        Properties config = TestServers.config(port);
+        config.setProperty("autoindex", "true");
+        TestServers.start(config, tmp.getRoot().toPath());
+    }
+
+    // The path is sent as it is, dot segments and all
+    private String get(String path) throws IOException {
+        try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            s.setSoTimeout(10000);
+            s.getOutputStream().write(("GET " + path + " HTTP/1.0\r\n"
+                    + "Host: localhost\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            InputStream in = s.getInputStream();
+            byte[] b = new byte[8192];
+            int n;
+            while ((n = in.read(b)) > 0) {
+                out.write(b, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test
+    public void listsDirectory() throws Exception {
+        String reply = get("/folder/");
+        assertTrue(reply.startsWith("HTTP/1.0 200 "));
+        assertTrue(reply.contains("Index of /folder/"));
+        assertTrue(reply.contains("<a href=\"2.html\">"));
+    }
+
+    @Test
+    public void redirectsToSlash() throws Exception {
+        String reply = get("/folder");
+        assertTrue(reply.startsWith("HTTP/1.0 301 "));
+        assertTrue(reply.contains("Location: /folder/\r\n"));
+    }
+
+    @Test
+    public void staysInRoot() throws Exception {
+        for (String path : new String[] {
+                "/../../../../etc/", "/../../../../etc/passwd",
+                "/folder/../../etc/", "/..%2f..%2f..%2fetc/" }) {
+            String reply = get(path);
+            assertTrue(path, reply.startsWith("HTTP/1.0 404 "));
+            assertTrue(path, reply.endsWith("\r\n\r\nNot found\n"));
+        }
+    }
+
+    @Test
+    public void aliasIsTheSameDirectory() throws Exception {
+        String reply = get("/./folder//");
+        assertTrue(reply.startsWith("HTTP/1.0 200 "));
+        assertTrue(reply.contains("Index of /folder/"));
+    }
+}
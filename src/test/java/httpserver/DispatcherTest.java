@@ -0,0 +1,137 @@
+package httpserver;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Registering channels with a running event loop, and the order ready
+ * connections are handled in.
+ *
+ */
+public class DispatcherTest {
+
+    private static void send(Pipe pipe) throws IOException {
+        pipe.sink().write(ByteBuffer.wrap(new byte[] { 1 }));
+    }
+
+    // Reads what there is and counts down
+    private static Handler reader(Pipe pipe, CountDownLatch read,
+                                  Runnable then) {
+        return sk -> {
+            pipe.source().read(ByteBuffer.allocate(16));
+            if (then != null) {
+                then.run();
+            }
+            read.countDown();
+        };
+    }
+
+    private static long emptyPolls(WaitStrategy wait) {
+        Events.EventLoopLoad e = new Events.EventLoopLoad();
+        wait.report(e);
+        return e.emptyPolls;
+    }
+
+    private void registers(boolean direct) throws Exception {
+        WaitStrategy wait =
+            new WaitStrategy(WaitStrategy.Kind.SELECT, 0, 0, 100);
+        Dispatcher d = new Dispatcher(direct, wait,
+                                      new LoadShedder(0, 100, 1));
+        Pipe first = Pipe.open();
+        Pipe second = Pipe.open();
+        first.source().configureBlocking(false);
+        second.source().configureBlocking(false);
+
+        CountDownLatch firstRead = new CountDownLatch(1);
+        CountDownLatch secondRead = new CountDownLatch(1);
+        d.register(first.source(), SelectionKey.OP_READ,
+                reader(first, firstRead, () -> {
+                    // On the loop's thread, like an Acceptor
+                    try {
+                        d.register(second.source(), SelectionKey.OP_READ,
+                                   reader(second, secondRead, null));
+                    } catch (IOException x) {
+                        throw new UncheckedIOException(x);
+                    }
+                }));
+
+        Thread loop = new Thread(d::run, "test-loop");
+        loop.setDaemon(true);
+        loop.start();
+        Thread.sleep(100);
+        long before = emptyPolls(wait);
+
+        send(first);
+        assertTrue(firstRead.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        // No wakeup: the loop went back to waiting without an empty round
+        assertEquals(before, emptyPolls(wait));
+
+        send(second);
+        assertTrue(secondRead.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void registersFromLoopThreadDirect() throws Exception {
+        registers(true);
+    }
+
+    @Test
+    public void registersFromLoopThreadNio() throws Exception {
+        registers(false);
+    }
+
+    @Test
+    public void readyKeysTakeTurns() throws Exception {
+        WaitStrategy wait =
+            new WaitStrategy(WaitStrategy.Kind.SELECT, 0, 0, 100);
+        Dispatcher d = new Dispatcher(false, wait,
+                                      new LoadShedder(0, 100, 1));
+        int keys = 3;
+        int rounds = 30;
+        List<Integer> handled = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+        for (int i = 0; i < keys; i++) {
+            int id = i;
+            Pipe pipe = Pipe.open();
+            pipe.source().configureBlocking(false);
+            send(pipe);
+            // Never reads: ready in every round until cancelled
+            d.register(pipe.source(), SelectionKey.OP_READ, sk -> {
+                handled.add(id);
+                if (handled.size() >= keys * rounds) {
+                    sk.cancel();
+                    done.countDown();
+                }
+            });
+        }
+
+        Thread loop = new Thread(d::run, "test-loop");
+        loop.setDaemon(true);
+        loop.start();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        // Each round has all of them, and each goes first in turn
+        int[] first = new int[keys];
+        for (int r = 0; r < rounds; r++) {
+            List<Integer> round = new ArrayList<>(
+                    handled.subList(r * keys, (r + 1) * keys));
+            first[round.get(0)]++;
+            Collections.sort(round);
+            assertEquals(Arrays.asList(0, 1, 2), round);
+        }
+        assertArrayEquals(new int[] { 10, 10, 10 }, first);
+    }
+}
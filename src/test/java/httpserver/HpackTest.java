@@ -0,0 +1,350 @@
+package httpserver;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * HPACK against the examples of RFC 7541, appendix C.
+ *
+ */
+public class HpackTest {
+
+    private static ByteBuffer hex(String s) {
+        s = s.replace(" ", "");
+        ByteBuffer bb = ByteBuffer.allocate(s.length() / 2);
+        for (int i = 0; i < s.length(); i += 2) {
+            bb.put((byte) Integer.parseInt(s.substring(i, i + 2), 16));
+        }
+        bb.flip();
+        return bb;
+    }
+
+    private static void assertFields(List<String[]> fields, String... expected) {
+        assertEquals(expected.length / 2, fields.size());
+        for (int i = 0; i < fields.size(); i++) {
+            assertEquals(expected[2 * i], fields.get(i)[0]);
+            assertEquals(expected[2 * i + 1], fields.get(i)[1]);
+        }
+    }
+
+    /*
+     * The dynamic table, newest first, read back through indexed fields
+     * (which leave it as it is); nothing may follow the last entry.
+     */
+    private static void assertTable(Hpack.Decoder decoder, String... expected)
+            throws Http2Exception {
+        int index = 62;
+        for (int i = 0; i < expected.length; i += 2, index++) {
+            ByteBuffer bb = ByteBuffer.allocate(8);
+            Hpack.writeInt(bb, 0x80, 7, index);
+            bb.flip();
+            assertFields(decoder.decode(bb), expected[i], expected[i + 1]);
+        }
+        ByteBuffer bb = ByteBuffer.allocate(8);
+        Hpack.writeInt(bb, 0x80, 7, index);
+        bb.flip();
+        try {
+            decoder.decode(bb);
+            fail("Entry " + index + " in the table");
+        } catch (Http2Exception x) {
+            assertEquals(Http2Frame.COMPRESSION_ERROR, x.errorCode());
+        }
+    }
+
+    private static int readInt(String bytes, int prefix) throws Http2Exception {
+        ByteBuffer bb = hex(bytes);
+        int value = Hpack.readInt(bb, prefix);
+        assertFalse(bb.hasRemaining());
+        return value;
+    }
+
+    private static String writeInt(int prefix, int value) {
+        ByteBuffer bb = ByteBuffer.allocate(8);
+        Hpack.writeInt(bb, 0, prefix, value);
+        bb.flip();
+        StringBuilder sb = new StringBuilder();
+        while (bb.hasRemaining()) {
+            sb.append(String.format("%02x", bb.get() & 0xff));
+        }
+        return sb.toString();
+    }
+
+    // C.1
+    @Test
+    public void integers() throws Exception {
+        assertEquals(10, readInt("0a", 5));
+        assertEquals(1337, readInt("1f9a0a", 5));
+        assertEquals(42, readInt("2a", 8));
+        assertEquals("0a", writeInt(5, 10));
+        assertEquals("1f9a0a", writeInt(5, 1337));
+        assertEquals("2a", writeInt(8, 42));
+
+        // The prefix bits above the value are not part of it
+        assertEquals(10, readInt("ea", 5));
+    }
+
+    @Test
+    public void integerOverflow() throws Exception {
+        // Four continuation bytes are the most taken
+        assertEquals(31 + (1 << 28) - 1, readInt("1f ff ff ff 7f", 5));
+        for (String bytes : new String[] { "1f ff ff ff ff 0f",
+                                           "1f 80 80 80 80 00" }) {
+            try {
+                readInt(bytes, 5);
+                fail(bytes);
+            } catch (Http2Exception x) {
+                assertEquals(Http2Frame.COMPRESSION_ERROR, x.errorCode());
+            }
+        }
+        try {
+            readInt("1f ff", 5);
+            fail();
+        } catch (Http2Exception x) {
+            assertEquals("Truncated integer", x.getMessage());
+        }
+    }
+
+    // C.2
+    @Test
+    public void fieldRepresentations() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+        assertFields(decoder.decode(hex(
+                "400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164"
+                + "6572")),
+                "custom-key", "custom-header");
+        assertTable(decoder, "custom-key", "custom-header");
+
+        decoder = new Hpack.Decoder(4096);
+        assertFields(decoder.decode(hex(
+                "040c 2f73 616d 706c 652f 7061 7468")),
+                ":path", "/sample/path");
+        assertTable(decoder);
+
+        assertFields(decoder.decode(hex(
+                "1008 7061 7373 776f 7264 0673 6563 7265 74")),
+                "password", "secret");
+        assertTable(decoder);
+
+        assertFields(decoder.decode(hex("82")), ":method", "GET");
+        assertTable(decoder);
+    }
+
+    private static void requests(String[] blocks) throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+
+        assertFields(decoder.decode(hex(blocks[0])),
+                ":method", "GET",
+                ":scheme", "http",
+                ":path", "/",
+                ":authority", "www.example.com");
+        assertTable(decoder, ":authority", "www.example.com");
+
+        assertFields(decoder.decode(hex(blocks[1])),
+                ":method", "GET",
+                ":scheme", "http",
+                ":path", "/",
+                ":authority", "www.example.com",
+                "cache-control", "no-cache");
+        assertTable(decoder,
+                "cache-control", "no-cache",
+                ":authority", "www.example.com");
+
+        assertFields(decoder.decode(hex(blocks[2])),
+                ":method", "GET",
+                ":scheme", "https",
+                ":path", "/index.html",
+                ":authority", "www.example.com",
+                "custom-key", "custom-value");
+        assertTable(decoder,
+                "custom-key", "custom-value",
+                "cache-control", "no-cache",
+                ":authority", "www.example.com");
+    }
+
+    // C.3
+    @Test
+    public void requestsWithoutHuffman() throws Exception {
+        requests(new String[] {
+            "8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d",
+            "8286 84be 5808 6e6f 2d63 6163 6865",
+            "8287 85bf 400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d"
+            + "7661 6c75 65",
+        });
+    }
+
+    // C.4
+    @Test
+    public void requestsWithHuffman() throws Exception {
+        requests(new String[] {
+            "8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff",
+            "8286 84be 5886 a8eb 1064 9cbf",
+            "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf",
+        });
+    }
+
+    private static String DATE_1 = "Mon, 21 Oct 2013 20:13:21 GMT";
+    private static String DATE_2 = "Mon, 21 Oct 2013 20:13:22 GMT";
+    private static String LOCATION = "https://www.example.com";
+    private static String COOKIE =
+            "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1";
+
+    private static void responses(String[] blocks) throws Exception {
+        // A 256 byte table, small enough for entries to be evicted
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+
+        assertFields(decoder.decode(hex(blocks[0])),
+                ":status", "302",
+                "cache-control", "private",
+                "date", DATE_1,
+                "location", LOCATION);
+        assertTable(decoder,
+                "location", LOCATION,
+                "date", DATE_1,
+                "cache-control", "private",
+                ":status", "302");
+
+        assertFields(decoder.decode(hex(blocks[1])),
+                ":status", "307",
+                "cache-control", "private",
+                "date", DATE_1,
+                "location", LOCATION);
+        assertTable(decoder,
+                ":status", "307",
+                "location", LOCATION,
+                "date", DATE_1,
+                "cache-control", "private");
+
+        assertFields(decoder.decode(hex(blocks[2])),
+                ":status", "200",
+                "cache-control", "private",
+                "date", DATE_2,
+                "location", LOCATION,
+                "content-encoding", "gzip",
+                "set-cookie", COOKIE);
+        assertTable(decoder,
+                "set-cookie", COOKIE,
+                "content-encoding", "gzip",
+                "date", DATE_2);
+    }
+
+    // C.5
+    @Test
+    public void responsesWithoutHuffman() throws Exception {
+        responses(new String[] {
+            "4803 3330 3258 0770 7269 7661 7465 611d 4d6f 6e2c 2032 3120"
+            + "4f63 7420 3230 3133 2032 303a 3133 3a32 3120 474d 546e 1768"
+            + "7474 7073 3a2f 2f77 7777 2e65 7861 6d70 6c65 2e63 6f6d",
+            "4803 3330 37c1 c0bf",
+            "88c1 611d 4d6f 6e2c 2032 3120 4f63 7420 3230 3133 2032 303a"
+            + "3133 3a32 3220 474d 54c0 5a04 677a 6970 7738 666f 6f3d 4153"
+            + "444a 4b48 514b 425a 584f 5157 454f 5049 5541 5851 5745 4f49"
+            + "553b 206d 6178 2d61 6765 3d33 3630 303b 2076 6572 7369 6f6e"
+            + "3d31",
+        });
+    }
+
+    // C.6
+    @Test
+    public void responsesWithHuffman() throws Exception {
+        responses(new String[] {
+            "4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005"
+            + "9504 0b81 66e0 82a6 2d1b ff6e 919d 29ad 1718 63c7 8f0b 97c8"
+            + "e9ae 82ae 43d3",
+            "4883 640e ffc1 c0bf",
+            "88c1 6196 d07a be94 1054 d444 a820 0595 040b 8166 e084 a62d"
+            + "1bff c05a 839b d9ab 77ad 94e7 821d d7f2 e6c7 b335 dfdf cd5b"
+            + "3960 d5af 2708 7f36 72c1 ab27 0fb5 291f 9587 3160 65c0 03ed"
+            + "4ee5 b106 3d50 07",
+        });
+    }
+
+    @Test
+    public void tableSizeUpdate() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+        decoder.decode(hex("8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"));
+        assertTable(decoder, ":authority", "www.example.com");
+
+        // Down to 0 empties the table, back to the limit is allowed
+        decoder.decode(hex("20"));
+        assertTable(decoder);
+        decoder.decode(hex("3fe11f"));
+        decoder.decode(hex("4109 6c6f 6361 6c68 6f73 74"));
+        assertTable(decoder, ":authority", "localhost");
+
+        // Above our SETTINGS_HEADER_TABLE_SIZE
+        try {
+            decoder.decode(hex("3fe21f"));
+            fail();
+        } catch (Http2Exception x) {
+            assertEquals(Http2Frame.COMPRESSION_ERROR, x.errorCode());
+        }
+    }
+
+    @Test
+    public void entryLargerThanTableEmptiesIt() throws Exception {
+        Hpack.Decoder decoder = new Hpack.Decoder(64);
+        decoder.decode(hex("4109 6c6f 6361 6c68 6f73 74"));
+        assertTable(decoder, ":authority", "localhost");
+
+        // 32 + 10 + 23 bytes: decoded, but not kept
+        assertFields(decoder.decode(hex(
+                "400a 6375 7374 6f6d 2d6b 6579 17" + "61".repeat(23))),
+                "custom-key", "aaaaaaaaaaaaaaaaaaaaaaa");
+        assertTable(decoder);
+    }
+
+    @Test
+    public void badHuffman() throws Exception {
+        String[] strings = {
+            "8100",             // '0' padded with 0s
+            "8207ff",           // '0' padded with more than 7 bits
+            "84ffffffff",       // EOS
+        };
+        for (String s : strings) {
+            try {
+                Hpack.readString(hex(s));
+                fail(s);
+            } catch (Http2Exception x) {
+                assertEquals(Http2Frame.COMPRESSION_ERROR, x.errorCode());
+            }
+        }
+        // '0' and 3 bits of padding, all 1s
+        assertEquals("0", Hpack.readString(hex("8107")));
+    }
+
+    @Test
+    public void badIndex() throws Exception {
+        for (String s : new String[] { "80", "be", "0f2f00" }) {
+            try {
+                new Hpack.Decoder(4096).decode(hex(s));
+                fail(s);
+            } catch (Http2Exception x) {
+                assertEquals(Http2Frame.COMPRESSION_ERROR, x.errorCode());
+            }
+        }
+    }
+
+    @Test
+    public void encoderRoundTrip() throws Exception {
+        ByteBuffer bb = ByteBuffer.allocate(256);
+        Hpack.encode(bb, ":status", "200");
+        int indexed = bb.position();
+        Hpack.encode(bb, "content-type", "text/html");
+        Hpack.encode(bb, "x-custom", "\u00e9t\u00e9");
+        bb.flip();
+
+        assertEquals(1, indexed);
+        assertEquals((byte) 0x88, bb.get(0));
+        Hpack.Decoder decoder = new Hpack.Decoder(4096);
+        assertFields(decoder.decode(bb),
+                ":status", "200",
+                "content-type", "text/html",
+                "x-custom", "\u00e9t\u00e9");
+        // Never indexed, so the peer's table stays empty
+        assertTable(decoder);
+    }
+}
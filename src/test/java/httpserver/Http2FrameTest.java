@@ -0,0 +1,64 @@
+package httpserver;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * The 9 byte HTTP/2 frame header.
+ *
+ */
+public class Http2FrameTest {
+
+    @Test
+    public void headerRoundTrip() {
+        ByteBuffer bb = ByteBuffer.allocate(32);
+        bb.put((byte) 0x55);
+        Http2Frame.putHeader(bb, 0xabcdef, Http2Frame.HEADERS,
+                Http2Frame.END_HEADERS | Http2Frame.END_STREAM, 0x12345);
+        assertEquals(1 + Http2Frame.HEADER_SIZE, bb.position());
+
+        assertEquals(0xabcdef, Http2Frame.length(bb, 1));
+        assertEquals(Http2Frame.HEADERS, Http2Frame.type(bb, 1));
+        assertEquals(0x5, Http2Frame.flags(bb, 1));
+        assertEquals(0x12345, Http2Frame.streamId(bb, 1));
+        assertEquals(0x55, bb.get(0));
+    }
+
+    @Test
+    public void wireLayout() {
+        ByteBuffer bb = ByteBuffer.allocate(Http2Frame.HEADER_SIZE);
+        Http2Frame.putHeader(bb, 8, Http2Frame.PING, Http2Frame.ACK, 0);
+        assertArrayEquals(new byte[] { 0, 0, 8, 6, 1, 0, 0, 0, 0 },
+                          bb.array());
+    }
+
+    @Test
+    public void reservedBit() {
+        // Never sent, and ignored when received (RFC 7540, 4.1)
+        ByteBuffer bb = ByteBuffer.allocate(Http2Frame.HEADER_SIZE);
+        Http2Frame.putHeader(bb, 0, Http2Frame.DATA, 0, 0x80000003);
+        assertEquals(0, bb.get(5) & 0x80);
+        assertEquals(3, Http2Frame.streamId(bb, 0));
+
+        bb.put(5, (byte) 0x80);
+        assertEquals(3, Http2Frame.streamId(bb, 0));
+    }
+
+    @Test
+    public void headerReservedEarlier() {
+        // DATA frames get their header once the payload is written
+        ByteBuffer bb = ByteBuffer.allocate(64);
+        bb.position(Http2Frame.HEADER_SIZE);
+        bb.put(new byte[20]);
+        Http2Frame.putHeader(bb, 0, 20, Http2Frame.DATA,
+                             Http2Frame.END_STREAM, 7);
+        assertEquals(Http2Frame.HEADER_SIZE + 20, bb.position());
+        assertEquals(20, Http2Frame.length(bb, 0));
+        assertEquals(Http2Frame.DATA, Http2Frame.type(bb, 0));
+        assertEquals(Http2Frame.END_STREAM, Http2Frame.flags(bb, 0));
+        assertEquals(7, Http2Frame.streamId(bb, 0));
+    }
+}
@@ -0,0 +1,249 @@
+package httpserver;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * HTTP/2 with prior knowledge, spoken frame by frame: scheduling of
+ * the DATA frames of concurrent streams, and flow control.
+ *
+ */
+public class Http2Test {
+
+    // Big enough not to end within the windows the tests open
+    private static String FILE = "/pinsk.jpg";
+
+    @ClassRule
+    public static TemporaryFolder tmp = new TemporaryFolder();
+
+    private static int port;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        port = TestServers.freePort();
+        TestServers.start(TestServers.config(port), tmp.getRoot().toPath());
+    }
+
+    private Socket socket;
+    private DataInputStream in;
+    private OutputStream out;
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+    // DATA bytes received so far, per stream id
+    private int[] received = new int[8];
+    private int lastType;
+    private int lastErrorCode;
+
+    @After
+    public void close() throws IOException {
+        if (socket != null)
+            socket.close();
+    }
+
+    private void frame(int type, int flags, int streamId, byte[] payload) {
+        ByteBuffer bb = ByteBuffer.allocate(Http2Frame.HEADER_SIZE
+                                            + payload.length);
+        Http2Frame.putHeader(bb, payload.length, type, flags, streamId);
+        bb.put(payload);
+        pending.write(bb.array(), 0, bb.position());
+    }
+
+    private void send() throws IOException {
+        out.write(pending.toByteArray());
+        out.flush();
+        pending.reset();
+    }
+
+    // The preface and our SETTINGS, which may set the initial window
+    private void connect(int initialWindowSize) throws IOException {
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        in = new DataInputStream(new BufferedInputStream(
+                socket.getInputStream()));
+        out = socket.getOutputStream();
+        pending.write(Http2Handler.PREFACE, 0, Http2Handler.PREFACE.length);
+        ByteBuffer settings = ByteBuffer.allocate(6);
+        if (initialWindowSize >= 0) {
+            settings.putShort((short) Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE);
+            settings.putInt(initialWindowSize);
+        }
+        byte[] payload = new byte[settings.position()];
+        settings.flip();
+        settings.get(payload);
+        frame(Http2Frame.SETTINGS, 0, 0, payload);
+    }
+
+    // GET FILE on a new stream, with the given PRIORITY weight (1..256)
+    private void get(int streamId, int weight) {
+        ByteBuffer bb = ByteBuffer.allocate(256);
+        bb.putInt(0);
+        bb.put((byte) (weight - 1));
+        Hpack.encode(bb, ":method", "GET");
+        Hpack.encode(bb, ":scheme", "http");
+        Hpack.encode(bb, ":path", FILE);
+        Hpack.encode(bb, ":authority", "localhost");
+        byte[] payload = new byte[bb.position()];
+        bb.flip();
+        bb.get(payload);
+        frame(Http2Frame.HEADERS, Http2Frame.END_HEADERS
+                | Http2Frame.END_STREAM | Http2Frame.PRIORITY_FLAG,
+                streamId, payload);
+    }
+
+    private void windowUpdate(int streamId, int increment) {
+        frame(Http2Frame.WINDOW_UPDATE, 0, streamId,
+              ByteBuffer.allocate(4).putInt(increment).array());
+    }
+
+    /*
+     * Reads one frame, or returns false if none starts within
+     * timeoutMillis.
+     */
+    private boolean readFrame(int timeoutMillis) throws IOException {
+        socket.setSoTimeout(timeoutMillis);
+        int first;
+        try {
+            first = in.read();
+        } catch (SocketTimeoutException x) {
+            return false;
+        }
+        assertTrue("Connection closed", first >= 0);
+        socket.setSoTimeout(10000);
+
+        byte[] header = new byte[Http2Frame.HEADER_SIZE];
+        header[0] = (byte) first;
+        in.readFully(header, 1, header.length - 1);
+        ByteBuffer bb = ByteBuffer.wrap(header);
+        byte[] payload = new byte[Http2Frame.length(bb, 0)];
+        in.readFully(payload);
+
+        lastType = Http2Frame.type(bb, 0);
+        int streamId = Http2Frame.streamId(bb, 0);
+        if (lastType == Http2Frame.DATA) {
+            assertEquals(0, Http2Frame.flags(bb, 0) & Http2Frame.END_STREAM);
+            received[streamId] += payload.length;
+        } else if (lastType == Http2Frame.GOAWAY) {
+            lastErrorCode = ByteBuffer.wrap(payload).getInt(4);
+        }
+        return true;
+    }
+
+    // Reads until total DATA bytes arrived, then for a while longer
+    private void receive(int total) throws IOException {
+        while (sum() < total) {
+            assertTrue("Only " + sum() + " of " + total + " bytes",
+                       readFrame(10000));
+        }
+        while (readFrame(300)) {
+            // nothing more may come
+        }
+        assertEquals(total, sum());
+    }
+
+    private int sum() {
+        int n = 0;
+        for (int r : received) {
+            n += r;
+        }
+        return n;
+    }
+
+    @Test
+    public void weightedStreams() throws Exception {
+        // Only the connection window holds the streams back
+        connect(Http2Frame.MAX_WINDOW_SIZE);
+        get(1, 1);
+        get(3, 256);
+        send();
+        receive(Http2Frame.DEFAULT_WINDOW_SIZE);
+
+        // A round of the light stream, the rest of the window for the
+        // heavy one, which has 256 rounds' worth
+        assertEquals(1024, received[1]);
+        assertEquals(Http2Frame.DEFAULT_WINDOW_SIZE - 1024, received[3]);
+
+        windowUpdate(0, 300 * 1024);
+        send();
+        receive(Http2Frame.DEFAULT_WINDOW_SIZE + 300 * 1024);
+        assertEquals(2 * 1024, received[1]);
+    }
+
+    @Test
+    public void equalStreams() throws Exception {
+        connect(-1);
+        get(1, 16);
+        get(3, 16);
+        get(5, 16);
+        send();
+        receive(Http2Frame.DEFAULT_WINDOW_SIZE);
+
+        // 16 KB each per round; the first is into its second one
+        assertEquals(16384, received[3]);
+        assertEquals(16384, received[5]);
+        assertEquals(2 * 16384 - 1, received[1]);
+    }
+
+    @Test
+    public void streamWindow() throws Exception {
+        connect(100);
+        get(1, 16);
+        send();
+        receive(100);
+
+        windowUpdate(1, 1000);
+        send();
+        receive(1100);
+
+        // Then the connection window is the limit
+        windowUpdate(1, 1 << 20);
+        send();
+        receive(Http2Frame.DEFAULT_WINDOW_SIZE);
+        windowUpdate(0, 5000);
+        send();
+        receive(Http2Frame.DEFAULT_WINDOW_SIZE + 5000);
+    }
+
+    @Test
+    public void initialWindowChangeAppliesToOpenStreams() throws Exception {
+        connect(100);
+        get(1, 16);
+        send();
+        receive(100);
+
+        frame(Http2Frame.SETTINGS, 0, 0, ByteBuffer.allocate(6)
+                .putShort((short) Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE)
+                .putInt(300).array());
+        send();
+        receive(300);
+    }
+
+    @Test
+    public void windowOverflow() throws Exception {
+        connect(-1);
+        get(1, 16);
+        send();
+        receive(Http2Frame.DEFAULT_WINDOW_SIZE);
+
+        // The stream's window is 0 now, the connection's too
+        windowUpdate(1, Http2Frame.MAX_WINDOW_SIZE);
+        send();
+        receive(Http2Frame.DEFAULT_WINDOW_SIZE);
+        windowUpdate(1, 1);
+        send();
+        while (readFrame(10000) && lastType != Http2Frame.GOAWAY) {
+            // SETTINGS ACK, HEADERS
+        }
+        assertEquals(Http2Frame.GOAWAY, lastType);
+        assertEquals(Http2Frame.FLOW_CONTROL_ERROR, lastErrorCode);
+    }
+}
@@ -0,0 +1,118 @@
+package httpserver;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Entering and leaving the overloaded state, with event loop rounds
+ * of a given length standing in for the queue.
+ *
+ */
+public class LoadShedderTest {
+
+    // 5 ms target, 100 ms interval
+    private LoadShedder shedder = new LoadShedder(5, 100, 7);
+
+    /*
+     * A round taking millis, then whether a request parsed at the start
+     * of the next one (having waited that long) is refused.
+     */
+    private boolean afterRound(long millis) throws InterruptedException {
+        shedder.roundStarted();
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+        shedder.roundEnded();
+        shedder.roundStarted();
+        return shedder.shed();
+    }
+
+    private boolean overloaded() {
+        Events.EventLoopLoad e = new Events.EventLoopLoad();
+        shedder.report(e);
+        return e.overloaded;
+    }
+
+    // Rounds of millis for at least duration ms
+    private List<Boolean> rounds(long millis, long duration)
+            throws InterruptedException {
+        List<Boolean> shed = new ArrayList<>();
+        long end = System.nanoTime() + duration * 1_000_000L;
+        do {
+            shed.add(afterRound(millis));
+        } while (System.nanoTime() - end < 0);
+        return shed;
+    }
+
+    @Test
+    public void standingQueueIsShed() throws Exception {
+        // Above the target, but not for a whole interval yet
+        assertFalse(afterRound(20));
+        assertFalse(overloaded());
+
+        List<Boolean> shed = rounds(20, 300);
+        assertTrue(overloaded());
+        assertTrue(shed.get(shed.size() - 1));
+        assertTrue(shed.get(shed.size() - 2));
+
+        // The queue drains: nothing is shed, and after an interval
+        // under the target the state is left.  Short rounds rather than
+        // empty ones, which would be millions: a pause of the JVM in
+        // one of them is a delay too
+        shed = rounds(1, 250);
+        assertFalse(shed.contains(true));
+        assertFalse(overloaded());
+        assertFalse(afterRound(20));
+    }
+
+    @Test
+    public void quietIntervalEndsOverload() throws Exception {
+        rounds(20, 300);
+        assertTrue(overloaded());
+
+        // No requests at all for longer than an interval
+        Thread.sleep(250);
+        assertFalse(afterRound(20));
+        assertFalse(overloaded());
+    }
+
+    @Test
+    public void longWaitIsShedAnyway() throws Exception {
+        assertFalse(afterRound(0));
+        assertTrue(afterRound(150));
+        assertFalse(overloaded());
+        assertFalse(afterRound(0));
+    }
+
+    @Test
+    public void servedAndShedAreCounted() throws Exception {
+        afterRound(0);
+        shedder.replyReady();
+        afterRound(150);
+        Events.EventLoopLoad e = new Events.EventLoopLoad();
+        shedder.report(e);
+        assertEquals(1, e.served);
+        assertEquals(1, e.shed);
+        assertTrue(e.loopLag >= 150_000_000L);
+    }
+
+    @Test
+    public void zeroTargetNeverSheds() throws Exception {
+        shedder = new LoadShedder(0, 100, 7);
+        assertFalse(shedder.enabled());
+        assertFalse(afterRound(150));
+        assertFalse(overloaded());
+    }
+
+    @Test
+    public void unavailableReply() {
+        Reply reply = shedder.unavailable();
+        assertEquals(Reply.Code.SERVICE_UNAVAILABLE, reply.code());
+        assertEquals("7", reply.fields().get("Retry-After"));
+        assertTrue(reply.headersOnly());
+    }
+}
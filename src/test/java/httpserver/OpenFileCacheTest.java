@@ -0,0 +1,176 @@
+package httpserver;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.*;
+
+/**
+ * Revalidation of the open files, and when their channels are closed.
+ *
+ */
+public class OpenFileCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path root;
+
+    @Before
+    public void setUp() throws Exception {
+        root = tmp.newFolder("root").toPath();
+    }
+
+    private Path file(String name, String text) throws Exception {
+        Path p = root.resolve(name);
+        Files.write(p, text.getBytes(StandardCharsets.US_ASCII));
+        Files.setLastModifiedTime(p, FileTime.fromMillis(1500000000000L));
+        return p;
+    }
+
+    private static String read(FileChannel fc) throws Exception {
+        ByteBuffer bb = ByteBuffer.allocate(64);
+        fc.read(bb, 0);
+        bb.flip();
+        return StandardCharsets.US_ASCII.decode(bb).toString();
+    }
+
+    // The channel of f as it is now, given back straight away
+    private static FileChannel channel(OpenFileCache.OpenFile f)
+            throws Exception {
+        FileChannel fc = f.acquire();
+        f.release(fc);
+        return fc;
+    }
+
+    @Test
+    public void trustedWithinValidity() throws Exception {
+        OpenFileCache cache = new OpenFileCache(16, 60000);
+        Path p = file("a", "one");
+        OpenFileCache.OpenFile f = cache.get("a", p);
+        assertEquals(3, f.size);
+        assertEquals(CacheEntry.etag(f.lastModified, 3), f.etag());
+
+        // Not looked at again until validity has passed
+        file("a", "three");
+        assertSame(f, cache.get("a", p));
+    }
+
+    @Test
+    public void revalidatedAfterValidity() throws Exception {
+        OpenFileCache cache = new OpenFileCache(16, 0);
+        Path p = file("a", "one");
+        OpenFileCache.OpenFile f = cache.get("a", p);
+        FileChannel fc = channel(f);
+        assertSame(f, cache.get("a", p));
+        assertTrue(fc.isOpen());
+
+        file("a", "three");
+        OpenFileCache.OpenFile g = cache.get("a", p);
+        assertNotSame(f, g);
+        assertEquals(5, g.size);
+        assertEquals("three", read(channel(g)));
+        // Nobody was sending the old one
+        assertFalse(fc.isOpen());
+    }
+
+    @Test
+    public void replacedFileOfSameSizeAndTime() throws Exception {
+        OpenFileCache cache = new OpenFileCache(16, 0);
+        Path p = file("a", "one");
+        OpenFileCache.OpenFile f = cache.get("a", p);
+
+        Path other = file("b", "two");
+        Files.move(other, p, StandardCopyOption.REPLACE_EXISTING);
+        OpenFileCache.OpenFile g = cache.get("a", p);
+        if (Files.readAttributes(p, BasicFileAttributes.class)
+                .fileKey() != null) {
+            assertNotSame(f, g);
+            assertEquals("two", read(channel(g)));
+        }
+    }
+
+    @Test
+    public void closedOnlyAfterRelease() throws Exception {
+        OpenFileCache cache = new OpenFileCache(16, 0);
+        Path p = file("a", "one");
+        OpenFileCache.OpenFile f = cache.get("a", p);
+        FileChannel sending = f.acquire();
+
+        // Replaced by a new file, as a deploy would
+        Files.move(file("new", "three"), p, StandardCopyOption.REPLACE_EXISTING);
+        assertEquals("three", read(channel(cache.get("a", p))));
+        // Still sending the file as it was
+        assertTrue(sending.isOpen());
+        assertEquals("one", read(sending));
+
+        // Until then, a late sender of the evicted entry shares it
+        FileChannel late = f.acquire();
+        assertSame(sending, late);
+        f.release(late);
+        assertTrue(sending.isOpen());
+
+        f.release(sending);
+        assertFalse(sending.isOpen());
+
+        // ... and after that gets a channel of its own
+        FileChannel own = f.acquire();
+        assertNotSame(sending, own);
+        assertTrue(own.isOpen());
+        f.release(own);
+        assertFalse(own.isOpen());
+    }
+
+    @Test
+    public void deletedFileIsForgotten() throws Exception {
+        OpenFileCache cache = new OpenFileCache(16, 0);
+        Path p = file("a", "one");
+        FileChannel fc = channel(cache.get("a", p));
+
+        Files.delete(p);
+        try {
+            cache.get("a", p);
+            fail();
+        } catch (FileNotFoundException x) {
+            // expected
+        }
+        assertFalse(fc.isOpen());
+    }
+
+    @Test
+    public void directoryIsNotAFile() throws Exception {
+        OpenFileCache cache = new OpenFileCache(16, 0);
+        try {
+            cache.get("dir", Files.createDirectory(root.resolve("dir")));
+            fail();
+        } catch (FileNotFoundException x) {
+            assertTrue(x.getMessage().contains("Not a regular file"));
+        }
+    }
+
+    @Test
+    public void leastRecentlyUsedIsClosed() throws Exception {
+        // One file per stripe; these keys share one
+        OpenFileCache cache = new OpenFileCache(1, 60000);
+        String a = "Aa";
+        String b = "BB";
+        assertEquals(a.hashCode(), b.hashCode());
+
+        FileChannel fa = channel(cache.get(a, file("a", "one")));
+        FileChannel fb = channel(cache.get(b, file("b", "two")));
+        assertFalse(fa.isOpen());
+        assertTrue(fb.isOpen());
+    }
+}
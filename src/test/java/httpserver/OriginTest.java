@@ -0,0 +1,196 @@
+package httpserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fetches from a loopback origin, driven by a Selector on the test's
+ * own thread the way an event loop would.
+ *
+ */
+public class OriginTest {
+
+    private ServerSocket listener;
+    private Thread acceptor;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    // Held by the origin until the test lets it answer
+    private final CountDownLatch answer = new CountDownLatch(1);
+    private volatile String reply =
+            "HTTP/1.0 200 OK\r\nContent-Length: 5\r\n"
+            + "Cache-Control: max-age=60\r\n\r\nhello";
+
+    private Selector sel;
+
+    @Before
+    public void setUp() throws IOException {
+        listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(() -> {
+            try {
+                for (;;) {
+                    Socket s = listener.accept();
+                    requests.incrementAndGet();
+                    new Thread(() -> serve(s)).start();
+                }
+            } catch (IOException x) {
+                // closed
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        sel = Selector.open();
+    }
+
+    private void serve(Socket s) {
+        try (Socket socket = s) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.ISO_8859_1));
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                // the request is not looked at
+            }
+            if (!answer.await(10, TimeUnit.SECONDS))
+                return;
+            OutputStream out = socket.getOutputStream();
+            out.write(reply.getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+        } catch (IOException | InterruptedException x) {
+            // the client went away
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        answer.countDown();
+        listener.close();
+        sel.close();
+    }
+
+    private Origin origin(long timeout) {
+        return new Origin("http://127.0.0.1:" + listener.getLocalPort(),
+                60000, timeout, 1 << 20);
+    }
+
+    // What one waiter was told; a timeout tells it on the timer thread
+    private static class Outcome implements Origin.Waiter {
+        volatile CacheEntry entry;
+        volatile IOException failure;
+        volatile boolean ready = false;
+
+        public void ready(CacheEntry entry, IOException failure) {
+            this.entry = entry;
+            this.failure = failure;
+            this.ready = true;
+        }
+    }
+
+    // Runs the selector until all the outcomes are in
+    private void loop(List<Outcome> outcomes) throws IOException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!outcomes.stream().allMatch(o -> o.ready)) {
+            assertTrue("timed out", System.currentTimeMillis() < deadline);
+            sel.select(50);
+            for (SelectionKey sk : sel.selectedKeys()) {
+                ((Handler) sk.attachment()).handle(sk);
+            }
+            sel.selectedKeys().clear();
+        }
+    }
+
+    private List<Outcome> fetch(Origin origin, String key, int n,
+                                List<Origin.Result> results) {
+        List<Outcome> outcomes = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Outcome o = new Outcome();
+            outcomes.add(o);
+            origin.fetch(key, "/a.txt", null, sel, results::add, o);
+        }
+        return outcomes;
+    }
+
+    @Test
+    public void collapsesConcurrentFetches() throws Exception {
+        Origin origin = origin(10000);
+        List<Origin.Result> results = new ArrayList<>();
+        List<Outcome> outcomes = fetch(origin, "site\0/a.txt", 10, results);
+        answer.countDown();
+        loop(outcomes);
+
+        assertEquals(1, requests.get());
+        assertEquals(1, results.size());
+        assertTrue(results.get(0).store);
+        CacheEntry entry = outcomes.get(0).entry;
+        assertNotNull(entry);
+        assertEquals(5, entry.length());
+        assertTrue(entry.fresh(System.currentTimeMillis()));
+        for (Outcome o : outcomes) {
+            assertSame(entry, o.entry);
+            assertNull(o.failure);
+        }
+
+        // Once done, the next request goes to the origin again
+        List<Outcome> again = fetch(origin, "site\0/a.txt", 1, results);
+        loop(again);
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void differentKeysAreNotCollapsed() throws Exception {
+        Origin origin = origin(10000);
+        List<Origin.Result> results = new ArrayList<>();
+        List<Outcome> outcomes = fetch(origin, "site\0/a.txt", 3, results);
+        outcomes.addAll(fetch(origin, "site\0/b.txt", 3, results));
+        answer.countDown();
+        loop(outcomes);
+
+        assertEquals(2, requests.get());
+        assertEquals(2, results.size());
+    }
+
+    @Test
+    public void notFoundReachesAllWaiters() throws Exception {
+        reply = "HTTP/1.0 404 Not Found\r\nContent-Length: 0\r\n\r\n";
+        Origin origin = origin(10000);
+        List<Origin.Result> results = new ArrayList<>();
+        List<Outcome> outcomes = fetch(origin, "site\0/a.txt", 4, results);
+        answer.countDown();
+        loop(outcomes);
+
+        assertEquals(1, requests.get());
+        assertTrue(results.isEmpty());
+        for (Outcome o : outcomes) {
+            assertNull(o.entry);
+            assertTrue(o.failure instanceof FileNotFoundException);
+        }
+    }
+
+    @Test
+    public void timesOut() throws Exception {
+        Origin origin = origin(200);
+        List<Origin.Result> results = new ArrayList<>();
+        List<Outcome> outcomes = fetch(origin, "site\0/a.txt", 2, results);
+        loop(outcomes);
+
+        for (Outcome o : outcomes) {
+            assertNull(o.entry);
+            assertNotNull(o.failure);
+            assertTrue(o.failure.getMessage().contains("timed out"));
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package httpserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+/**
+ * A reply writes no more than its quantum per turn.
+ *
+ */
+public class PacedChannelTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private SocketChannel client;
+    private SocketChannel server;
+    private PacedChannel paced;
+
+    @Before
+    public void connect() throws Exception {
+        try (ServerSocketChannel ssc = ServerSocketChannel.open()) {
+            ssc.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            client = SocketChannel.open(ssc.getLocalAddress());
+            server = ssc.accept();
+        }
+        paced = new PacedChannel(ChannelIO.getInstance(server, false));
+    }
+
+    @After
+    public void close() throws Exception {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void writesUpToBudget() throws Exception {
+        ByteBuffer src = ByteBuffer.allocate(100000);
+        paced.budget = 4096;
+        assertEquals(4096, paced.write(src));
+        assertEquals(4096, src.position());
+        assertEquals(0, paced.budget);
+        assertEquals(0, paced.write(src));
+        assertEquals(4096, src.position());
+
+        // The next turn
+        paced.budget = 1000;
+        assertEquals(1000, paced.write(src));
+        assertEquals(5096, src.position());
+    }
+
+    @Test
+    public void transfersUpToBudget() throws Exception {
+        Path file = tmp.newFile().toPath();
+        Files.write(file, new byte[100000]);
+        try (FileChannel fc = FileChannel.open(file)) {
+            paced.budget = 4096;
+            assertEquals(4096, paced.transferTo(fc, 0, 100000));
+            assertEquals(0, paced.budget);
+            assertEquals(0, paced.transferTo(fc, 4096, 100000 - 4096));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package httpserver;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+
+import static org.junit.Assert.*;
+
+/**
+ * The token buckets of RateLimiter, and its table of clients.
+ *
+ */
+public class RateLimiterTest {
+
+    private static InetAddress address(String s) throws Exception {
+        return InetAddress.getByName(s);
+    }
+
+    @Test
+    public void burstThenRefill() throws Exception {
+        // 2 requests a second, 3 at once
+        RateLimiter limiter = new RateLimiter(0, 0, 2, 3, 0, 0, 1024);
+        RateLimiter.Client c = limiter.client(address("10.0.0.1"));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(c.tryRequest());
+        }
+        assertFalse(c.tryRequest());
+
+        Thread.sleep(600);
+        assertTrue(c.tryRequest());
+        assertFalse(c.tryRequest());
+
+        // The other buckets are off
+        assertTrue(c.tryConnect());
+        assertEquals(Long.MAX_VALUE, c.bytesAvailable());
+    }
+
+    @Test
+    public void refillStopsAtBurst() throws Exception {
+        RateLimiter limiter = new RateLimiter(0, 0, 0, 0, 1e6, 1000, 1024);
+        RateLimiter.Client c = limiter.client(address("10.0.0.1"));
+        assertEquals(1000, c.bytesAvailable());
+        c.bytesSent(1000);
+        Thread.sleep(20);
+        assertEquals(1000, c.bytesAvailable());
+    }
+
+    @Test
+    public void bytesOwedDelay() throws Exception {
+        // 100 bytes a second; 500 more sent than the bucket held
+        RateLimiter limiter = new RateLimiter(0, 0, 0, 0, 100, 1000, 1024);
+        RateLimiter.Client c = limiter.client(address("10.0.0.1"));
+        c.bytesSent(1500);
+        assertEquals(0, c.bytesAvailable());
+        long delay = c.bytesDelayNanos();
+        assertTrue(delay + " ns", delay > 4_900_000_000L);
+        assertTrue(delay + " ns", delay <= 5_010_000_000L);
+    }
+
+    @Test
+    public void burstIsAtLeastOne() throws Exception {
+        RateLimiter limiter = new RateLimiter(1, 0, 0, 0, 0, 0, 1024);
+        RateLimiter.Client c = limiter.client(address("10.0.0.1"));
+        assertTrue(c.tryConnect());
+        assertFalse(c.tryConnect());
+    }
+
+    @Test
+    public void noLimits() throws Exception {
+        RateLimiter limiter = new RateLimiter(0, 0, 0, 0, 0, 0, 1024);
+        assertFalse(limiter.enabled());
+        RateLimiter.Client c = limiter.client(address("10.0.0.1"));
+        assertSame(c, limiter.client(address("10.0.0.2")));
+        for (int i = 0; i < 100; i++) {
+            assertTrue(c.tryConnect());
+            assertTrue(c.tryRequest());
+        }
+        assertEquals(Long.MAX_VALUE, c.bytesAvailable());
+        assertEquals(0, c.bytesDelayNanos());
+    }
+
+    @Test
+    public void clientsHaveTheirOwnBuckets() throws Exception {
+        RateLimiter limiter = new RateLimiter(0, 0, 1, 1, 0, 0, 1024);
+        RateLimiter.Client a = limiter.client(address("10.0.0.1"));
+        assertSame(a, limiter.client(address("10.0.0.1")));
+        assertTrue(a.tryRequest());
+        assertFalse(a.tryRequest());
+
+        RateLimiter.Client b = limiter.client(address("10.0.0.2"));
+        assertNotSame(a, b);
+        assertTrue(b.tryRequest());
+    }
+
+    @Test
+    public void leastRecentlySeenClientIsEvicted() throws Exception {
+        // One client per stripe; these two share a stripe
+        RateLimiter limiter = new RateLimiter(0, 0, 1, 1, 0, 0, 1);
+        InetAddress a = address("10.0.0.1");
+        InetAddress b = address("10.0.0.65");
+        RateLimiter.Client ca = limiter.client(a);
+        assertTrue(ca.tryRequest());
+        assertFalse(ca.tryRequest());
+        assertSame(ca, limiter.client(a));
+
+        limiter.client(b);
+        RateLimiter.Client again = limiter.client(a);
+        assertNotSame(ca, again);
+        assertTrue(again.tryRequest());
+    }
+}
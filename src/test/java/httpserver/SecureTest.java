@@ -0,0 +1,135 @@
+package httpserver;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.Properties;
+import javax.net.ssl.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * HTTPS with a self-signed certificate, made by keytool for the test.
+ *
+ */
+public class SecureTest {
+
+    @ClassRule
+    public static TemporaryFolder tmp = new TemporaryFolder();
+
+    private static int port;
+    private static SSLContext client;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        Path keystore = tmp.getRoot().toPath().resolve("keystore.p12");
+        Process keytool = new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "keytool")
+                        .toString(),
+                "-genkeypair", "-alias", "httpserver", "-keyalg", "RSA",
+                "-keysize", "2048", "-validity", "2",
+                "-storetype", "PKCS12", "-keystore", keystore.toString(),
+                "-storepass", "changeit", "-keypass", "changeit",
+                "-dname", "CN=localhost",
+                "-ext", "SAN=dns:localhost,ip:127.0.0.1")
+                .redirectErrorStream(true).start();
+        assertEquals(0, keytool.waitFor());
+
+        // The client trusts just that certificate
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(keystore)) {
+            ks.load(in, "changeit".toCharArray());
+        }
+        Certificate cert = ks.getCertificate("httpserver");
+        KeyStore trusted = KeyStore.getInstance(KeyStore.getDefaultType());
+        trusted.load(null, null);
+        trusted.setCertificateEntry("httpserver", cert);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(
+                TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(trusted);
+        client = SSLContext.getInstance("TLS");
+        client.init(null, tmf.getTrustManagers(), null);
+
+        port = TestServers.freePort();
+        Properties config = TestServers.config(port);
+        config.setProperty("secure", "true");
+        config.setProperty("keystore", keystore.toString());
+        config.setProperty("keystorePassword", "changeit");
+        TestServers.start(config, tmp.getRoot().toPath());
+    }
+
+    private HttpsURLConnection open(String path) throws IOException {
+        HttpsURLConnection c = (HttpsURLConnection)
+                new URL("https://localhost:" + port + path).openConnection();
+        c.setSSLSocketFactory(client.getSocketFactory());
+        c.setConnectTimeout(5000);
+        c.setReadTimeout(10000);
+        return c;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] b = new byte[8192];
+        int n;
+        while ((n = in.read(b)) > 0) {
+            out.write(b, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void servesFileOverTls() throws Exception {
+        HttpsURLConnection c = open("/1.html");
+        assertEquals(200, c.getResponseCode());
+        assertNotNull(c.getCipherSuite());
+        byte[] body;
+        try (InputStream in = c.getInputStream()) {
+            body = readAll(in);
+        }
+        assertArrayEquals(Files.readAllBytes(Paths.get("root", "1.html")),
+                          body);
+    }
+
+    // Many TLS records, and more than a socket buffer's worth
+    @Test
+    public void servesLargeFileOverTls() throws Exception {
+        HttpsURLConnection c = open("/pinsk.jpg");
+        assertEquals(200, c.getResponseCode());
+        byte[] body;
+        try (InputStream in = c.getInputStream()) {
+            body = readAll(in);
+        }
+        assertArrayEquals(Files.readAllBytes(Paths.get("root", "pinsk.jpg")),
+                          body);
+    }
+
+    @Test
+    public void answersMissingFile() throws Exception {
+        HttpsURLConnection c = open("/no-such-file.html");
+        assertEquals(404, c.getResponseCode());
+    }
+
+    @Test
+    public void rejectsPlainHttp() throws Exception {
+        // A plaintext request is not a TLS handshake: no HTTP reply
+        try (Socket s = new Socket("127.0.0.1", port)) {
+            s.setSoTimeout(5000);
+            s.getOutputStream().write(
+                    "GET /1.html HTTP/1.0\r\n\r\n".getBytes("US-ASCII"));
+            byte[] reply = readAll(s.getInputStream());
+            assertFalse(new String(reply, "ISO-8859-1").startsWith("HTTP/"));
+        } catch (IOException x) {
+            // reset: also fine
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package httpserver;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * The shared cache's byte budget and prefault budget.
+ *
+ */
+public class SharedCacheTest {
+
+    private static CacheEntry entry(int length) {
+        return new CacheEntry(ByteBuffer.allocate(length), 0).markCached();
+    }
+
+    @Test
+    public void evictsToBudget() {
+        SharedCache cache = new SharedCache(100, 0);
+        SharedCache.Site site = cache.site("a");
+        assertTrue(site.put("/1", entry(60), true));
+        assertTrue(site.put("/2", entry(60), true));
+        assertTrue(cache.used() <= 100);
+        assertFalse(site.put("/3", entry(101), true));
+        assertFalse(site.put("/4", entry(50), false));
+    }
+
+    @Test
+    public void prefaultsWithinBudget() {
+        SharedCache cache = new SharedCache(1000, 100);
+        SharedCache.Site site = cache.site("a");
+
+        CacheEntry a = entry(60);
+        assertTrue(site.prefault(a, null));
+        site.put("/a", a, false);
+        CacheEntry b = entry(60);
+        assertFalse(site.prefault(b, null));
+        site.put("/b", b, false);
+        assertEquals(60, cache.prefaulted());
+
+        // Gone from the cache, its share is back
+        site.remove("/a");
+        assertEquals(0, cache.prefaulted());
+        assertTrue(site.prefault(entry(100), null));
+    }
+
+    @Test
+    public void reloadTakesOverTheShare() {
+        SharedCache cache = new SharedCache(1000, 100);
+        SharedCache.Site site = cache.site("a");
+        CacheEntry old = entry(80);
+        assertTrue(site.prefault(old, null));
+        site.put("/a", old, false);
+
+        // The same file loaded again doesn't need twice the budget
+        for (int i = 0; i < 3; i++) {
+            CacheEntry current = site.current("/a");
+            CacheEntry fresh = entry(90);
+            assertTrue(site.prefault(fresh, current));
+            site.put("/a", fresh, true);
+            assertEquals(90, cache.prefaulted());
+        }
+    }
+
+    @Test
+    public void entriesNotCachedGiveTheirShareBack() {
+        SharedCache cache = new SharedCache(100, 1000);
+        SharedCache.Site site = cache.site("a");
+
+        CacheEntry big = entry(200);
+        assertTrue(site.prefault(big, null));
+        assertFalse(site.put("/big", big, true));
+        assertEquals(0, cache.prefaulted());
+
+        CacheEntry a = entry(60);
+        site.prefault(a, null);
+        site.put("/a", a, true);
+        CacheEntry b = entry(60);
+        site.prefault(b, null);
+        site.put("/b", b, true);
+        // Evicted as well
+        assertEquals(cache.used(), cache.prefaulted());
+    }
+}
@@ -0,0 +1,62 @@
+package httpserver;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * The per-stripe bound of StripedLru and its evictions.
+ *
+ */
+public class StripedLruTest {
+
+    // "Aa", "BB" and "AaAa"... have the same hash codes
+    private static String[] SAME_STRIPE = { "AaAa", "AaBB", "BBAa", "BBBB" };
+
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        List<Integer> evicted = new ArrayList<>();
+        StripedLru<String, Integer> lru = new StripedLru<>(4, 8, evicted::add);
+        lru.put(SAME_STRIPE[0], 0);
+        lru.put(SAME_STRIPE[1], 1);
+        assertEquals(Integer.valueOf(0), lru.get(SAME_STRIPE[0]));
+
+        // Two per stripe: 1 was used longest ago
+        lru.put(SAME_STRIPE[2], 2);
+        assertEquals(Arrays.asList(1), evicted);
+        assertNull(lru.get(SAME_STRIPE[1]));
+        assertEquals(Integer.valueOf(0), lru.get(SAME_STRIPE[0]));
+        assertEquals(Integer.valueOf(2), lru.get(SAME_STRIPE[2]));
+
+        lru.computeIfAbsent(SAME_STRIPE[3], k -> 3);
+        assertEquals(Arrays.asList(1, 0), evicted);
+    }
+
+    @Test
+    public void replacedIsReturnedNotEvicted() {
+        List<Integer> evicted = new ArrayList<>();
+        StripedLru<String, Integer> lru = new StripedLru<>(4, 4, evicted::add);
+        assertNull(lru.put("a", 1));
+        assertEquals(Integer.valueOf(1), lru.put("a", 2));
+        assertTrue(evicted.isEmpty());
+
+        assertEquals(Integer.valueOf(2), lru.computeIfAbsent("a", k -> 3));
+        assertFalse(lru.remove("a", 1));
+        assertTrue(lru.remove("a", 2));
+        assertNull(lru.get("a"));
+        assertTrue(evicted.isEmpty());
+    }
+
+    @Test
+    public void atLeastOnePerStripe() {
+        StripedLru<String, Integer> lru = new StripedLru<>(64, 1, null);
+        lru.put(SAME_STRIPE[0], 0);
+        assertEquals(Integer.valueOf(0), lru.get(SAME_STRIPE[0]));
+        lru.put(SAME_STRIPE[1], 1);
+        assertNull(lru.get(SAME_STRIPE[0]));
+    }
+}
@@ -0,0 +1,70 @@
+package httpserver;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Runs servers for the tests, in this JVM, on loopback ports.
+ *
+ */
+class TestServers {
+
+    static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0, 1,
+                InetAddress.getLoopbackAddress())) {
+            return s.getLocalPort();
+        }
+    }
+
+    /*
+     * Starts a server with the given configuration (port included) on
+     * a daemon thread and waits until it accepts connections.
+     */
+    static void start(Properties config, Path dir) throws Exception {
+        Path file = Files.createTempFile(dir, "server", ".properties");
+        try (OutputStream out = Files.newOutputStream(file)) {
+            config.store(out, null);
+        }
+        Thread t = new Thread(() -> {
+            try {
+                Server.main(new String[] { file.toString() });
+            } catch (Exception x) {
+                x.printStackTrace();
+            }
+        }, "server-" + config.getProperty("port"));
+        t.setDaemon(true);
+        t.start();
+
+        int port = Integer.parseInt(config.getProperty("port"));
+        long deadline = System.currentTimeMillis() + 10000;
+        for (;;) {
+            try (Socket s = new Socket()) {
+                s.connect(new InetSocketAddress(
+                        InetAddress.getLoopbackAddress(), port), 1000);
+                return;
+            } catch (IOException x) {
+                if (System.currentTimeMillis() > deadline)
+                    throw x;
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    // The settings of a plain, small server; tests add theirs
+    static Properties config(int port) {
+        Properties p = new Properties();
+        p.setProperty("port", String.valueOf(port));
+        p.setProperty("backlog", "64");
+        p.setProperty("caching", "true");
+        p.setProperty("eventLoops", "1");
+        p.setProperty("warmupThreads", "1");
+        p.setProperty("accessLog", "");
+        return p;
+    }
+}
@@ -0,0 +1,132 @@
+package httpserver;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Transcoded variants of text files, on a site served without the
+ * file cache (so kept with the open files).
+ *
+ */
+public class VariantTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Path root;
+    private FileContentManager site;
+
+    @Before
+    public void setUp() throws Exception {
+        root = tmp.newFolder("root").toPath();
+        Files.write(root.resolve("a.txt"), "h\u00e9llo w\u00f6rld\n"
+                .getBytes(StandardCharsets.UTF_8));
+        Files.write(root.resolve("b.jpg"), new byte[] { (byte) 0xff, 0 });
+        site = new FileContentManager(root, false,
+                new FreshnessPolicy(new Properties()), null,
+                new SharedCache(1 << 20, 0), null, null,
+                new OpenFileCache(16, 0), false, 0);
+    }
+
+    private static String text(CacheEntry entry) {
+        ByteBuffer bb = entry.buffer();
+        byte[] b = new byte[bb.remaining()];
+        bb.get(b);
+        return new String(b, StandardCharsets.US_ASCII);
+    }
+
+    private static Request request(String path, String acceptCharset)
+            throws Exception {
+        Map<String, String> headers = new HashMap<>();
+        if (acceptCharset != null) {
+            headers.put("accept-charset", acceptCharset);
+        }
+        return Request.create("GET", "localhost", path, "1.1", headers);
+    }
+
+    @Test
+    public void variantHasItsOwnLengthAndEtag() throws Exception {
+        CacheEntry file = site.getFileContent("/a.txt",
+                                              StandardCharsets.UTF_8);
+        assertEquals(14, file.length());
+
+        CacheEntry ascii = site.getFileContent("/a.txt",
+                                               StandardCharsets.US_ASCII);
+        assertEquals(12, ascii.length());
+        assertEquals("h?llo w?rld\n", text(ascii));
+        assertEquals(file.etag() + "-us-ascii", ascii.etag());
+        assertEquals(file.lastModified(), ascii.lastModified());
+        assertEquals(StandardCharsets.US_ASCII, ascii.charset());
+
+        // Built once, kept with the open file
+        assertSame(ascii, site.getFileContent("/a.txt",
+                                              StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void binaryFilesHaveNoVariant() throws Exception {
+        assertSame(site.getFileContent("/b.jpg", StandardCharsets.UTF_8),
+                   site.getFileContent("/b.jpg", StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void changedFileGetsNewVariant() throws Exception {
+        CacheEntry before = site.getFileContent("/a.txt",
+                                                StandardCharsets.US_ASCII);
+        Files.write(root.resolve("a.txt"),
+                    "caf\u00e9\n".getBytes(StandardCharsets.UTF_8));
+        CacheEntry after = site.getFileContent("/a.txt",
+                                               StandardCharsets.US_ASCII);
+        assertNotSame(before, after);
+        assertEquals("caf?\n", text(after));
+    }
+
+    @Test
+    public void pullBuildsVariantOnTranscoderThread() throws Exception {
+        Request request = request("/a.txt", "us-ascii");
+        CountDownLatch ready = new CountDownLatch(1);
+        CacheEntry[] got = new CacheEntry[1];
+        String[] thread = new String[1];
+        assertTrue(site.pull(request, "/a.txt",
+                InetAddress.getLoopbackAddress(), null, (entry, failure) -> {
+                    assertNull(failure);
+                    got[0] = entry;
+                    thread[0] = Thread.currentThread().getName();
+                    ready.countDown();
+                }));
+        assertTrue(ready.await(10, TimeUnit.SECONDS));
+        assertEquals("transcoder", thread[0]);
+        assertEquals(StandardCharsets.US_ASCII, got[0].charset());
+
+        // Built now: nothing to wait for, and a pulled variant stays as is
+        assertFalse(site.pull(request, "/a.txt",
+                InetAddress.getLoopbackAddress(), null, (e, f) -> fail()));
+        assertSame(got[0], site.getFileContent("/a.txt",
+                                               StandardCharsets.US_ASCII));
+        assertSame(got[0], site.getFileContent("/a.txt", got[0],
+                                               StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void utf8RequestsDontWait() throws Exception {
+        assertFalse(site.pull(request("/a.txt", null), "/a.txt",
+                InetAddress.getLoopbackAddress(), null, (e, f) -> fail()));
+        assertFalse(site.pull(request("/b.jpg", "US-ASCII"), "/b.jpg",
+                InetAddress.getLoopbackAddress(), null, (e, f) -> fail()));
+    }
+}
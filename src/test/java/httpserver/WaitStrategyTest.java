@@ -0,0 +1,181 @@
+package httpserver;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Polling, parking and blocking of the event loops' wait strategies.
+ *
+ */
+public class WaitStrategyTest {
+
+    private Selector sel;
+    private Pipe pipe;
+
+    @Before
+    public void open() throws Exception {
+        sel = Selector.open();
+        pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+        pipe.source().register(sel, SelectionKey.OP_READ);
+    }
+
+    @After
+    public void close() throws Exception {
+        sel.close();
+        pipe.source().close();
+        pipe.sink().close();
+    }
+
+    private void send() throws Exception {
+        pipe.sink().write(ByteBuffer.wrap(new byte[] { 1 }));
+    }
+
+    private void consume() throws Exception {
+        pipe.source().read(ByteBuffer.allocate(16));
+        sel.selectedKeys().clear();
+    }
+
+    private static Events.EventLoopLoad load(WaitStrategy wait) {
+        Events.EventLoopLoad e = new Events.EventLoopLoad();
+        wait.report(e);
+        return e;
+    }
+
+    @Test
+    public void spinNeverWaits() throws Exception {
+        WaitStrategy wait = new WaitStrategy(WaitStrategy.Kind.SPIN, 0, 0, 100);
+        wait.start();
+        long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, wait.poll(sel, null));
+        }
+        assertTrue(System.nanoTime() - start < 1_000_000_000L);
+
+        send();
+        assertEquals(1, wait.poll(sel, null));
+        Events.EventLoopLoad e = load(wait);
+        assertEquals(1001, e.iterations);
+        assertEquals(1000, e.emptyPolls);
+        assertEquals(0, e.parks);
+        assertEquals(0, e.blocks);
+    }
+
+    @Test
+    public void spinParkParksAfterSpins() throws Exception {
+        WaitStrategy wait =
+            new WaitStrategy(WaitStrategy.Kind.SPINPARK, 3, 1000, 100);
+        wait.start();
+        for (int i = 0; i < 10; i++) {
+            wait.poll(sel, null);
+        }
+        assertEquals(7, load(wait).parks);
+
+        // An event brings it back to spinning
+        send();
+        assertEquals(1, wait.poll(sel, null));
+        consume();
+        for (int i = 0; i < 3; i++) {
+            wait.poll(sel, null);
+        }
+        assertEquals(7, load(wait).parks);
+        wait.poll(sel, null);
+        assertEquals(8, load(wait).parks);
+    }
+
+    @Test
+    public void spinParkSeesEvents() throws Exception {
+        WaitStrategy wait =
+            new WaitStrategy(WaitStrategy.Kind.SPINPARK, 0, 1000, 100);
+        wait.start();
+        send();
+        // Right away, or after a pause of at most parkMax
+        long start = System.nanoTime();
+        while (wait.poll(sel, null) == 0) {
+            assertTrue(System.nanoTime() - start < 1_000_000_000L);
+        }
+    }
+
+    @Test
+    public void budgetSpentBlocks() throws Exception {
+        // 1% of a core: 1 ms of empty polls per 100 ms window
+        WaitStrategy wait = new WaitStrategy(WaitStrategy.Kind.SPIN, 0, 0, 1);
+        wait.start();
+        long start = System.nanoTime();
+        while (load(wait).blocks == 0) {
+            wait.poll(sel, null);
+            assertTrue(System.nanoTime() - start < 1_000_000_000L);
+        }
+
+        // Blocked in select(), it still returns at the first event
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(20);
+                send();
+            } catch (Exception x) {
+                throw new RuntimeException(x);
+            }
+        });
+        writer.start();
+        long blocks = load(wait).blocks;
+        while (wait.poll(sel, null) == 0) {
+            assertTrue(System.nanoTime() - start < 1_000_000_000L);
+        }
+        writer.join();
+        assertTrue(load(wait).blocks > blocks);
+    }
+
+    @Test
+    public void unparkWakesParkedLoop() throws Exception {
+        // Pauses double from 1 us to 1 s: the first 1 s one starts at
+        // about 1.05 s
+        WaitStrategy wait =
+            new WaitStrategy(WaitStrategy.Kind.SPINPARK, 0, 1_000_000, 100);
+        AtomicLong seen = new AtomicLong();
+        Thread loop = new Thread(() -> {
+            wait.start();
+            try {
+                while (wait.poll(sel, null) == 0) {
+                    // waiting
+                }
+                seen.set(System.nanoTime());
+            } catch (Exception x) {
+                throw new RuntimeException(x);
+            }
+        }, "test-loop");
+        loop.setDaemon(true);
+        loop.start();
+
+        // Half a second left of that pause
+        Thread.sleep(1500);
+        assertTrue(load(wait).parks > 0);
+        send();
+        long sent = System.nanoTime();
+        wait.wakeup(sel);
+        wait.unpark();
+        loop.join(2000);
+        assertFalse(loop.isAlive());
+        assertTrue(seen.get() - sent < 200_000_000L);
+    }
+
+    @Test
+    public void kinds() {
+        assertEquals(WaitStrategy.Kind.SPINPARK, WaitStrategy.kind("spinpark"));
+        assertEquals(WaitStrategy.Kind.SELECT, WaitStrategy.kind("Select"));
+        try {
+            WaitStrategy.kind("sleep");
+            fail();
+        } catch (IllegalArgumentException x) {
+            assertEquals("Unknown loopWait: sleep", x.getMessage());
+        }
+    }
+}